@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.app.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.example.android.app.data.WeatherContract.LocationEntry;
+import com.example.android.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Checks that the forecast stays readable while a large bulkInsert is running.  Read latencies
+    are logged under the TestConcurrentReads log tag.  The insert makes that a @LargeTest.
+ */
+public class TestConcurrentReads extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestConcurrentReads.class.getSimpleName();
+
+    private static final int ROWS = 50000;
+    // Days per location, kept well inside the years android.text.format.Time can normalize.
+    private static final int DAYS_PER_LOCATION = 1000;
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+
+    private long mLocationRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        resolver.delete(LocationEntry.CONTENT_URI, null, null);
+        mLocationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    public void testWriteAheadLogging() {
+        TestUtilities.closeProviderDatabase(mContext);
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        try {
+            assertTrue(db.isWriteAheadLoggingEnabled());
+            Cursor cursor = db.rawQuery("PRAGMA journal_mode", null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals("wal", cursor.getString(0).toLowerCase());
+            cursor.close();
+        } finally {
+            db.close();
+        }
+    }
+
+    @LargeTest
+    public void testReadLatencyDuringInsert() throws Exception {
+        final ContentValues[] rows = new ContentValues[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            rows[i] = TestUtilities.createWeatherValues(mLocationRowId);
+            rows[i].put(WeatherEntry.COLUMN_LOC_KEY, mLocationRowId + i / DAYS_PER_LOCATION);
+            rows[i].put(WeatherEntry.COLUMN_DATE,
+                    TestUtilities.TEST_DATE + (i % DAYS_PER_LOCATION) * DAY_IN_MILLIS);
+        }
+
+        final long[] writeMillis = new long[1];
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, rows);
+                writeMillis[0] = SystemClock.elapsedRealtime() - start;
+            }
+        }, "TestConcurrentReads writer");
+
+        List<Long> latencies = new ArrayList<Long>();
+        int readsDuringWrite = 0;
+        writer.start();
+        while (writer.isAlive()) {
+            long start = SystemClock.elapsedRealtime();
+            Cursor cursor = mContext.getContentResolver().query(
+                    WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                    null, null, null, null);
+            int count = cursor.getCount();
+            cursor.close();
+            latencies.add(SystemClock.elapsedRealtime() - start);
+
+            // A reader only ever sees a committed snapshot: none of the transaction or all of it.
+            assertTrue("Read " + count + " rows of an uncommitted insert",
+                    count == 0 || count == DAYS_PER_LOCATION);
+            if (count == 0) {
+                readsDuringWrite++;
+            }
+        }
+        writer.join();
+
+        Collections.sort(latencies);
+        long median = latencies.get(latencies.size() / 2);
+        long max = latencies.get(latencies.size() - 1);
+        Log.d(LOG_TAG, "Insert of " + ROWS + " rows took " + writeMillis[0] + " ms, " +
+                latencies.size() + " reads meanwhile, median " + median + " ms, max " + max +
+                " ms");
+
+        assertTrue("No read got through while the insert was running", readsDuringWrite > 0);
+        // A read held up by the writer's transaction would wait out most of the insert.
+        assertTrue("A read waited " + max + " ms for the insert", max < writeMillis[0] / 2);
+    }
+}
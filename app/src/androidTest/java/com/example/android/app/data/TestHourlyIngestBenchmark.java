@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.app.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.app.data.WeatherContract.HourlyEntry;
+import com.example.android.app.data.WeatherContract.LocationEntry;
+
+import java.util.ArrayList;
+
+/*
+    Times writing hourly steps through the provider, reported as milliseconds per 1,000 rows
+    under the TestHourlyIngestBenchmark log tag:
+    - one insert at a time, each in its own transaction,
+    - bulkInsert, all in one transaction,
+    - applyBatch of a delete plus the inserts, which is what the sync does per location.
+ */
+public class TestHourlyIngestBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestHourlyIngestBenchmark.class.getSimpleName();
+
+    private static final int ROWS = 1000;
+    private static final int RUNS = 3;
+
+    private long mLocationRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.delete(HourlyEntry.CONTENT_URI, null, null);
+        resolver.delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        resolver.delete(LocationEntry.CONTENT_URI, null, null);
+        Uri locationUri = resolver.insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        mLocationRowId = ContentUris.parseId(locationUri);
+    }
+
+    private ContentValues[] createRows() {
+        return TestProvider.createHourlyValues(mLocationRowId, TestUtilities.TEST_DATE * 1000, ROWS);
+    }
+
+    private void clear() {
+        mContext.getContentResolver().delete(HourlyEntry.CONTENT_URI, null, null);
+    }
+
+    public void testIngestPerThousandRows() throws Exception {
+        ContentResolver resolver = mContext.getContentResolver();
+        ContentValues[] rows = createRows();
+
+        long singleMillis = 0;
+        long bulkMillis = 0;
+        long batchMillis = 0;
+        for (int run = 0; run < RUNS; run++) {
+            clear();
+            long start = SystemClock.elapsedRealtime();
+            for (ContentValues row : rows) {
+                resolver.insert(HourlyEntry.CONTENT_URI, row);
+            }
+            singleMillis += SystemClock.elapsedRealtime() - start;
+
+            clear();
+            start = SystemClock.elapsedRealtime();
+            int inserted = resolver.bulkInsert(HourlyEntry.CONTENT_URI, rows);
+            bulkMillis += SystemClock.elapsedRealtime() - start;
+            assertEquals(ROWS, inserted);
+
+            ArrayList<ContentProviderOperation> operations =
+                    new ArrayList<ContentProviderOperation>(ROWS + 1);
+            operations.add(ContentProviderOperation.newDelete(HourlyEntry.CONTENT_URI)
+                    .withSelection(HourlyEntry.COLUMN_LOC_KEY + " = ?",
+                            new String[]{Long.toString(mLocationRowId)})
+                    .build());
+            for (ContentValues row : rows) {
+                operations.add(ContentProviderOperation.newInsert(HourlyEntry.CONTENT_URI)
+                        .withValues(row)
+                        .build());
+            }
+            start = SystemClock.elapsedRealtime();
+            resolver.applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+            batchMillis += SystemClock.elapsedRealtime() - start;
+        }
+
+        Log.d(LOG_TAG, "Hourly ingest per " + ROWS + " rows: one by one " + singleMillis / RUNS +
+                " ms, bulkInsert " + bulkMillis / RUNS + " ms, applyBatch " +
+                batchMillis / RUNS + " ms");
+
+        Cursor cursor = resolver.query(HourlyEntry.CONTENT_URI, null, null,
+                null, null);
+        assertEquals(ROWS, cursor.getCount());
+        cursor.close();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.app.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.example.android.app.data.WeatherContract.LocationEntry;
+import com.example.android.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that the location registry follows what goes through the provider.
+ */
+public class TestLocationRegistry extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        // Other tests write to the database directly, which the registry can't see.
+        LocationRegistry.getInstance().invalidate();
+    }
+
+    public void testRegistryFollowsProvider() {
+        ContentResolver resolver = mContext.getContentResolver();
+        LocationRegistry registry = LocationRegistry.getInstance();
+
+        assertEquals("Error: an unknown location shouldn't resolve",
+                -1, registry.getLocationId(resolver, TestUtilities.TEST_LOCATION));
+
+        // Inserts show up without reloading.
+        int loads = registry.getLoadCount();
+        Uri uri = resolver.insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        long id = ContentUris.parseId(uri);
+        int hits = registry.getHitCount();
+        assertEquals(id, registry.getLocationId(resolver, TestUtilities.TEST_LOCATION));
+        assertEquals(hits + 1, registry.getHitCount());
+        assertEquals(loads, registry.getLoadCount());
+
+        // Updates and deletes make it reload.
+        ContentValues renamed = new ContentValues();
+        renamed.put(LocationEntry.COLUMN_LOCATION_SETTING, "99706");
+        resolver.update(LocationEntry.CONTENT_URI, renamed, LocationEntry._ID + " = ?",
+                new String[]{Long.toString(id)});
+        assertEquals(-1, registry.getLocationId(resolver, TestUtilities.TEST_LOCATION));
+        assertEquals(id, registry.getLocationId(resolver, "99706"));
+        assertEquals(loads + 1, registry.getLoadCount());
+
+        resolver.delete(LocationEntry.CONTENT_URI, null, null);
+        assertEquals(-1, registry.getLocationId(resolver, "99706"));
+
+        float hitRate = registry.getHitRate();
+        assertTrue("Error: hit rate out of range: " + hitRate, hitRate >= 0 && hitRate <= 1);
+    }
+}
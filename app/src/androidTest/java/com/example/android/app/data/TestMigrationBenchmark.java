@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.app.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.example.android.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Times migrating a large database from the oldest version we can migrate to the current one,
+    reported under the TestMigrationBenchmark log tag.  WeatherDbHelper logs each step's time
+    under its own tag.  Copying the weather table and building its index dominate, so the size
+    that matters is the weather table's.  This is a @LargeTest: leave it out with -e size small
+    or medium.
+ */
+public class TestMigrationBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestMigrationBenchmark.class.getSimpleName();
+
+    private static final int ROWS = 100000;
+    // Days per location, kept well inside the years android.text.format.Time can normalize.
+    private static final int DAYS_PER_LOCATION = 1000;
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // The database gets replaced underneath the provider.
+        TestUtilities.closeProviderDatabase(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testMigrateLargeDatabase() {
+        SQLiteDatabase old = TestMigrations.createDatabase(mContext,
+                WeatherDbHelper.MIN_MIGRATABLE_VERSION);
+        ContentValues weather = TestUtilities.createWeatherValues(0);
+        old.beginTransaction();
+        try {
+            for (int i = 0; i < ROWS; i++) {
+                weather.put(WeatherEntry.COLUMN_LOC_KEY, 1 + i / DAYS_PER_LOCATION);
+                weather.put(WeatherEntry.COLUMN_DATE,
+                        TestUtilities.TEST_DATE + (i % DAYS_PER_LOCATION) * DAY_IN_MILLIS);
+                old.insert(WeatherEntry.TABLE_NAME, null, weather);
+            }
+            old.setTransactionSuccessful();
+        } finally {
+            old.endTransaction();
+        }
+        old.close();
+
+        WeatherDbHelper helper = new WeatherDbHelper(mContext);
+        try {
+            long start = SystemClock.elapsedRealtime();
+            SQLiteDatabase db = helper.getWritableDatabase();
+            long migrateMillis = SystemClock.elapsedRealtime() - start;
+
+            Log.d(LOG_TAG, "Migrated " + ROWS + " weather rows from version " +
+                    WeatherDbHelper.MIN_MIGRATABLE_VERSION + " to " +
+                    WeatherDbHelper.DATABASE_VERSION + " in " + migrateMillis + " ms");
+            assertEquals(ROWS, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+        } finally {
+            helper.close();
+        }
+    }
+}
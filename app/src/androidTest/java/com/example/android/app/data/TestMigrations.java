@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.example.android.app.data.WeatherContract.HourlyEntry;
+import com.example.android.app.data.WeatherContract.LocationEntry;
+import com.example.android.app.data.WeatherContract.SyncMetricsEntry;
+import com.example.android.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Builds the database as every version we shipped had it, with data in it, and checks that
+    WeatherDbHelper migrates it to what a fresh install gets without losing the data.
+
+    The schemas below are copies of what each version's onCreate made, frozen.  Don't build
+    them from WeatherContract or WeatherDbHelper: the point is to catch those drifting.
+ */
+public class TestMigrations extends AndroidTestCase {
+
+    private static final String LOCATION_V2 = "CREATE TABLE location (" +
+            "_id INTEGER PRIMARY KEY," +
+            "location_setting TEXT UNIQUE NOT NULL, " +
+            "city_name TEXT NOT NULL, " +
+            "coord_lat REAL NOT NULL, " +
+            "coord_long REAL NOT NULL  );";
+
+    private static final String WEATHER_V2 = "CREATE TABLE weather (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "location_id INTEGER NOT NULL, " +
+            "date INTEGER NOT NULL, " +
+            "short_desc TEXT NOT NULL, " +
+            "weather_id INTEGER NOT NULL," +
+            "min REAL NOT NULL, " +
+            "max REAL NOT NULL, " +
+            "humidity REAL NOT NULL, " +
+            "pressure REAL NOT NULL, " +
+            "wind REAL NOT NULL, " +
+            "degrees REAL NOT NULL, " +
+            " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+            " UNIQUE (date, location_id) ON CONFLICT REPLACE);";
+
+    private static final String WEATHER_V8 = "CREATE TABLE weather (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "location_id INTEGER NOT NULL, " +
+            "date INTEGER NOT NULL, " +
+            "short_desc TEXT NOT NULL, " +
+            "weather_id INTEGER NOT NULL," +
+            "min REAL NOT NULL, " +
+            "max REAL NOT NULL, " +
+            "humidity REAL NOT NULL, " +
+            "pressure REAL NOT NULL, " +
+            "wind REAL NOT NULL, " +
+            "degrees REAL NOT NULL, " +
+            " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+            " UNIQUE (date, location_id));";
+
+    private static final String SYNC_METRICS_V3_COLUMNS = "CREATE TABLE sync_metrics (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "sync_time INTEGER NOT NULL, " +
+            "location_setting TEXT NOT NULL, " +
+            "status INTEGER NOT NULL, " +
+            "http_code INTEGER NOT NULL, " +
+            "breaker_state INTEGER NOT NULL, " +
+            "dns INTEGER NOT NULL, " +
+            "connect INTEGER NOT NULL, " +
+            "first_byte INTEGER NOT NULL, " +
+            "download INTEGER NOT NULL, " +
+            "parse INTEGER NOT NULL, " +
+            "db_write INTEGER NOT NULL, " +
+            "fan_out INTEGER, " +
+            "total INTEGER NOT NULL, " +
+            "bytes INTEGER NOT NULL, ";
+    private static final String SYNC_METRICS_V3 = SYNC_METRICS_V3_COLUMNS +
+            "rows INTEGER NOT NULL  );";
+    private static final String SYNC_METRICS_V5 = SYNC_METRICS_V3_COLUMNS +
+            "rows INTEGER NOT NULL, " +
+            "timed_out_stage TEXT  );";
+    private static final String SYNC_METRICS_V6 = SYNC_METRICS_V3_COLUMNS +
+            "rows INTEGER NOT NULL, " +
+            "timed_out_stage TEXT, " +
+            "prewarmed INTEGER NOT NULL DEFAULT 0  );";
+    private static final String SYNC_METRICS_V9 = "CREATE TABLE sync_metrics (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "sync_time INTEGER NOT NULL, " +
+            "location_setting TEXT NOT NULL, " +
+            "status INTEGER NOT NULL, " +
+            "http_code INTEGER NOT NULL, " +
+            "breaker_state INTEGER NOT NULL, " +
+            "connect INTEGER NOT NULL, " +
+            "first_byte INTEGER NOT NULL, " +
+            "download INTEGER NOT NULL, " +
+            "parse INTEGER NOT NULL, " +
+            "db_write INTEGER NOT NULL, " +
+            "fan_out INTEGER, " +
+            "total INTEGER NOT NULL, " +
+            "bytes INTEGER NOT NULL, " +
+            "rows INTEGER NOT NULL, " +
+            "timed_out_stage TEXT, " +
+            "prewarmed INTEGER NOT NULL DEFAULT 0  );";
+
+    private static final String SYNC_METRICS_TRIGGER_V3 = "CREATE TRIGGER sync_metrics_ring " +
+            "AFTER INSERT ON sync_metrics BEGIN DELETE FROM sync_metrics " +
+            "WHERE _id <= NEW._id - 500; END;";
+
+    private static final String HOURLY_V4 = "CREATE TABLE hourly (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "location_id INTEGER NOT NULL, " +
+            "time INTEGER NOT NULL, " +
+            "short_desc TEXT NOT NULL, " +
+            "weather_id INTEGER NOT NULL," +
+            "temp REAL NOT NULL, " +
+            "humidity REAL NOT NULL, " +
+            "pressure REAL NOT NULL, " +
+            "wind REAL NOT NULL, " +
+            "degrees REAL NOT NULL, " +
+            " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+            " UNIQUE (location_id, time) ON CONFLICT REPLACE);";
+
+    private static final String WEATHER_LOCATION_DATE_INDEX_V7 =
+            "CREATE INDEX weather_location_date ON weather " +
+            "(location_id, date, weather_id, short_desc, max, min);";
+
+    // Version 1 came before this tree; all that matters is that it gets thrown away.
+    static final int OLDEST_VERSION = 1;
+    static final int WEATHER_ROWS = 14;
+
+    /**
+     * @return the statements that made the database of the given version.
+     */
+    static String[] getSchema(int version) {
+        List<String> schema = new ArrayList<String>();
+        schema.add(LOCATION_V2);
+        schema.add(version >= 8 ? WEATHER_V8 : WEATHER_V2);
+        if (version >= 3) {
+            schema.add(version >= 9 ? SYNC_METRICS_V9
+                    : version >= 6 ? SYNC_METRICS_V6
+                    : version >= 5 ? SYNC_METRICS_V5
+                    : SYNC_METRICS_V3);
+            schema.add(SYNC_METRICS_TRIGGER_V3);
+        }
+        if (version >= 4) {
+            schema.add(HOURLY_V4);
+        }
+        if (version >= 7) {
+            schema.add(WEATHER_LOCATION_DATE_INDEX_V7);
+        }
+        return schema.toArray(new String[schema.size()]);
+    }
+
+    /**
+     * Replaces the weather database with one of the given version, holding one location.
+     *
+     * @return the database, still open for more data to go in.
+     */
+    static SQLiteDatabase createDatabase(Context context, int version) {
+        context.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        SQLiteDatabase db = context.openOrCreateDatabase(WeatherDbHelper.DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        for (String statement : getSchema(version)) {
+            db.execSQL(statement);
+        }
+        db.setVersion(version);
+        db.insert(LocationEntry.TABLE_NAME, null, TestUtilities.createNorthPoleLocationValues());
+        return db;
+    }
+
+    private static long getLocationRowId(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT " + LocationEntry._ID + " FROM " +
+                LocationEntry.TABLE_NAME + " WHERE " + LocationEntry.COLUMN_LOCATION_SETTING +
+                " = ?", new String[]{TestUtilities.TEST_LOCATION});
+    }
+
+    private static void fill(SQLiteDatabase db, int version) {
+        long locationRowId = getLocationRowId(db);
+        ContentValues weather = TestUtilities.createWeatherValues(locationRowId);
+        for (int day = 0; day < WEATHER_ROWS; day++) {
+            weather.put(WeatherEntry.COLUMN_DATE,
+                    TestUtilities.TEST_DATE + day * 24 * 60 * 60 * 1000L);
+            assertTrue(db.insert(WeatherEntry.TABLE_NAME, null, weather) != -1);
+        }
+        if (version >= 3) {
+            ContentValues metrics = TestProvider.createSyncMetricsValues(
+                    TestUtilities.TEST_DATE, 200);
+            if (version < 9) {
+                metrics.put("dns", 5);
+            }
+            if (version >= 5) {
+                metrics.put(SyncMetricsEntry.COLUMN_TIMED_OUT_STAGE, "parse");
+            }
+            assertTrue(db.insert(SyncMetricsEntry.TABLE_NAME, null, metrics) != -1);
+        }
+        if (version >= 4) {
+            ContentValues[] steps = TestProvider.createHourlyValues(locationRowId,
+                    TestUtilities.TEST_DATE, 8);
+            for (ContentValues step : steps) {
+                assertTrue(db.insert(HourlyEntry.TABLE_NAME, null, step) != -1);
+            }
+        }
+    }
+
+    private static String getWeatherIds(SQLiteDatabase db) {
+        return DatabaseUtils.stringForQuery(db, "SELECT group_concat(" + WeatherEntry._ID +
+                ") FROM (SELECT " + WeatherEntry._ID + " FROM " + WeatherEntry.TABLE_NAME +
+                " ORDER BY " + WeatherEntry._ID + ")", null);
+    }
+
+    /**
+     * @return every table, column, index and trigger in the database, one per line, sorted.
+     */
+    private static String describeSchema(SQLiteDatabase db) {
+        List<String> lines = new ArrayList<String>();
+        Cursor objects = db.rawQuery("SELECT type, name FROM sqlite_master " +
+                "WHERE name NOT IN ('android_metadata', 'sqlite_sequence')", null);
+        try {
+            while (objects.moveToNext()) {
+                String type = objects.getString(0);
+                String name = objects.getString(1);
+                lines.add(type + " " + name);
+                if (!"table".equals(type)) {
+                    continue;
+                }
+                Cursor columns = db.rawQuery("PRAGMA table_info(" + name + ")", null);
+                try {
+                    while (columns.moveToNext()) {
+                        lines.add("column " + name + "." +
+                                columns.getString(columns.getColumnIndex("name")) + " " +
+                                columns.getString(columns.getColumnIndex("type")) + " notnull=" +
+                                columns.getInt(columns.getColumnIndex("notnull")) + " default=" +
+                                columns.getString(columns.getColumnIndex("dflt_value")) + " pk=" +
+                                columns.getInt(columns.getColumnIndex("pk")));
+                    }
+                } finally {
+                    columns.close();
+                }
+            }
+        } finally {
+            objects.close();
+        }
+        Collections.sort(lines);
+        StringBuilder description = new StringBuilder();
+        for (String line : lines) {
+            description.append(line).append('\n');
+        }
+        return description.toString();
+    }
+
+    private String describeFreshSchema() {
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        WeatherDbHelper helper = new WeatherDbHelper(mContext);
+        try {
+            return describeSchema(helper.getWritableDatabase());
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testFixtureMatchesLatestVersion() {
+        // A new version needs its schema added above, and a step in WeatherDbHelper.upgradeTo.
+        String fresh = describeFreshSchema();
+        SQLiteDatabase db = createDatabase(mContext, WeatherDbHelper.DATABASE_VERSION - 1);
+        try {
+            WeatherDbHelper.upgradeTo(db, WeatherDbHelper.DATABASE_VERSION);
+            assertEquals(fresh, describeSchema(db));
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testMigrateFromEveryVersion() {
+        String fresh = describeFreshSchema();
+        for (int version = WeatherDbHelper.MIN_MIGRATABLE_VERSION;
+             version < WeatherDbHelper.DATABASE_VERSION; version++) {
+            SQLiteDatabase old = createDatabase(mContext, version);
+            fill(old, version);
+            String weatherIds = getWeatherIds(old);
+            old.close();
+
+            WeatherDbHelper helper = new WeatherDbHelper(mContext);
+            SQLiteDatabase db = helper.getWritableDatabase();
+            try {
+                String from = "From version " + version + ": ";
+                assertEquals(from + "wrong version", WeatherDbHelper.DATABASE_VERSION,
+                        db.getVersion());
+                assertEquals(from + "schema differs from a fresh install", fresh,
+                        describeSchema(db));
+
+                assertEquals(from + "lost the location", 1,
+                        DatabaseUtils.queryNumEntries(db, LocationEntry.TABLE_NAME));
+                assertEquals(from + "lost the forecast", WEATHER_ROWS,
+                        DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+                Cursor cursor = db.query(WeatherEntry.TABLE_NAME, null,
+                        WeatherEntry.COLUMN_DATE + " = ?",
+                        new String[]{Long.toString(TestUtilities.TEST_DATE)}, null, null, null);
+                ContentValues expected = TestUtilities.createWeatherValues(getLocationRowId(db));
+                TestUtilities.validateCursor(from + "changed the forecast", cursor, expected);
+                assertEquals(from + "changed the forecast's ids", weatherIds, getWeatherIds(db));
+                String weatherSql = DatabaseUtils.stringForQuery(db, "SELECT sql FROM " +
+                        "sqlite_master WHERE type = 'table' AND name = ?",
+                        new String[]{WeatherEntry.TABLE_NAME});
+                assertFalse(from + "weather rows still get replaced instead of updated",
+                        weatherSql.toUpperCase().contains("REPLACE"));
+
+                assertEquals(from + "lost the hourly forecast", version >= 4 ? 8 : 0,
+                        DatabaseUtils.queryNumEntries(db, HourlyEntry.TABLE_NAME));
+                assertEquals(from + "lost the sync metrics", version >= 3 ? 1 : 0,
+                        DatabaseUtils.queryNumEntries(db, SyncMetricsEntry.TABLE_NAME));
+                if (version >= 3) {
+                    assertEquals(from + "metrics need a default for the new columns", 0,
+                            DatabaseUtils.longForQuery(db, "SELECT " +
+                                    SyncMetricsEntry.COLUMN_PREWARMED + " FROM " +
+                                    SyncMetricsEntry.TABLE_NAME, null));
+                    assertEquals(from + "changed the sync metrics", 40,
+                            DatabaseUtils.longForQuery(db, "SELECT " +
+                                    SyncMetricsEntry.COLUMN_CONNECT + " FROM " +
+                                    SyncMetricsEntry.TABLE_NAME, null));
+                }
+            } finally {
+                helper.close();
+            }
+        }
+    }
+
+    public void testTooOldStartsOver() {
+        String fresh = describeFreshSchema();
+        SQLiteDatabase old = createDatabase(mContext, OLDEST_VERSION);
+        fill(old, OLDEST_VERSION);
+        old.close();
+
+        WeatherDbHelper helper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            assertEquals(fresh, describeSchema(db));
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+        } finally {
+            helper.close();
+        }
+    }
+}
@@ -21,13 +21,16 @@ import android.content.ContentValues;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import com.example.android.app.data.WeatherContract.HourlyEntry;
 import com.example.android.app.data.WeatherContract.LocationEntry;
+import com.example.android.app.data.WeatherContract.SyncMetricsEntry;
 import com.example.android.app.data.WeatherContract.WeatherEntry;
 
 /*
@@ -56,11 +59,21 @@ public class TestProvider extends AndroidTestCase {
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                HourlyEntry.CONTENT_URI,
+                null,
+                null
+        );
         mContext.getContentResolver().delete(
                 LocationEntry.CONTENT_URI,
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                SyncMetricsEntry.CONTENT_URI,
+                null,
+                null
+        );
 
         Cursor cursor = mContext.getContentResolver().query(
                 WeatherEntry.CONTENT_URI,
@@ -160,6 +173,21 @@ public class TestProvider extends AndroidTestCase {
         // vnd.android.cursor.dir/com.example.android.sunshine.app/location
         assertEquals("Error: the LocationEntry CONTENT_URI should return LocationEntry.CONTENT_TYPE",
                 LocationEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/hourly/94074
+        type = mContext.getContentResolver().getType(HourlyEntry.buildHourlyLocation(testLocation));
+        assertEquals("Error: the HourlyEntry CONTENT_URI with location should return HourlyEntry.CONTENT_TYPE",
+                HourlyEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/sync_metrics/
+        type = mContext.getContentResolver().getType(SyncMetricsEntry.CONTENT_URI);
+        assertEquals("Error: the SyncMetricsEntry CONTENT_URI should return SyncMetricsEntry.CONTENT_TYPE",
+                SyncMetricsEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/sync_metrics/1
+        type = mContext.getContentResolver().getType(SyncMetricsEntry.buildSyncMetricsUri(1));
+        assertEquals("Error: the SyncMetricsEntry item URI should return SyncMetricsEntry.CONTENT_ITEM_TYPE",
+                SyncMetricsEntry.CONTENT_ITEM_TYPE, type);
     }
 
 
@@ -512,4 +540,205 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    // Writing a day we already have must update its row rather than replace it, so the row's
+    // _ID stays the same from one sync to the next.
+    public void testInsertKeepsId() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+
+        long firstId = ContentUris.parseId(
+                mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weatherValues));
+        weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 80);
+        long secondId = ContentUris.parseId(
+                mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weatherValues));
+        assertEquals("Writing the same day again should keep its row", firstId, secondId);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                WeatherEntry._ID + " = ?", new String[]{Long.toString(firstId)}, null);
+        TestUtilities.validateCursor("testInsertKeepsId.  Error validating the update",
+                cursor, weatherValues);
+    }
+
+    public void testBulkInsertKeepsIds() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] values = createBulkInsertWeatherValues(locationRowId);
+
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT,
+                mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values));
+        String ids = getWeatherIds();
+        long sequence = getWeatherSequence();
+
+        // The next sync: every day again, some of them changed.
+        for (int i = 0; i < values.length; i += 2) {
+            values[i].put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        }
+        assertEquals("Every row should be written once", BULK_INSERT_RECORDS_TO_INSERT,
+                mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values));
+
+        assertEquals("The rows should keep their ids", ids, getWeatherIds());
+        assertEquals("No new ids should have been handed out", sequence, getWeatherSequence());
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.moveToFirst();
+        for (int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord("testBulkInsertKeepsIds.  Error validating " +
+                    "WeatherEntry " + i, cursor, values[i]);
+        }
+        cursor.close();
+    }
+
+    private String getWeatherIds() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        StringBuilder ids = new StringBuilder();
+        while (cursor.moveToNext()) {
+            ids.append(cursor.getLong(0)).append(',');
+        }
+        cursor.close();
+        return ids.toString();
+    }
+
+    // The last _ID AUTOINCREMENT handed out for the weather table.
+    private long getWeatherSequence() {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        try {
+            return DatabaseUtils.longForQuery(dbHelper.getReadableDatabase(),
+                    "SELECT seq FROM sqlite_sequence WHERE name = ?",
+                    new String[]{WeatherEntry.TABLE_NAME});
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    // bulkInsert binds every row to one statement compiled for the first row's columns.  Make
+    // sure dates still get normalized and that rows with other columns still go in.
+    public void testBulkInsertMixedColumns() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+
+        ContentValues[] values = createBulkInsertWeatherValues(locationRowId);
+        long midday = values[1].getAsLong(WeatherEntry.COLUMN_DATE) + 12 * 60 * 60 * 1000;
+        values[1].put(WeatherEntry.COLUMN_DATE, midday);
+        values[3].remove(WeatherEntry.COLUMN_WIND_SPEED);
+
+        // The fourth one is missing a NOT NULL column, so it is skipped.
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT - 1,
+                mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                        WeatherContract.normalizeDate(midday)),
+                null, null, null, null);
+        assertTrue("The midday row should be stored at the start of its day",
+                cursor.moveToFirst());
+        cursor.close();
+        assertEquals("The caller's values shouldn't be rewritten", midday,
+                (long) values[1].getAsLong(WeatherEntry.COLUMN_DATE));
+    }
+
+    static ContentValues createSyncMetricsValues(long syncTime, long total) {
+        ContentValues values = new ContentValues();
+        values.put(SyncMetricsEntry.COLUMN_SYNC_TIME, syncTime);
+        values.put(SyncMetricsEntry.COLUMN_LOCATION_SETTING, TestUtilities.TEST_LOCATION);
+        values.put(SyncMetricsEntry.COLUMN_STATUS, 0);
+        values.put(SyncMetricsEntry.COLUMN_HTTP_CODE, 200);
+        values.put(SyncMetricsEntry.COLUMN_BREAKER_STATE, 0);
+        values.put(SyncMetricsEntry.COLUMN_CONNECT, 40);
+        values.put(SyncMetricsEntry.COLUMN_FIRST_BYTE, 120);
+        values.put(SyncMetricsEntry.COLUMN_DOWNLOAD, 30);
+        values.put(SyncMetricsEntry.COLUMN_PARSE, 10);
+        values.put(SyncMetricsEntry.COLUMN_DB_WRITE, 15);
+        values.put(SyncMetricsEntry.COLUMN_TOTAL, total);
+        values.put(SyncMetricsEntry.COLUMN_BYTES, 2048);
+        values.put(SyncMetricsEntry.COLUMN_ROWS, 14);
+        return values;
+    }
+
+    /*
+        The sync metrics table only ever keeps the newest MAX_ROWS rows, and the fan-out time
+        can be filled in after the row went in.
+     */
+    public void testSyncMetricsRingBuffer() {
+        int inserted = SyncMetricsEntry.MAX_ROWS + 20;
+        Uri lastUri = null;
+        for (int i = 0; i < inserted; i++) {
+            lastUri = mContext.getContentResolver().insert(SyncMetricsEntry.CONTENT_URI,
+                    createSyncMetricsValues(TestUtilities.TEST_DATE + i, i));
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(SyncMetricsEntry.CONTENT_URI,
+                new String[]{SyncMetricsEntry.COLUMN_TOTAL}, null, null,
+                SyncMetricsEntry.COLUMN_TOTAL + " ASC");
+        assertEquals("Error: the sync metrics table should be bounded",
+                SyncMetricsEntry.MAX_ROWS, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the oldest sync metrics should have been dropped first",
+                inserted - SyncMetricsEntry.MAX_ROWS, cursor.getLong(0));
+        cursor.close();
+
+        ContentValues fanOut = new ContentValues();
+        fanOut.put(SyncMetricsEntry.COLUMN_FAN_OUT, 250);
+        assertEquals(1, mContext.getContentResolver().update(lastUri, fanOut, null, null));
+
+        cursor = mContext.getContentResolver().query(lastUri, null, null, null, null);
+        ContentValues expected = createSyncMetricsValues(TestUtilities.TEST_DATE + inserted - 1,
+                inserted - 1);
+        expected.put(SyncMetricsEntry.COLUMN_FAN_OUT, 250);
+        TestUtilities.validateCursor("testSyncMetricsRingBuffer. Error validating SyncMetricsEntry.",
+                cursor, expected);
+    }
+
+    static final int HOURLY_STEPS = 40;
+    static final long THREE_HOURS_IN_MILLIS = 3 * 60 * 60 * 1000;
+
+    static ContentValues[] createHourlyValues(long locationRowId, long startTime, int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            ContentValues step = new ContentValues();
+            step.put(HourlyEntry.COLUMN_LOC_KEY, locationRowId);
+            step.put(HourlyEntry.COLUMN_TIME, startTime + i * THREE_HOURS_IN_MILLIS);
+            step.put(HourlyEntry.COLUMN_TEMP, 10.5 + i);
+            step.put(HourlyEntry.COLUMN_HUMIDITY, 80.0);
+            step.put(HourlyEntry.COLUMN_PRESSURE, 1012.3);
+            step.put(HourlyEntry.COLUMN_WIND_SPEED, 4.1);
+            step.put(HourlyEntry.COLUMN_DEGREES, 230.0);
+            step.put(HourlyEntry.COLUMN_SHORT_DESC, "Clouds");
+            step.put(HourlyEntry.COLUMN_WEATHER_ID, 804);
+            values[i] = step;
+        }
+        return values;
+    }
+
+    /*
+        Bulk inserts a location's 3 hour steps and reads back the next few from a given time.
+     */
+    public void testHourlyNextSteps() {
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        long start = TestUtilities.TEST_DATE * 1000;
+        ContentValues[] steps = createHourlyValues(locationRowId, start, HOURLY_STEPS);
+        assertEquals(HOURLY_STEPS,
+                mContext.getContentResolver().bulkInsert(HourlyEntry.CONTENT_URI, steps));
+
+        // The next 8 steps (24 hours) from the 5th step on.
+        int next = 8;
+        Cursor cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocationWithStartTime(TestUtilities.TEST_LOCATION,
+                        start + 4 * THREE_HOURS_IN_MILLIS, next),
+                null, null, null, null);
+        assertEquals("Error: the hourly query should honour its limit", next, cursor.getCount());
+        cursor.moveToFirst();
+        for (int i = 0; i < next; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord("testHourlyNextSteps. Error validating step " + i,
+                    cursor, steps[4 + i]);
+        }
+        cursor.close();
+    }
 }
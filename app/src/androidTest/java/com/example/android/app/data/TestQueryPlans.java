@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.app.data.WeatherContract.HourlyEntry;
+import com.example.android.app.data.WeatherContract.LocationEntry;
+import com.example.android.app.data.WeatherContract.SyncMetricsEntry;
+import com.example.android.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Runs EXPLAIN QUERY PLAN on what WeatherProvider runs for each of its routes, with the
+    selections the app uses on them, and fails if any of them would read a whole table.  The
+    plans are logged under the TestQueryPlans log tag.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestQueryPlans.class.getSimpleName();
+
+    // What the forecast list, the widgets and Muzei ask for.
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    private static final String DATE_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+    private static final String LOCATION = TestUtilities.TEST_LOCATION;
+    private static final String DATE = Long.toString(TestUtilities.TEST_DATE);
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = new WeatherDbHelper(mContext).getReadableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    /**
+     * @return the plan's steps, one per line.
+     */
+    private String explain(String sql, String... args) {
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        StringBuilder plan = new StringBuilder();
+        try {
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detail)).append('\n');
+            }
+        } finally {
+            cursor.close();
+        }
+        Log.d(LOG_TAG, sql + "\n" + plan);
+        return plan.toString();
+    }
+
+    /**
+     * Fails if any step of the plan reads a whole table, which SQLite reports as a SCAN of it
+     * rather than a SEARCH.  Scanning an index from end to end is as bad, so that fails too.
+     */
+    private void assertNoScan(String route, String plan) {
+        for (String step : plan.split("\n")) {
+            assertFalse(route + " reads a whole table: " + step, step.startsWith("SCAN"));
+        }
+    }
+
+    private static String tableQuery(String table, String[] columns, String selection,
+                                     String sortOrder) {
+        return SQLiteQueryBuilder.buildQueryString(false, table, columns, selection, null, null,
+                sortOrder, null);
+    }
+
+    // "weather/*", from a start date on: the forecast list, the widgets, Muzei.
+    public void testWeatherWithLocationFromDate() {
+        String plan = explain(WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(
+                FORECAST_COLUMNS, WeatherProvider.sLocationSettingWithStartDateSelection,
+                null, null, DATE_ORDER, null), LOCATION, DATE);
+        assertNoScan("weather/*", plan);
+        assertTrue("The forecast list should be read from the index alone:\n" + plan,
+                plan.contains("COVERING INDEX " + WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE));
+        assertFalse("The forecast list should come out of the index in date order:\n" + plan,
+                plan.contains("TEMP B-TREE"));
+    }
+
+    // "weather/*", every day we have.
+    public void testWeatherWithLocation() {
+        assertNoScan("weather/*", explain(
+                WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(
+                        FORECAST_COLUMNS, WeatherProvider.sLocationSettingSelection,
+                        null, null, DATE_ORDER, null), LOCATION));
+    }
+
+    // "weather/*/#": the detail view.
+    public void testWeatherWithLocationAndDate() {
+        assertNoScan("weather/*/#", explain(
+                WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(
+                        null, WeatherProvider.sLocationSettingAndDaySelection,
+                        null, null, null, null), LOCATION, DATE));
+    }
+
+    // "weather": what the sync's delta writer reads, updates and deletes.
+    public void testWeather() {
+        String location = WeatherEntry.COLUMN_LOC_KEY + " = ?";
+        assertNoScan("weather", explain(tableQuery(WeatherEntry.TABLE_NAME, null,
+                location, null), "1"));
+        assertNoScan("weather", explain(tableQuery(WeatherEntry.TABLE_NAME, null,
+                location + " AND " + WeatherEntry.COLUMN_DATE + " = ?", null), "1", DATE));
+        assertNoScan("weather", explain(tableQuery(WeatherEntry.TABLE_NAME, null,
+                location + " AND " + WeatherEntry.COLUMN_DATE + " <= ?", null), "1", DATE));
+    }
+
+    // "hourly/*": the next steps for a location.
+    public void testHourlyWithLocation() {
+        assertNoScan("hourly/*", explain(
+                WeatherProvider.sHourlyByLocationSettingQueryBuilder.buildQuery(
+                        null, WeatherProvider.sHourlyLocationSettingWithStartTimeSelection,
+                        null, null, HourlyEntry.COLUMN_TIME + " ASC", "8"), LOCATION, DATE));
+    }
+
+    // "hourly": the hourly sync replacing a location's steps.
+    public void testHourly() {
+        assertNoScan("hourly", explain(tableQuery(HourlyEntry.TABLE_NAME, null,
+                HourlyEntry.COLUMN_LOC_KEY + " = ?", null), "1"));
+    }
+
+    // "location": looking a location up by its setting.  LocationRegistry loads the whole
+    // table on purpose, once, and that's the only read without a selection.
+    public void testLocation() {
+        assertNoScan("location", explain(tableQuery(LocationEntry.TABLE_NAME, null,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", null), LOCATION));
+    }
+
+    // "sync_metrics/#": finishing a sync's metrics row.  The metrics are otherwise only ever
+    // read whole, and there are never more than SyncMetricsEntry.MAX_ROWS of them.
+    public void testSyncMetrics() {
+        assertNoScan("sync_metrics/#", explain(tableQuery(SyncMetricsEntry.TABLE_NAME, null,
+                SyncMetricsEntry._ID + " = ?", null), "1"));
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.example.android.app.data;
 
+import android.content.ContentProviderClient;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.ContentObserver;
@@ -92,6 +93,20 @@ public class TestUtilities extends AndroidTestCase {
         return testValues;
     }
 
+    /*
+        Closes the provider's connection to the database, for tests that open the database
+        with a WeatherDbHelper of their own.  The provider opens it again on its next call.
+     */
+    static void closeProviderDatabase(Context context) {
+        ContentProviderClient client = context.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        try {
+            client.getLocalContentProvider().shutdown();
+        } finally {
+            client.release();
+        }
+    }
+
     /*
         Students: You can uncomment this function once you have finished creating the
         LocationEntry part of the WeatherContract as well as the WeatherDbHelper.
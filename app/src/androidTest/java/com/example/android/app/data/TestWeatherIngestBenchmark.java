@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.app.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.example.android.app.data.WeatherContract.LocationEntry;
+import com.example.android.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Times writing daily forecast rows, reported as milliseconds per 1,000 rows under the
+    TestWeatherIngestBenchmark log tag, at 10k, 100k and 1M rows:
+    - the loop bulkInsert used to run, a SQLiteDatabase#insert per row,
+    - bulkInsert, which compiles one INSERT per call and binds every row to it.
+    Rows go in CHUNK at a time, one transaction each, so 1M of them fit in memory.
+    These take minutes, so they're @LargeTest: leave them out with -e size small or medium.
+ */
+public class TestWeatherIngestBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWeatherIngestBenchmark.class.getSimpleName();
+
+    private static final int CHUNK = 10000;
+    // The rows are unique per day and location, and a few thousand years of days is more than
+    // android.text.format.Time wants to normalize, so the days wrap onto more locations.
+    private static final int DAYS_PER_LOCATION = 1000;
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+
+    private long mLocationRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        resolver.delete(LocationEntry.CONTENT_URI, null, null);
+        Uri locationUri = resolver.insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        mLocationRowId = ContentUris.parseId(locationUri);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        clear();
+        super.tearDown();
+    }
+
+    private void clear() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    private ContentValues[] createChunk() {
+        ContentValues[] rows = new ContentValues[CHUNK];
+        for (int i = 0; i < CHUNK; i++) {
+            rows[i] = TestUtilities.createWeatherValues(mLocationRowId);
+        }
+        return rows;
+    }
+
+    /**
+     * Points the chunk at rows [first, first + CHUNK) of the synthetic forecast.
+     */
+    private void fillChunk(ContentValues[] rows, int first) {
+        for (int i = 0; i < rows.length; i++) {
+            int row = first + i;
+            rows[i].put(WeatherEntry.COLUMN_LOC_KEY, mLocationRowId + row / DAYS_PER_LOCATION);
+            rows[i].put(WeatherEntry.COLUMN_DATE,
+                    TestUtilities.TEST_DATE + (row % DAYS_PER_LOCATION) * DAY_IN_MILLIS);
+        }
+    }
+
+    /**
+     * What bulkInsert did before it had a compiled statement.
+     */
+    private static int insertOneByOne(SQLiteDatabase db, ContentValues[] rows) {
+        db.beginTransaction();
+        int count = 0;
+        try {
+            for (ContentValues value : rows) {
+                value.put(WeatherEntry.COLUMN_DATE,
+                        WeatherContract.normalizeDate(value.getAsLong(WeatherEntry.COLUMN_DATE)));
+                if (db.insert(WeatherEntry.TABLE_NAME, null, value) != -1) {
+                    count++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return count;
+    }
+
+    private int countRows() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private void runBenchmark(int rowCount) {
+        ContentResolver resolver = mContext.getContentResolver();
+        ContentValues[] rows = createChunk();
+
+        // The old loop needs the database itself; only one helper has it open at a time.
+        clear();
+        TestUtilities.closeProviderDatabase(mContext);
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        long loopMillis = 0;
+        try {
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            for (int first = 0; first < rowCount; first += CHUNK) {
+                fillChunk(rows, first);
+                long start = SystemClock.elapsedRealtime();
+                assertEquals(CHUNK, insertOneByOne(db, rows));
+                loopMillis += SystemClock.elapsedRealtime() - start;
+            }
+            assertEquals(rowCount, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+        } finally {
+            dbHelper.close();
+        }
+
+        clear();
+        long compiledMillis = 0;
+        for (int first = 0; first < rowCount; first += CHUNK) {
+            fillChunk(rows, first);
+            long start = SystemClock.elapsedRealtime();
+            assertEquals(CHUNK, resolver.bulkInsert(WeatherEntry.CONTENT_URI, rows));
+            compiledMillis += SystemClock.elapsedRealtime() - start;
+        }
+        assertEquals(rowCount, countRows());
+
+        int thousands = rowCount / 1000;
+        Log.d(LOG_TAG, "Weather ingest of " + rowCount + " rows, per 1000: insert loop " +
+                loopMillis / thousands + " ms, compiled statement " +
+                compiledMillis / thousands + " ms (" + loopMillis + " vs " + compiledMillis +
+                " ms in all)");
+    }
+
+    @LargeTest
+    public void testIngest10k() {
+        runBenchmark(10000);
+    }
+
+    @LargeTest
+    public void testIngest100k() {
+        runBenchmark(100000);
+    }
+
+    @LargeTest
+    public void testIngest1M() {
+        runBenchmark(1000000);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.app.sync;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Times time to first byte (connect + first byte) with and without a pre-warmed
+    connection, against a keep-alive server on this device.  The numbers are logged under the
+    TestConnectionPrewarm tag; on a real network the difference is much larger.
+ */
+public class TestConnectionPrewarm extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestConnectionPrewarm.class.getSimpleName();
+
+    private static final byte[] BODY = "{\"cod\":\"200\"}".getBytes();
+
+    /**
+     * Answers every request with a small keep-alive response, counting the connections.
+     */
+    private static class KeepAliveServer extends Thread {
+        final ServerSocket mServerSocket;
+        final AtomicInteger mConnections = new AtomicInteger();
+
+        KeepAliveServer() throws IOException {
+            mServerSocket = new ServerSocket(0);
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() +
+                    "/data/2.5/forecast/daily?q=99705";
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = mServerSocket.accept();
+                    mConnections.incrementAndGet();
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }.start();
+                }
+            } catch (IOException e) {
+                // Closed by the test.
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                OutputStream out = socket.getOutputStream();
+                String requestLine;
+                while ((requestLine = in.readLine()) != null) {
+                    String line;
+                    while ((line = in.readLine()) != null && !line.isEmpty()) {
+                        // Skip the headers.
+                    }
+                    boolean head = requestLine.startsWith("HEAD");
+                    out.write(("HTTP/1.1 200 OK\r\n" +
+                            "Content-Type: application/json\r\n" +
+                            "Content-Length: " + (head ? 0 : BODY.length) + "\r\n" +
+                            "Connection: keep-alive\r\n\r\n").getBytes("US-ASCII"));
+                    if (!head) {
+                        out.write(BODY);
+                    }
+                    out.flush();
+                }
+                socket.close();
+            } catch (IOException e) {
+                // The client hung up.
+            }
+        }
+
+        void shutDown() throws IOException {
+            mServerSocket.close();
+        }
+    }
+
+    private static long timeToFirstByte(ForecastTransport.Response response) {
+        return response.getConnectMillis() + response.getFirstByteMillis();
+    }
+
+    public void testPrewarmedRequestReusesConnection() throws Exception {
+        HttpForecastTransport transport = new HttpForecastTransport();
+
+        // Every server listens on a port of its own, so nothing is pooled for it yet.
+        KeepAliveServer cold = new KeepAliveServer();
+        cold.start();
+        long coldMillis;
+        try {
+            ForecastTransport.Response response =
+                    transport.execute(new ForecastTransport.Request(cold.getUrl()));
+            assertEquals(HttpURLConnection.HTTP_OK, response.getCode());
+            assertFalse(response.isPrewarmed());
+            coldMillis = timeToFirstByte(response);
+            response.close();
+        } finally {
+            cold.shutDown();
+        }
+
+        KeepAliveServer warm = new KeepAliveServer();
+        warm.start();
+        long warmMillis;
+        try {
+            transport.prewarm(warm.getUrl());
+            assertEquals(1, warm.mConnections.get());
+
+            ForecastTransport.Response response =
+                    transport.execute(new ForecastTransport.Request(warm.getUrl()));
+            assertEquals(HttpURLConnection.HTTP_OK, response.getCode());
+            assertTrue("Error: the request should know it was pre-warmed",
+                    response.isPrewarmed());
+            warmMillis = timeToFirstByte(response);
+            response.close();
+
+            assertEquals("Error: the request should have gone out on the pre-warmed connection",
+                    1, warm.mConnections.get());
+        } finally {
+            warm.shutDown();
+        }
+
+        Log.d(LOG_TAG, "Time to first byte: cold " + coldMillis + " ms, pre-warmed " +
+                warmMillis + " ms");
+    }
+}
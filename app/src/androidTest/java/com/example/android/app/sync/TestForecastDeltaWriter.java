@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.app.sync;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.example.android.app.data.WeatherContract;
+import com.example.android.app.data.WeatherContract.LocationEntry;
+import com.example.android.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Checks that the delta writer only touches the days that changed.
+ */
+public class TestForecastDeltaWriter extends AndroidTestCase {
+
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+    // December 20th, 2014, normalized the way the provider stores dates
+    private static final long TEST_DATE = WeatherContract.normalizeDate(1419033600000L);
+    private static final int DAYS = 14;
+
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+
+        ContentValues location = new ContentValues();
+        location.put(LocationEntry.COLUMN_LOCATION_SETTING, "99705");
+        location.put(LocationEntry.COLUMN_CITY_NAME, "North Pole");
+        location.put(LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        location.put(LocationEntry.COLUMN_COORD_LONG, -147.353);
+        Uri uri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, location);
+        mLocationId = ContentUris.parseId(uri);
+    }
+
+    private static List<ContentValues> createDays(long firstDate, double high) {
+        List<ContentValues> days = new ArrayList<ContentValues>();
+        for (int i = 0; i < DAYS; i++) {
+            ContentValues day = new ContentValues();
+            day.put(WeatherEntry.COLUMN_DATE,
+                    WeatherContract.normalizeDate(firstDate + i * DAY_IN_MILLIS));
+            day.put(WeatherEntry.COLUMN_HUMIDITY, 80);
+            day.put(WeatherEntry.COLUMN_PRESSURE, 1010.5);
+            day.put(WeatherEntry.COLUMN_WIND_SPEED, 5.5);
+            day.put(WeatherEntry.COLUMN_DEGREES, 1.1);
+            day.put(WeatherEntry.COLUMN_MAX_TEMP, high + i);
+            day.put(WeatherEntry.COLUMN_MIN_TEMP, high + i - 10);
+            day.put(WeatherEntry.COLUMN_SHORT_DESC, "Asteroids");
+            day.put(WeatherEntry.COLUMN_WEATHER_ID, 321);
+            days.add(day);
+        }
+        return days;
+    }
+
+    private int countRows() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?", new String[]{Long.toString(mLocationId)},
+                null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    public void testWritesOnlyTheDifference() throws Exception {
+        long cutoff = TEST_DATE - DAY_IN_MILLIS;
+
+        ForecastDeltaWriter.Result first = ForecastDeltaWriter.write(
+                mContext.getContentResolver(), mLocationId, createDays(TEST_DATE, 20), cutoff);
+        assertEquals(DAYS, first.inserted);
+        assertEquals(DAYS, countRows());
+
+        // Same forecast again: nothing to write.
+        ForecastDeltaWriter.Result same = ForecastDeltaWriter.write(
+                mContext.getContentResolver(), mLocationId, createDays(TEST_DATE, 20), cutoff);
+        assertEquals(0, same.getRowsWritten());
+        assertEquals(DAYS, same.unchanged);
+
+        // One day's high changed.
+        List<ContentValues> days = createDays(TEST_DATE, 20);
+        days.get(3).put(WeatherEntry.COLUMN_MAX_TEMP, 99.0);
+        ForecastDeltaWriter.Result oneDay = ForecastDeltaWriter.write(
+                mContext.getContentResolver(), mLocationId, days, cutoff);
+        assertEquals(1, oneDay.updated);
+        assertEquals(0, oneDay.inserted);
+        assertEquals(DAYS - 1, oneDay.unchanged);
+
+        // A day later: the first day becomes history and a new last day comes in.
+        long nextDay = WeatherContract.normalizeDate(TEST_DATE + DAY_IN_MILLIS);
+        ForecastDeltaWriter.Result moved = ForecastDeltaWriter.write(
+                mContext.getContentResolver(), mLocationId, createDays(nextDay, 21), TEST_DATE);
+        assertEquals(1, moved.inserted);
+        assertEquals(1, moved.deleted);
+        assertEquals(DAYS, countRows());
+    }
+
+    public void testShorterForecastDropsTheMissingDays() throws Exception {
+        long cutoff = TEST_DATE - DAY_IN_MILLIS;
+        ForecastDeltaWriter.write(mContext.getContentResolver(), mLocationId,
+                createDays(TEST_DATE, 20), cutoff);
+        assertEquals(DAYS, countRows());
+
+        // The upstream only sends the first week this time; the second week isn't its forecast
+        // any more.
+        List<ContentValues> firstWeek = createDays(TEST_DATE, 20).subList(0, 7);
+        ForecastDeltaWriter.Result shorter = ForecastDeltaWriter.write(
+                mContext.getContentResolver(), mLocationId, firstWeek, cutoff);
+        assertEquals(0, shorter.inserted);
+        assertEquals(7, shorter.unchanged);
+        assertEquals(DAYS - 7, shorter.deleted);
+        assertEquals(7, countRows());
+    }
+
+    public void testEmptyForecastLeavesTheStoredDaysAlone() throws Exception {
+        long cutoff = TEST_DATE - DAY_IN_MILLIS;
+        ForecastDeltaWriter.write(mContext.getContentResolver(), mLocationId,
+                createDays(TEST_DATE, 20), cutoff);
+
+        ForecastDeltaWriter.Result empty = ForecastDeltaWriter.write(
+                mContext.getContentResolver(), mLocationId, new ArrayList<ContentValues>(), cutoff);
+        assertEquals(0, empty.getRowsWritten());
+        assertEquals(DAYS, countRows());
+    }
+
+    public void testDiffIgnoresNumericTypes() {
+        ContentValues stored = new ContentValues();
+        stored.put(WeatherEntry.COLUMN_HUMIDITY, 80.0);
+        stored.put(WeatherEntry.COLUMN_SHORT_DESC, "Clear");
+
+        ContentValues incoming = new ContentValues();
+        incoming.put(WeatherEntry.COLUMN_DATE, TEST_DATE);
+        incoming.put(WeatherEntry.COLUMN_HUMIDITY, 80);
+        incoming.put(WeatherEntry.COLUMN_SHORT_DESC, "Clouds");
+
+        ContentValues changed = ForecastDeltaWriter.diff(stored, incoming);
+        assertEquals(1, changed.size());
+        assertEquals("Clouds", changed.getAsString(WeatherEntry.COLUMN_SHORT_DESC));
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.app.sync;
+
+import android.test.AndroidTestCase;
+
+/*
+    Checks how long a forecast response is taken to stay fresh from its caching headers.
+ */
+public class TestForecastFreshness extends AndroidTestCase {
+
+    private static final long NOW = 1419033600000L;
+    private static final long MINUTE_IN_MILLIS = 60 * 1000;
+
+    public void testMaxAge() {
+        assertEquals(NOW + 10 * MINUTE_IN_MILLIS,
+                HttpForecastTransport.parseFreshUntil("public, max-age=600", 0, 0, 0, NOW));
+        // What a cache in between already used up is gone.
+        assertEquals(NOW + 9 * MINUTE_IN_MILLIS,
+                HttpForecastTransport.parseFreshUntil("max-age=600", 60, 0, 0, NOW));
+        // max-age wins over Expires.
+        assertEquals(NOW + 10 * MINUTE_IN_MILLIS,
+                HttpForecastTransport.parseFreshUntil("Max-Age=600", 0,
+                        NOW + 60 * MINUTE_IN_MILLIS, NOW, NOW));
+    }
+
+    public void testExpires() {
+        // Relative to the server's Date, not our clock.
+        long serverDate = NOW - 5 * MINUTE_IN_MILLIS;
+        assertEquals(NOW + 10 * MINUTE_IN_MILLIS,
+                HttpForecastTransport.parseFreshUntil(null, 0,
+                        serverDate + 10 * MINUTE_IN_MILLIS, serverDate, NOW));
+        assertEquals(NOW + 10 * MINUTE_IN_MILLIS,
+                HttpForecastTransport.parseFreshUntil(null, 0,
+                        NOW + 10 * MINUTE_IN_MILLIS, 0, NOW));
+    }
+
+    public void testNotFresh() {
+        assertEquals(0, HttpForecastTransport.parseFreshUntil(null, 0, 0, 0, NOW));
+        assertEquals(0, HttpForecastTransport.parseFreshUntil("no-cache, max-age=600", 0, 0, 0,
+                NOW));
+        assertEquals(0, HttpForecastTransport.parseFreshUntil("no-store", 0,
+                NOW + 10 * MINUTE_IN_MILLIS, NOW, NOW));
+        assertEquals(0, HttpForecastTransport.parseFreshUntil("max-age=60", 120, 0, 0, NOW));
+        assertEquals(0, HttpForecastTransport.parseFreshUntil("max-age=soon", 0, 0, 0, NOW));
+    }
+}
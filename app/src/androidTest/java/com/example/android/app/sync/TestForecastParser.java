@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.app.sync;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Checks that the streaming ForecastParser reads the same values as the org.json path it
+    replaced, and benchmarks the two against each other.  The benchmark numbers are written to
+    logcat under the TestForecastParser tag.
+ */
+public class TestForecastParser extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastParser.class.getSimpleName();
+
+    private static final int BENCHMARK_ITERATIONS = 50;
+
+    /*
+        Builds an OWM style daily forecast.  The extra fields we don't store ("clouds", "rain",
+        the other temperatures, ...) are kept in so both parsers have to skip over them.
+     */
+    static String createForecastJson(int numDays) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",")
+                .append("\"coord\":{\"lon\":-122.083847,\"lat\":37.386051},")
+                .append("\"country\":\"US\",\"population\":0},")
+                .append("\"cod\":\"200\",\"message\":0.0123,\"cnt\":").append(numDays)
+                .append(",\"list\":[");
+        for (int i = 0; i < numDays; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"dt\":").append(1419033600L + i * 86400L)
+                    .append(",\"temp\":{\"day\":12.5,\"min\":").append(5.25 + i)
+                    .append(",\"max\":").append(15.75 + i)
+                    .append(",\"night\":6.1,\"eve\":11.2,\"morn\":5.3},")
+                    .append("\"pressure\":").append(1013.5 + i)
+                    .append(",\"humidity\":").append(40 + i)
+                    .append(",\"weather\":[{\"id\":").append(800 + (i % 4))
+                    .append(",\"main\":\"Clear\",\"description\":\"sky is clear\",\"icon\":\"01d\"}],")
+                    .append("\"speed\":").append(3.5 + i)
+                    .append(",\"deg\":").append(180 + i)
+                    .append(",\"clouds\":0,\"rain\":0.25}");
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    /*
+        The values we care about for one day, flattened so both parsers can be compared.
+     */
+    static String describeDay(double pressure, int humidity, double windSpeed,
+                              double windDirection, int high, int low, String description,
+                              int weatherId) {
+        return pressure + "/" + humidity + "/" + windSpeed + "/" + windDirection + "/" +
+                high + "/" + low + "/" + description + "/" + weatherId;
+    }
+
+    /*
+        This is the path SunshineSyncAdapter used before the streaming parser: read the whole
+        response into a String a line at a time, build the org.json tree, then pick the fields.
+     */
+    static List<String> parseWithJsonObject(InputStream in) throws IOException, JSONException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        StringBuffer buffer = new StringBuffer();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line + "\n");
+        }
+
+        JSONObject forecastJson = new JSONObject(buffer.toString());
+        JSONArray weatherArray = forecastJson.getJSONArray("list");
+        JSONObject cityJson = forecastJson.getJSONObject("city");
+        cityJson.getString("name");
+        cityJson.getJSONObject("coord").getDouble("lat");
+
+        List<String> days = new ArrayList<String>(weatherArray.length());
+        for (int i = 0; i < weatherArray.length(); i++) {
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+            JSONObject weatherObject = dayForecast.getJSONArray("weather").getJSONObject(0);
+            JSONObject temperatureObject = dayForecast.getJSONObject("temp");
+            days.add(describeDay(dayForecast.getDouble("pressure"),
+                    dayForecast.getInt("humidity"),
+                    dayForecast.getDouble("speed"),
+                    dayForecast.getDouble("deg"),
+                    temperatureObject.getInt("max"),
+                    temperatureObject.getInt("min"),
+                    weatherObject.getString("main"),
+                    weatherObject.getInt("id")));
+        }
+        return days;
+    }
+
+    static List<String> parseWithStreamingParser(InputStream in)
+            throws IOException, JSONException {
+        final List<String> days = new ArrayList<String>();
+        new ForecastParser().parse(in, new ForecastParser.Callback() {
+            @Override
+            public void onCity(String cityName, double latitude, double longitude) {
+            }
+
+            @Override
+            public void onDay(int index, ForecastParser.DayForecast day) {
+                days.add(describeDay(day.pressure, day.humidity, day.windSpeed,
+                        day.windDirection, day.high, day.low, day.description, day.weatherId));
+            }
+        });
+        return days;
+    }
+
+    public void testStreamingParserMatchesJsonObject() throws Exception {
+        byte[] payload = createForecastJson(14).getBytes("UTF-8");
+
+        List<String> expected = parseWithJsonObject(new ByteArrayInputStream(payload));
+        List<String> actual = parseWithStreamingParser(new ByteArrayInputStream(payload));
+
+        assertEquals("Error: Streaming parser returned a different number of days",
+                expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("Error: Streaming parser disagrees with org.json on day " + i,
+                    expected.get(i), actual.get(i));
+        }
+    }
+
+    public void testCityAndMessageCode() throws Exception {
+        byte[] payload = createForecastJson(1).getBytes("UTF-8");
+        final String[] cityName = new String[1];
+        final double[] coord = new double[2];
+
+        int messageCode = new ForecastParser().parse(new ByteArrayInputStream(payload),
+                new ForecastParser.Callback() {
+                    @Override
+                    public void onCity(String name, double latitude, double longitude) {
+                        cityName[0] = name;
+                        coord[0] = latitude;
+                        coord[1] = longitude;
+                    }
+
+                    @Override
+                    public void onDay(int index, ForecastParser.DayForecast day) {
+                    }
+                });
+
+        assertEquals(200, messageCode);
+        assertEquals("Mountain View", cityName[0]);
+        assertEquals(37.386051, coord[0], 0.000001);
+        assertEquals(-122.083847, coord[1], 0.000001);
+    }
+
+    public void testMalformedPayloadIsJsonException() throws Exception {
+        byte[] payload = "{\"list\":[{\"pressure\":".getBytes("UTF-8");
+        try {
+            parseWithStreamingParser(new ByteArrayInputStream(payload));
+            fail("Error: Truncated forecast should not parse");
+        } catch (IOException e) {
+            // A truncated stream looks the same as a dropped connection.
+        } catch (JSONException e) {
+            // Also acceptable, depending on where the reader notices.
+        }
+
+        payload = "{\"list\":[{\"pressure\":\"high\"}]}".getBytes("UTF-8");
+        try {
+            parseWithStreamingParser(new ByteArrayInputStream(payload));
+            fail("Error: Non numeric pressure should not parse");
+        } catch (JSONException e) {
+            // Expected, the server sent us garbage.
+        }
+    }
+
+    public void testMissingListIsJsonException() throws Exception {
+        byte[] payload = "{\"cod\":\"200\",\"city\":{\"name\":\"Mountain View\"}}"
+                .getBytes("UTF-8");
+        try {
+            parseWithStreamingParser(new ByteArrayInputStream(payload));
+            fail("Error: An OK forecast without days should not parse");
+        } catch (JSONException e) {
+            // Expected, there's nothing to store.
+        }
+
+        // An error response has no days to give, and that's fine.
+        payload = "{\"cod\":\"404\",\"message\":\"city not found\"}".getBytes("UTF-8");
+        assertTrue(parseWithStreamingParser(new ByteArrayInputStream(payload)).isEmpty());
+    }
+
+    /*
+        Benchmark: parse time, the total bytes allocated on this thread (garbage included) and
+        the peak heap in use above the starting point for each path.  Sizes cover the 14 day
+        forecast we request today and the larger payloads from the kiosk deployments.  Only the
+        allocation total is asserted on; the sampled peak is too noisy for that.
+     */
+    @SuppressWarnings("deprecation")
+    public void testParserBenchmark() throws Exception {
+        int[] sizes = {14, 16, 64, 256};
+        for (int numDays : sizes) {
+            byte[] payload = createForecastJson(numDays).getBytes("UTF-8");
+
+            // Warm up both paths so we aren't measuring class loading or the JIT.
+            parseWithJsonObject(new ByteArrayInputStream(payload));
+            parseWithStreamingParser(new ByteArrayInputStream(payload));
+
+            long[] legacy = measure(payload, false);
+            long[] streaming = measure(payload, true);
+            long legacyPeak = measurePeakHeap(payload, false);
+            long streamingPeak = measurePeakHeap(payload, true);
+
+            Log.i(LOG_TAG, String.format(
+                    "%d days (%d bytes): org.json %d us, %d bytes allocated/parse, " +
+                            "%d bytes peak heap | streaming %d us, %d bytes allocated/parse, " +
+                            "%d bytes peak heap",
+                    numDays, payload.length,
+                    legacy[0] / 1000, legacy[1], legacyPeak,
+                    streaming[0] / 1000, streaming[1], streamingPeak));
+
+            assertTrue("Error: Streaming parser allocated more bytes in total than the org.json " +
+                    "path for " + numDays + " days", streaming[1] <= legacy[1]);
+        }
+    }
+
+    /*
+        Returns {average nanoseconds per parse, average bytes allocated per parse}.  That's
+        everything allocated, garbage included, not the peak in use; see measurePeakHeap.
+     */
+    @SuppressWarnings("deprecation")
+    private static long[] measure(byte[] payload, boolean streaming) throws Exception {
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            InputStream in = new ByteArrayInputStream(payload);
+            if (streaming) {
+                parseWithStreamingParser(in);
+            } else {
+                parseWithJsonObject(in);
+            }
+        }
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        long allocated = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+        return new long[]{elapsed / BENCHMARK_ITERATIONS, allocated / BENCHMARK_ITERATIONS};
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /*
+        Returns the most heap seen in use while parsing, above what was in use after a GC
+        beforehand.  A second thread samples it every millisecond, so short peaks can slip by.
+     */
+    private static long measurePeakHeap(byte[] payload, boolean streaming) throws Exception {
+        Runtime.getRuntime().gc();
+        final long baseline = usedHeap();
+        final AtomicLong peak = new AtomicLong(baseline);
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread sampler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    long used = usedHeap();
+                    if (used > peak.get()) {
+                        peak.set(used);
+                    }
+                    SystemClock.sleep(1);
+                }
+            }
+        });
+        sampler.start();
+        try {
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                InputStream in = new ByteArrayInputStream(payload);
+                if (streaming) {
+                    parseWithStreamingParser(in);
+                } else {
+                    parseWithJsonObject(in);
+                }
+            }
+        } finally {
+            done.set(true);
+            sampler.join();
+        }
+        return peak.get() - baseline;
+    }
+}
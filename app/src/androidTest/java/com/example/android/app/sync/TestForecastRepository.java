@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.app.sync;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Checks when the forecast repository decides a location needs revalidating, and that a burst
+    of stale reads only starts one sync.  The syncs are stubbed out, nothing goes to the network.
+ */
+public class TestForecastRepository extends AndroidTestCase {
+
+    private static final long HOUR_IN_MILLIS = 60 * 60 * 1000;
+
+    private String mLocation;
+    private final List<SyncCoordinator.Callback> mRevalidations =
+            new ArrayList<SyncCoordinator.Callback>();
+    private ForecastRepository mRepository;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // The sync state is shared with the app, so every test gets a location of its own.
+        mLocation = "repository-test-" + System.nanoTime();
+        mRepository = new ForecastRepository(getContext(), new ForecastRepository.Revalidator() {
+            @Override
+            public void revalidate(String locationSetting, SyncCoordinator.Callback callback) {
+                mRevalidations.add(callback);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SyncState.setSyncedAt(getContext(), mLocation, 0);
+        SyncState.setFreshUntil(getContext(), mLocation, 0);
+        super.tearDown();
+    }
+
+    public void testStaleness() {
+        long now = System.currentTimeMillis();
+
+        assertTrue("Never synced should be stale", mRepository.isStale(mLocation));
+
+        SyncState.setSyncedAt(getContext(), mLocation, now - HOUR_IN_MILLIS);
+        assertFalse(mRepository.isStale(mLocation));
+
+        SyncState.setSyncedAt(getContext(), mLocation,
+                now - ForecastRepository.STALE_AFTER_MILLIS - HOUR_IN_MILLIS);
+        assertTrue(mRepository.isStale(mLocation));
+
+        // The upstream saying it's still fresh beats our own idea of stale.
+        SyncState.setFreshUntil(getContext(), mLocation, now + HOUR_IN_MILLIS);
+        assertFalse(mRepository.isStale(mLocation));
+    }
+
+    public void testFreshReadsDontRevalidate() {
+        SyncState.setSyncedAt(getContext(), mLocation, System.currentTimeMillis());
+
+        Cursor cursor = mRepository.query(ForecastRepository.getForecastUri(mLocation), null, null);
+        if (cursor != null) {
+            cursor.close();
+        }
+        assertEquals(1, mRepository.getReadCount());
+        assertEquals(0, mRepository.getRevalidationCount());
+        assertTrue(mRevalidations.isEmpty());
+    }
+
+    public void testStaleReadsAreDeduplicated() {
+        assertTrue(mRepository.revalidateIfStale(mLocation));
+        for (int i = 0; i < 5; i++) {
+            assertFalse("Only the first stale read should start a sync",
+                    mRepository.revalidateIfStale(mLocation));
+        }
+        assertEquals(1, mRepository.getRevalidationCount());
+        assertEquals(5, mRepository.getDeduplicatedCount());
+        assertEquals("Only one sync should have been asked for", 1, mRevalidations.size());
+
+        // Once the sync is done, a failed one isn't retried right away either.
+        mRevalidations.get(0).onSyncFinished(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN);
+        assertFalse(mRepository.revalidateIfStale(mLocation));
+        assertEquals(1, mRevalidations.size());
+    }
+}
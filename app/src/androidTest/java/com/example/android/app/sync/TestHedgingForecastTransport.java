@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.app.sync;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+
+/*
+    Checks that slow requests get hedged to a mirror, and that the faster answer wins.
+ */
+public class TestHedgingForecastTransport extends AndroidTestCase {
+
+    private static final String PRIMARY_URL =
+            "http://api.openweathermap.org/data/2.5/forecast/daily?q=99705";
+    private static final String MIRROR = "http://mirror.example.com:8080";
+    private static final long HEDGE_DELAY_MILLIS = 100;
+    private static final long SLOW_MILLIS = 1500;
+
+    /**
+     * Answers from a stub, taking longer for one of the hosts.
+     */
+    private static class HostLatencyTransport implements ForecastTransport {
+        private final StubForecastTransport mStub = new StubForecastTransport()
+                .setDefaultPayload("{\"cod\":\"200\"}".getBytes());
+        private final String mSlowHost;
+
+        HostLatencyTransport(String slowHost) {
+            mSlowHost = slowHost;
+        }
+
+        @Override
+        public Response execute(Request request) throws IOException {
+            if (mSlowHost.equals(Uri.parse(request.getUrl()).getHost())) {
+                SystemClock.sleep(SLOW_MILLIS);
+            }
+            return mStub.execute(request);
+        }
+
+        @Override
+        public void prewarm(String url) {
+        }
+
+        @Override
+        public long getTotalBytesRead() {
+            return mStub.getTotalBytesRead();
+        }
+    }
+
+    public void testSlowRequestIsHedged() throws Exception {
+        HedgingForecastTransport transport = new HedgingForecastTransport(
+                new HostLatencyTransport("api.openweathermap.org"), Arrays.asList(MIRROR),
+                HEDGE_DELAY_MILLIS);
+
+        long start = SystemClock.elapsedRealtime();
+        ForecastTransport.Response response =
+                transport.execute(new ForecastTransport.Request(PRIMARY_URL));
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        assertEquals(HttpURLConnection.HTTP_OK, response.getCode());
+        response.close();
+
+        assertTrue("Error: the hedge should have answered before the slow request, took " +
+                elapsed + " ms", elapsed < SLOW_MILLIS);
+        assertEquals(1, transport.getHedgesSent());
+        assertEquals(1, transport.getHedgesWon());
+    }
+
+    public void testFastRequestIsNotHedged() throws Exception {
+        HedgingForecastTransport transport = new HedgingForecastTransport(
+                new HostLatencyTransport("mirror.example.com"), Arrays.asList(MIRROR),
+                HEDGE_DELAY_MILLIS);
+
+        ForecastTransport.Response response =
+                transport.execute(new ForecastTransport.Request(PRIMARY_URL));
+        assertEquals(HttpURLConnection.HTTP_OK, response.getCode());
+        response.close();
+
+        assertEquals(0, transport.getHedgesSent());
+        assertEquals(0, transport.getHedgesWon());
+    }
+
+    public void testHedgeThatLosesIsNotCounted() throws Exception {
+        // The primary is past the hedge delay but still beats the slow mirror.
+        final long primaryMillis = 300;
+        ForecastTransport delegate = new HostLatencyTransport("mirror.example.com") {
+            @Override
+            public Response execute(Request request) throws IOException {
+                if ("api.openweathermap.org".equals(Uri.parse(request.getUrl()).getHost())) {
+                    SystemClock.sleep(primaryMillis);
+                }
+                return super.execute(request);
+            }
+        };
+        HedgingForecastTransport transport = new HedgingForecastTransport(delegate,
+                Arrays.asList(MIRROR), HEDGE_DELAY_MILLIS);
+
+        ForecastTransport.Response response =
+                transport.execute(new ForecastTransport.Request(PRIMARY_URL));
+        response.close();
+
+        assertEquals(1, transport.getHedgesSent());
+        assertEquals(0, transport.getHedgesWon());
+    }
+}
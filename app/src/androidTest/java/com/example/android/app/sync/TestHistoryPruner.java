@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.app.sync;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+import com.example.android.app.data.WeatherContract;
+import com.example.android.app.data.WeatherContract.LocationEntry;
+import com.example.android.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+
+/*
+    Checks that the pruner drops only the forecasts of locations that are no longer synced.
+ */
+public class TestHistoryPruner extends AndroidTestCase {
+
+    // December 20th, 2014, normalized the way the provider stores dates
+    private static final long TEST_DATE = WeatherContract.normalizeDate(1419033600000L);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private long insertLocation(String setting) {
+        ContentValues location = new ContentValues();
+        location.put(LocationEntry.COLUMN_LOCATION_SETTING, setting);
+        location.put(LocationEntry.COLUMN_CITY_NAME, setting);
+        location.put(LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        location.put(LocationEntry.COLUMN_COORD_LONG, -147.353);
+        long locationId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, location));
+
+        ContentValues day = new ContentValues();
+        day.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+        day.put(WeatherEntry.COLUMN_DATE, TEST_DATE);
+        day.put(WeatherEntry.COLUMN_HUMIDITY, 80);
+        day.put(WeatherEntry.COLUMN_PRESSURE, 1010.5);
+        day.put(WeatherEntry.COLUMN_WIND_SPEED, 5.5);
+        day.put(WeatherEntry.COLUMN_DEGREES, 1.1);
+        day.put(WeatherEntry.COLUMN_MAX_TEMP, 75);
+        day.put(WeatherEntry.COLUMN_MIN_TEMP, 65);
+        day.put(WeatherEntry.COLUMN_SHORT_DESC, "Asteroids");
+        day.put(WeatherEntry.COLUMN_WEATHER_ID, 321);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, day);
+        return locationId;
+    }
+
+    private int countRows(long locationId) {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?", new String[]{Long.toString(locationId)},
+                null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    public void testPrunesOnlyLocationsNoLongerSynced() throws Throwable {
+        long kept = insertLocation("99705");
+        long dropped = insertLocation("94043");
+
+        int pruned = HistoryPruner.prune(mContext.getContentResolver(), Arrays.asList("99705"));
+
+        assertEquals("Only the unsynced location should be pruned", 1, pruned);
+        assertEquals("The synced location should keep its forecast", 1, countRows(kept));
+        assertEquals("The unsynced location should lose its forecast", 0, countRows(dropped));
+    }
+}
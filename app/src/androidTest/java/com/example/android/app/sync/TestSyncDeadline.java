@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+
+/*
+    Checks that sync deadlines split their budget and cut off blocking work once it's spent.
+ */
+public class TestSyncDeadline extends AndroidTestCase {
+
+    public void testStageIsBoundedByParent() {
+        SyncDeadline parent = new SyncDeadline(SyncDeadline.STAGE_REQUEST, 1000);
+        SyncDeadline stage = parent.stage(SyncDeadline.STAGE_FETCH, 0.5f);
+        assertTrue("Error: a stage should only get its share",
+                stage.getRemainingMillis() <= 500);
+
+        // However big its share, a stage never outlives its parent.
+        SyncDeadline greedy = parent.stage(SyncDeadline.STAGE_PARSE, 10f);
+        assertTrue("Error: a stage shouldn't outlive its parent",
+                greedy.getRemainingMillis() <= parent.getRemainingMillis());
+        assertEquals(SyncDeadline.STAGE_PARSE, greedy.getStage());
+    }
+
+    public void testExpiredDeadline() {
+        SyncDeadline deadline = new SyncDeadline(SyncDeadline.STAGE_PERSIST, 0);
+        assertTrue(deadline.isExpired());
+        // 0 means no timeout at all to a socket, so an expired deadline still gives 1 ms.
+        assertEquals(1, deadline.getTimeoutMillis());
+        try {
+            deadline.check();
+            fail("Error: an expired deadline should fail its check");
+        } catch (SyncDeadline.ExceededException expected) {
+        }
+    }
+
+    public void testWrappedStreamStopsReadingAtDeadline() throws Exception {
+        SyncDeadline deadline = new SyncDeadline(SyncDeadline.STAGE_PARSE, 50);
+        InputStream in = deadline.wrap(new ByteArrayInputStream(new byte[]{1, 2, 3}));
+        assertEquals(1, in.read());
+
+        SystemClock.sleep(100);
+        try {
+            in.read();
+            fail("Error: reading past the deadline should fail");
+        } catch (SyncDeadline.ExceededException expected) {
+        }
+    }
+
+    public void testRequestTimeoutCapsStubLatency() throws Exception {
+        StubForecastTransport transport = new StubForecastTransport()
+                .setDefaultPayload("{}".getBytes())
+                .setLatencyMillis(1000);
+        long start = SystemClock.elapsedRealtime();
+        try {
+            transport.execute(new ForecastTransport.Request(
+                    "http://api.openweathermap.org/data/2.5/forecast/daily?q=99705")
+                    .setTimeoutMillis(50));
+            fail("Error: a request slower than its timeout should time out");
+        } catch (SocketTimeoutException expected) {
+        }
+        assertTrue("Error: the request should have given up at its timeout",
+                SystemClock.elapsedRealtime() - start < 1000);
+    }
+}
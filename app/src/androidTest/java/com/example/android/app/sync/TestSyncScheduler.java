@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.app.sync;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Checks the scheduling policy and replays a synthetic day against the fixed schedule.  The
+    request counts are written to logcat under the TestSyncScheduler tag.
+ */
+public class TestSyncScheduler extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestSyncScheduler.class.getSimpleName();
+
+    private static final long HOUR_IN_MILLIS = 60 * 60 * 1000;
+
+    private static SyncScheduler.Inputs inputs(long time, float changeRate, int battery,
+                                               boolean charging, boolean metered, boolean ui) {
+        return new SyncScheduler.Inputs(time, changeRate, battery, charging, metered, ui,
+                false, false);
+    }
+
+    public void testIntervalStaysWithinBounds() {
+        // Everything pushing for more syncs
+        SyncScheduler.Decision busiest = SyncScheduler.decide(
+                inputs(0, 1f, 100, true, false, true));
+        assertEquals(SyncScheduler.MIN_INTERVAL_SECONDS, busiest.intervalSeconds);
+
+        // Everything pushing for fewer
+        SyncScheduler.Decision quietest = SyncScheduler.decide(
+                inputs(0, 0f, 5, false, true, false));
+        assertEquals(SyncScheduler.MAX_INTERVAL_SECONDS, quietest.intervalSeconds);
+    }
+
+    public void testInputsMoveTheIntervalTheRightWay() {
+        int base = SyncScheduler.decide(inputs(0, 0.25f, 80, false, false, false)).intervalSeconds;
+
+        assertTrue("Visible UI should sync more often",
+                SyncScheduler.decide(inputs(0, 0.25f, 80, false, false, true)).intervalSeconds < base);
+        assertTrue("A changing forecast should sync more often",
+                SyncScheduler.decide(inputs(0, 0.5f, 80, false, false, false)).intervalSeconds < base);
+        assertTrue("Metered networks should sync less often",
+                SyncScheduler.decide(inputs(0, 0.25f, 80, false, true, false)).intervalSeconds > base);
+        assertTrue("A low battery should sync less often",
+                SyncScheduler.decide(inputs(0, 0.25f, 10, false, false, false)).intervalSeconds > base);
+    }
+
+    public void testLogLineRoundTrip() {
+        SyncScheduler.Inputs original = new SyncScheduler.Inputs(1419033600000L, 0.375f, 42,
+                true, false, true, false, true);
+        SyncScheduler.Inputs parsed = SyncScheduler.Inputs.fromLogLine(original.toLogLine());
+
+        assertNotNull(parsed);
+        assertEquals(original.timeMillis, parsed.timeMillis);
+        assertEquals(original.changeRate, parsed.changeRate);
+        assertEquals(original.batteryPercent, parsed.batteryPercent);
+        assertEquals(original.charging, parsed.charging);
+        assertEquals(original.metered, parsed.metered);
+        assertEquals(original.uiVisible, parsed.uiVisible);
+        assertEquals(original.widgetsVisible, parsed.widgetsVisible);
+        assertEquals(original.watchConnected, parsed.watchConnected);
+
+        assertNull(SyncScheduler.Inputs.fromLogLine("garbage"));
+    }
+
+    /*
+        A made up day: a quiet night on the charger, a morning commute on mobile data with the
+        app open, an office day on wifi, and an evening with the battery running low.
+     */
+    public void testReplayDay() {
+        List<SyncScheduler.Inputs> day = new ArrayList<SyncScheduler.Inputs>();
+        long start = 1419033600000L;
+        for (int hour = 0; hour <= 24; hour++) {
+            long time = start + hour * HOUR_IN_MILLIS;
+            if (hour < 7) {
+                day.add(inputs(time, 0.05f, 100, true, false, false));
+            } else if (hour < 9) {
+                day.add(inputs(time, 0.3f, 90, false, true, true));
+            } else if (hour < 18) {
+                day.add(inputs(time, 0.2f, 60, false, false, hour % 3 == 0));
+            } else {
+                day.add(inputs(time, 0.1f, 12, false, true, false));
+            }
+        }
+
+        int adaptive = SyncScheduler.replay(day);
+        int fixed = SyncScheduler.replayFixed(day);
+        Log.d(LOG_TAG, "Replayed day: " + adaptive + " syncs adaptive, " + fixed + " fixed");
+
+        assertTrue("The day should still get synced", adaptive >= 24 * 3600 / SyncScheduler.MAX_INTERVAL_SECONDS);
+        assertTrue("Adaptive schedule should never sync more than the fixed one", adaptive <= fixed);
+
+        // On N and later JobScheduler won't run the periodic job more often than this.
+        int clamped = SyncScheduler.replay(day, SunshineJobService.MIN_PERIOD_MILLIS_N);
+        assertTrue("A minimum period can only mean fewer syncs", clamped <= adaptive);
+        assertTrue("The clamped day should still get synced",
+                clamped >= 24 * 3600 / SyncScheduler.MAX_INTERVAL_SECONDS);
+    }
+}
@@ -24,6 +24,8 @@ import android.support.v7.widget.Toolbar;
 import android.view.Menu;
 import android.view.MenuItem;
 
+import com.example.android.app.sync.SyncScheduler;
+
 
 public class DetailActivity extends AppCompatActivity {
 
@@ -51,4 +53,16 @@ public class DetailActivity extends AppCompatActivity {
             supportPostponeEnterTransition();
         }
     }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        SyncScheduler.setUiVisible(true);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        SyncScheduler.setUiVisible(false);
+    }
 }
\ No newline at end of file
@@ -21,7 +21,6 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.CardView;
@@ -40,6 +39,7 @@ import android.widget.TextView;
 import com.bumptech.glide.Glide;
 import com.example.android.app.data.WeatherContract;
 import com.example.android.app.data.WeatherContract.WeatherEntry;
+import com.example.android.app.sync.ForecastRepository;
 
 /**
  * A placeholder fragment containing a simple view.
@@ -173,12 +173,10 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
         if ( null != mUri ) {
             // Now create and return a CursorLoader that will take care of
             // creating a Cursor for the data being displayed.
-            return new CursorLoader(
+            return ForecastRepository.getInstance(getActivity()).createLoader(
                     getActivity(),
                     mUri,
                     DETAIL_COLUMNS,
-                    null,
-                    null,
                     null
             );
         }
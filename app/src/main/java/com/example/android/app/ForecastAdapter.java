@@ -87,6 +87,8 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
         mEmptyView = emptyView;
         mICM = new ItemChoiceManager(this);
         mICM.setChoiceMode(choiceMode);
+        // A day keeps its row, and so its _ID, when a sync updates it.
+        setHasStableIds(true);
     }
 
     /*
@@ -203,6 +205,12 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
         return (position == 0 && mUseTodayLayout) ? VIEW_TYPE_TODAY : VIEW_TYPE_FUTURE_DAY;
     }
 
+    @Override
+    public long getItemId(int position) {
+        mCursor.moveToPosition(position);
+        return mCursor.getLong(ForecastFragment.COL_WEATHER_ID);
+    }
+
     @Override
     public int getItemCount() {
         if ( null == mCursor ) return 0;
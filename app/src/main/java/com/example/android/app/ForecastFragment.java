@@ -28,7 +28,6 @@ import android.preference.PreferenceManager;
 import android.support.design.widget.AppBarLayout;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v4.view.ViewCompat;
 import android.support.v7.widget.LinearLayoutManager;
@@ -46,6 +45,7 @@ import android.widget.AbsListView;
 import android.widget.TextView;
 
 import com.example.android.app.data.WeatherContract;
+import com.example.android.app.sync.ForecastRepository;
 import com.example.android.app.sync.SunshineSyncAdapter;
 
 /**
@@ -313,14 +313,12 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
 
         String locationSetting = Utility.getPreferredLocation(getActivity());
-        Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
-                locationSetting, System.currentTimeMillis());
+        Uri weatherForLocationUri = ForecastRepository.getForecastUri(locationSetting);
 
-        return new CursorLoader(getActivity(),
+        // Shows what we have right away, and catches up if a stale forecast gets refreshed.
+        return ForecastRepository.getInstance(getActivity()).createLoader(getActivity(),
                 weatherForLocationUri,
                 FORECAST_COLUMNS,
-                null,
-                null,
                 sortOrder);
     }
 
@@ -33,6 +33,7 @@ import android.view.View;
 import com.example.android.app.data.WeatherContract;
 import com.example.android.app.gcm.RegistrationIntentService;
 import com.example.android.app.sync.SunshineSyncAdapter;
+import com.example.android.app.sync.SyncScheduler;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 import com.google.android.gms.common.api.GoogleApiClient;
@@ -149,6 +150,9 @@ public class MainActivity extends AppCompatActivity
     @Override
     protected void onResume() {
         super.onResume();
+        SyncScheduler.setUiVisible(true);
+        // A refresh from here on shouldn't have to set up its connection from scratch.
+        SunshineSyncAdapter.prewarmConnection(this);
         String location = Utility.getPreferredLocation(this);
         // update the location in our second pane using the fragment manager
             if (location != null && !location.equals(mLocation)) {
@@ -164,6 +168,12 @@ public class MainActivity extends AppCompatActivity
         }
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        SyncScheduler.setUiVisible(false);
+    }
+
     @Override
     public void onItemSelected(Uri contentUri, ForecastAdapter.ForecastAdapterViewHolder vh) {
         if (mTwoPane) {
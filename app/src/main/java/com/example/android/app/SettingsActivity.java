@@ -24,9 +24,12 @@ import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceManager;
+import android.text.format.DateUtils;
 
 import com.example.android.app.data.WeatherContract;
+import com.example.android.app.sync.CircuitBreaker;
 import com.example.android.app.sync.SunshineSyncAdapter;
+import com.example.android.app.sync.SyncCoordinator;
 
 /**
  * A {@link PreferenceActivity} that presents a set of application settings.
@@ -50,6 +53,7 @@ public class SettingsActivity extends PreferenceActivity
         // For all preferences, attach an OnPreferenceChangeListener so the UI summary can be
         // updated when the preference changes.
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_location_key)));
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_saved_locations_key)));
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_units_key)));
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_art_pack_key)));
 
@@ -73,6 +77,7 @@ public class SettingsActivity extends PreferenceActivity
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
         sp.registerOnSharedPreferenceChangeListener(this);
         super.onResume();
+        updateSyncStatusSummary();
     }
 
     // Unregisters a shared preference change listener
@@ -83,6 +88,27 @@ public class SettingsActivity extends PreferenceActivity
         super.onPause();
     }
 
+    /**
+     * Shows whether sync can currently reach the weather service, from its circuit breaker.
+     */
+    private void updateSyncStatusSummary() {
+        Preference preference = findPreference(getString(R.string.pref_sync_status_key));
+        CircuitBreaker breaker =
+                CircuitBreaker.forEndpoint(this, CircuitBreaker.FORECAST_ENDPOINT);
+        switch (breaker.getState()) {
+            case CircuitBreaker.STATE_OPEN:
+                preference.setSummary(getString(R.string.pref_sync_status_open,
+                        DateUtils.formatDateTime(this, breaker.getRetryAtMillis(),
+                                DateUtils.FORMAT_SHOW_TIME)));
+                break;
+            case CircuitBreaker.STATE_HALF_OPEN:
+                preference.setSummary(getString(R.string.pref_sync_status_half_open));
+                break;
+            default:
+                preference.setSummary(getString(R.string.pref_sync_status_ok));
+        }
+    }
+
     /**
      * Attaches a listener so the summary is always updated with the preference value.
      * Also fires the listener once, to initialize the summary (so it shows up before the value
@@ -128,6 +154,9 @@ public class SettingsActivity extends PreferenceActivity
                     // is valid
                     preference.setSummary(stringValue);
             }
+        } else if (key.equals(getString(R.string.pref_saved_locations_key))
+                && stringValue.trim().length() == 0) {
+            preference.setSummary(getString(R.string.pref_saved_locations_empty));
         } else {
             // For other preferences, set the summary to the value's simple string representation.
             preference.setSummary(stringValue);
@@ -160,7 +189,13 @@ public class SettingsActivity extends PreferenceActivity
             }*/
 
             Utility.resetLocationStatus(this);
-            SunshineSyncAdapter.syncImmediately(this);
+            SyncCoordinator.getInstance(this).requestSync(Utility.getPreferredLocation(this), null);
+        } else if ( key.equals(getString(R.string.pref_saved_locations_key)) ) {
+            // fetch forecasts for any locations that were just added
+            SyncCoordinator coordinator = SyncCoordinator.getInstance(this);
+            for (String location : Utility.getSavedLocations(this)) {
+                coordinator.requestSync(location, null);
+            }
         } else if ( key.equals(getString(R.string.pref_units_key)) ) {
             // units have changed. update lists of weather entries accordingly
             getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
@@ -228,7 +263,7 @@ public class SettingsActivity extends PreferenceActivity
                 }
 
                 Utility.resetLocationStatus(this);
-                SunshineSyncAdapter.syncImmediately(this);
+                SyncCoordinator.getInstance(this).requestSync(address, null);
             }
         } else {
             super.onActivityResult(requestCode, resultCode, data);
@@ -26,7 +26,9 @@ import com.example.android.app.sync.SunshineSyncAdapter;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 public class Utility {
@@ -60,6 +62,26 @@ public class Utility {
                 context.getString(R.string.pref_location_default));
     }
 
+    /**
+     * Returns the extra locations the user wants forecasts for, besides the preferred one.
+     * They are stored as a single comma separated preference; blanks and duplicates are dropped.
+     *
+     * @param context Context used to get the SharedPreferences
+     * @return the saved location settings, in the order the user entered them
+     */
+    public static List<String> getSavedLocations(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String saved = prefs.getString(context.getString(R.string.pref_saved_locations_key), "");
+        List<String> locations = new ArrayList<String>();
+        for (String location : saved.split(",")) {
+            location = location.trim();
+            if (location.length() > 0 && !locations.contains(location)) {
+                locations.add(location);
+            }
+        }
+        return locations;
+    }
+
     public static boolean isMetric(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         return prefs.getString(context.getString(R.string.pref_units_key),
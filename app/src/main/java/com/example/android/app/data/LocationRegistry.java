@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.app.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process wide map from location setting to the _ID of its row in the location table, so sync
+ * doesn't have to query the provider for it every time.
+ *
+ * The map is loaded from the table the first time it's needed.  After that {@link WeatherProvider}
+ * keeps it up to date: inserts are added as they happen, and any other change to the location
+ * table (an update, a delete, or a batch that touched it) throws the map away to be loaded again
+ * on next use.  Writes that bypass the provider aren't seen.
+ */
+public final class LocationRegistry {
+
+    private static final String[] LOCATION_PROJECTION = {
+            WeatherContract.LocationEntry._ID,
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_ID = 0;
+    private static final int INDEX_LOCATION_SETTING = 1;
+
+    private static final LocationRegistry sInstance = new LocationRegistry();
+
+    // Null until loaded, and again after being invalidated.
+    private Map<String, Long> mIds;
+    private int mHits;
+    private int mMisses;
+    private int mLoads;
+
+    public static LocationRegistry getInstance() {
+        return sInstance;
+    }
+
+    private LocationRegistry() {
+    }
+
+    /**
+     * @return the _ID of the location with the given setting, or -1 if there is none.
+     */
+    public synchronized long getLocationId(ContentResolver resolver, String locationSetting) {
+        if (mIds == null) {
+            load(resolver);
+        }
+        Long id = mIds.get(locationSetting);
+        if (id == null) {
+            mMisses++;
+            return -1;
+        }
+        mHits++;
+        return id;
+    }
+
+    private void load(ContentResolver resolver) {
+        Map<String, Long> ids = new HashMap<String, Long>();
+        Cursor cursor = resolver.query(WeatherContract.LocationEntry.CONTENT_URI,
+                LOCATION_PROJECTION, null, null, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    ids.put(cursor.getString(INDEX_LOCATION_SETTING), cursor.getLong(INDEX_ID));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        mIds = ids;
+        mLoads++;
+    }
+
+    /**
+     * Called by the provider once a location row has been committed.
+     */
+    synchronized void onInserted(String locationSetting, long id) {
+        if (mIds != null && locationSetting != null) {
+            mIds.put(locationSetting, id);
+        }
+    }
+
+    /**
+     * Called by the provider when the location table changed in a way we can't follow.
+     */
+    synchronized void invalidate() {
+        mIds = null;
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * @return how many times the map was loaded from the table.
+     */
+    public synchronized int getLoadCount() {
+        return mLoads;
+    }
+
+    /**
+     * @return the fraction of lookups answered from memory, or -1 before the first lookup.
+     */
+    public synchronized float getHitRate() {
+        int lookups = mHits + mMisses;
+        return lookups == 0 ? -1 : (float) mHits / lookups;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mHits + " hits, " + mMisses + " misses, " + mLoads + " loads";
+    }
+}
@@ -43,6 +43,8 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_SYNC_METRICS = "sync_metrics";
+    public static final String PATH_HOURLY = "hourly";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
@@ -165,4 +167,147 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /* Inner class that defines the table contents of the hourly forecast table.  OWM forecasts
+       these in 3 hour steps, about 40 of them over the next five days. */
+    public static final class HourlyEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HOURLY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+
+        public static final String TABLE_NAME = "hourly";
+
+        // Query parameter capping how many steps come back.
+        public static final String QUERY_PARAM_LIMIT = "limit";
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // Start of the forecast step, stored as long in milliseconds since the epoch.  Unlike
+        // the daily dates this is not normalized.
+        public static final String COLUMN_TIME = "time";
+        // Weather id as returned by API, to identify the icon to be used
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+        // Short description of the weather, e.g "Clear"
+        public static final String COLUMN_SHORT_DESC = "short_desc";
+        // Temperature at the time of the step, stored as a float
+        public static final String COLUMN_TEMP = "temp";
+        // Humidity is stored as a float representing percentage
+        public static final String COLUMN_HUMIDITY = "humidity";
+        // Pressure is stored as a float in hPa
+        public static final String COLUMN_PRESSURE = "pressure";
+        // Windspeed is stored as a float
+        public static final String COLUMN_WIND_SPEED = "wind";
+        // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
+        public static final String COLUMN_DEGREES = "degrees";
+
+        public static Uri buildHourlyUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id);
+        }
+
+        public static Uri buildHourlyLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        /**
+         * @return the Uri for the next {@code count} steps from {@code startTime} on, for a
+         * location.
+         */
+        public static Uri buildHourlyLocationWithStartTime(
+                String locationSetting, long startTime, int count) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(COLUMN_TIME, Long.toString(startTime))
+                    .appendQueryParameter(QUERY_PARAM_LIMIT, Integer.toString(count)).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getStartTimeFromUri(Uri uri) {
+            String timeString = uri.getQueryParameter(COLUMN_TIME);
+            if (null != timeString && timeString.length() > 0)
+                return Long.parseLong(timeString);
+            else
+                return 0;
+        }
+
+        /**
+         * @return the limit in the Uri, or null if there is none.
+         */
+        public static String getLimitFromUri(Uri uri) {
+            String limit = uri.getQueryParameter(QUERY_PARAM_LIMIT);
+            return limit != null && limit.length() > 0 ? limit : null;
+        }
+    }
+
+    /*
+        Inner class that defines the table contents of the sync metrics table.  Each row times one
+        upstream request of a sync, phase by phase.  The table is a ring buffer: only the last
+        MAX_ROWS rows are kept, older ones are dropped as new ones come in.  Percentiles can be
+        read by sorting on a column, e.g. for the median total time:
+        query(CONTENT_URI, new String[]{COLUMN_TOTAL}, null, null, COLUMN_TOTAL + " LIMIT 1 OFFSET " + count / 2)
+     */
+    public static final class SyncMetricsEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_METRICS).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_METRICS;
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_METRICS;
+
+        public static final String TABLE_NAME = "sync_metrics";
+
+        // How many rows the table keeps.
+        public static final int MAX_ROWS = 500;
+
+        // When the sync this request belonged to started, in milliseconds since the epoch.
+        // Requests of the same sync share it.
+        public static final String COLUMN_SYNC_TIME = "sync_time";
+        // The location setting the request was sent for.
+        public static final String COLUMN_LOCATION_SETTING = "location_setting";
+        // The resulting LocationStatus, and the HTTP response code (0 if there was none).
+        public static final String COLUMN_STATUS = "status";
+        public static final String COLUMN_HTTP_CODE = "http_code";
+        // The state of the upstream's circuit breaker after the request.
+        public static final String COLUMN_BREAKER_STATE = "breaker_state";
+
+        // Phase durations, in milliseconds.  Connect includes resolving the host, which
+        // HttpURLConnection does as part of connecting, and is close to 0 when a pooled
+        // connection was reused.  Download is the time spent waiting on the network while
+        // parsing, parse the rest of the parse.  Fan-out is null until the consumers have run,
+        // and stays null for locations that don't fan out.
+        public static final String COLUMN_CONNECT = "connect";
+        public static final String COLUMN_FIRST_BYTE = "first_byte";
+        public static final String COLUMN_DOWNLOAD = "download";
+        public static final String COLUMN_PARSE = "parse";
+        public static final String COLUMN_DB_WRITE = "db_write";
+        public static final String COLUMN_FAN_OUT = "fan_out";
+        public static final String COLUMN_TOTAL = "total";
+
+        // Bytes read off the wire (compressed), and forecast rows written.
+        public static final String COLUMN_BYTES = "bytes";
+        public static final String COLUMN_ROWS = "rows";
+
+        // The stage that ran out of its share of the sync's time budget and was cut short:
+        // "fetch", "parse", "persist", "hourly" or "fan-out", "request" if the sync ran out
+        // before the request was sent, or "sync" if the whole sync's budget was gone before the
+        // request got a worker or finished.  Null if everything made it.
+        public static final String COLUMN_TIMED_OUT_STAGE = "timed_out_stage";
+
+        // 1 if the request went out on a connection warmed up ahead of it, 0 otherwise.  Time to
+        // first byte is connect + first_byte; comparing it between the two shows what the
+        // pre-warm saves.
+        public static final String COLUMN_PREWARMED = "prewarmed";
+
+        public static Uri buildSyncMetricsUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id);
+        }
+    }
 }
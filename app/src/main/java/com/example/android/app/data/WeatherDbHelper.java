@@ -18,8 +18,12 @@ package com.example.android.app.data;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
+import android.util.Log;
 
+import com.example.android.app.data.WeatherContract.HourlyEntry;
 import com.example.android.app.data.WeatherContract.LocationEntry;
+import com.example.android.app.data.WeatherContract.SyncMetricsEntry;
 import com.example.android.app.data.WeatherContract.WeatherEntry;
 
 /**
@@ -27,13 +31,24 @@ import com.example.android.app.data.WeatherContract.WeatherEntry;
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
-    // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    private static final String LOG_TAG = WeatherDbHelper.class.getSimpleName();
+
+    // If you change the database schema, you must increment the database version, change
+    // onCreate and add a step to upgradeTo that takes the previous version there.
+    static final int DATABASE_VERSION = 9;
+
+    // The oldest version upgradeTo can start from.  Anything older is dropped and built again.
+    static final int MIN_MIGRATABLE_VERSION = 2;
 
     static final String DATABASE_NAME = "weather.db";
 
+    static final String INDEX_WEATHER_LOCATION_DATE = "weather_location_date";
+
     public WeatherDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // In WAL mode the loaders and widgets read the last committed forecast from a pool of
+        // reader connections while a sync is writing, instead of waiting for it to commit.
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
@@ -75,24 +90,285 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
 
                 // To assure the application have just one weather entry per day
-                // per location, it's created a UNIQUE constraint with REPLACE strategy
+                // per location, it's created a UNIQUE constraint.  No REPLACE strategy: that
+                // would delete the stored row and insert a new one with a new _ID, so the
+                // provider updates the row for a day it has instead.
                 " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
-                WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
+                WeatherEntry.COLUMN_LOC_KEY + "));";
+
+        final String SQL_CREATE_HOURLY_TABLE = "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+
+                // the ID of the location entry associated with this weather data
+                HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_TIME + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                HourlyEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+
+                HourlyEntry.COLUMN_TEMP + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+
+                // Set up the location column as a foreign key to location table.
+                " FOREIGN KEY (" + HourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+                // One row per step per location.  With the location first, the index SQLite
+                // builds for this constraint also answers "the next N steps for location X"
+                // straight from the index, in time order, so no separate index is needed.
+                " UNIQUE (" + HourlyEntry.COLUMN_LOC_KEY + ", " +
+                HourlyEntry.COLUMN_TIME + ") ON CONFLICT REPLACE);";
+
+        final String SQL_CREATE_SYNC_METRICS_TABLE = "CREATE TABLE " + SyncMetricsEntry.TABLE_NAME + " (" +
+                SyncMetricsEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                SyncMetricsEntry.COLUMN_SYNC_TIME + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_LOCATION_SETTING + " TEXT NOT NULL, " +
+                SyncMetricsEntry.COLUMN_STATUS + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_HTTP_CODE + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_BREAKER_STATE + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_CONNECT + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_FIRST_BYTE + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_DOWNLOAD + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_PARSE + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_DB_WRITE + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_FAN_OUT + " INTEGER, " +
+                SyncMetricsEntry.COLUMN_TOTAL + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_BYTES + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_ROWS + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_TIMED_OUT_STAGE + " TEXT, " +
+                SyncMetricsEntry.COLUMN_PREWARMED + " INTEGER NOT NULL DEFAULT 0 " +
+                " );";
+
+        // Keeps the metrics table a ring buffer: every insert drops whatever fell out of the
+        // last MAX_ROWS.  AUTOINCREMENT ids never get reused, so this is by age.
+        final String SQL_CREATE_SYNC_METRICS_TRIGGER = "CREATE TRIGGER " +
+                SyncMetricsEntry.TABLE_NAME + "_ring AFTER INSERT ON " + SyncMetricsEntry.TABLE_NAME +
+                " BEGIN DELETE FROM " + SyncMetricsEntry.TABLE_NAME +
+                " WHERE " + SyncMetricsEntry._ID + " <= NEW." + SyncMetricsEntry._ID +
+                " - " + SyncMetricsEntry.MAX_ROWS + "; END;";
+
+        // Every weather query is for one location, then a day or the days from one on.  The
+        // UNIQUE (date, location_id) index leads with the date, so it can't find a location's
+        // rows without reading the others too.  This one leads with the location, hands the rows
+        // back in date order, and carries what the forecast list, the widgets, Muzei and the
+        // notification show, so those never have to go to the table itself.
+        final String SQL_CREATE_WEATHER_LOCATION_DATE_INDEX = "CREATE INDEX " +
+                INDEX_WEATHER_LOCATION_DATE + " ON " + WeatherEntry.TABLE_NAME + " (" +
+                WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                WeatherEntry.COLUMN_MIN_TEMP + ");";
 
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_METRICS_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_METRICS_TRIGGER);
     }
 
+    /**
+     * Brings the database up to date one version at a time, keeping what's in it.  Throwing
+     * away the cached forecasts would leave the app empty until its next sync, and have every
+     * device that just updated hit the upstream at once.
+     *
+     * SQLiteOpenHelper runs this in a transaction, so a failed step leaves the old version as it
+     * was, to be tried again on the next open.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
-        // Note that this only fires if you change the version number for your database.
-        // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+        if (oldVersion < MIN_MIGRATABLE_VERSION) {
+            Log.w(LOG_TAG, "Can't migrate version " + oldVersion + ", starting over");
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncMetricsEntry.TABLE_NAME);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
+            onCreate(sqLiteDatabase);
+            return;
+        }
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            long start = SystemClock.elapsedRealtime();
+            upgradeTo(sqLiteDatabase, version);
+            Log.d(LOG_TAG, "Migrated to version " + version + " in " +
+                    (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+    }
+
+    /**
+     * Takes the database from the version before this one to this one.
+     *
+     * Each step is written against the schema as it was at its version, not as it is now:
+     * a step that created a table as onCreate does today would clash with the steps after it.
+     */
+    static void upgradeTo(SQLiteDatabase db, int version) {
+        switch (version) {
+            case 3:
+                db.execSQL("CREATE TABLE " + SyncMetricsEntry.TABLE_NAME + " (" +
+                        SyncMetricsEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                        SyncMetricsEntry.COLUMN_SYNC_TIME + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_LOCATION_SETTING + " TEXT NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_STATUS + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_HTTP_CODE + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_BREAKER_STATE + " INTEGER NOT NULL, " +
+                        // Dropped again in version 9.
+                        "dns INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_CONNECT + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_FIRST_BYTE + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_DOWNLOAD + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_PARSE + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_DB_WRITE + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_FAN_OUT + " INTEGER, " +
+                        SyncMetricsEntry.COLUMN_TOTAL + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_BYTES + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_ROWS + " INTEGER NOT NULL " +
+                        " );");
+                db.execSQL("CREATE TRIGGER " +
+                        SyncMetricsEntry.TABLE_NAME + "_ring AFTER INSERT ON " +
+                        SyncMetricsEntry.TABLE_NAME +
+                        " BEGIN DELETE FROM " + SyncMetricsEntry.TABLE_NAME +
+                        " WHERE " + SyncMetricsEntry._ID + " <= NEW." + SyncMetricsEntry._ID +
+                        " - " + SyncMetricsEntry.MAX_ROWS + "; END;");
+                break;
+            case 4:
+                db.execSQL("CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                        HourlyEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                        HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                        HourlyEntry.COLUMN_TIME + " INTEGER NOT NULL, " +
+                        HourlyEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                        HourlyEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+                        HourlyEntry.COLUMN_TEMP + " REAL NOT NULL, " +
+                        HourlyEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                        HourlyEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                        HourlyEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                        HourlyEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+                        " FOREIGN KEY (" + HourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                        LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+                        " UNIQUE (" + HourlyEntry.COLUMN_LOC_KEY + ", " +
+                        HourlyEntry.COLUMN_TIME + ") ON CONFLICT REPLACE);");
+                break;
+            case 5:
+                db.execSQL("ALTER TABLE " + SyncMetricsEntry.TABLE_NAME + " ADD COLUMN " +
+                        SyncMetricsEntry.COLUMN_TIMED_OUT_STAGE + " TEXT");
+                break;
+            case 6:
+                db.execSQL("ALTER TABLE " + SyncMetricsEntry.TABLE_NAME + " ADD COLUMN " +
+                        SyncMetricsEntry.COLUMN_PREWARMED + " INTEGER NOT NULL DEFAULT 0");
+                break;
+            case 7:
+                db.execSQL("CREATE INDEX " + INDEX_WEATHER_LOCATION_DATE + " ON " +
+                        WeatherEntry.TABLE_NAME + " (" +
+                        WeatherEntry.COLUMN_LOC_KEY + ", " +
+                        WeatherEntry.COLUMN_DATE + ", " +
+                        WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                        WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                        WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                        WeatherEntry.COLUMN_MIN_TEMP + ");");
+                break;
+            case 8: {
+                // SQLite can't change a constraint in place, so the weather table is copied into
+                // one without ON CONFLICT REPLACE, keeping every row's _ID.
+                final String columns = WeatherEntry._ID + ", " +
+                        WeatherEntry.COLUMN_LOC_KEY + ", " +
+                        WeatherEntry.COLUMN_DATE + ", " +
+                        WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                        WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                        WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                        WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                        WeatherEntry.COLUMN_HUMIDITY + ", " +
+                        WeatherEntry.COLUMN_PRESSURE + ", " +
+                        WeatherEntry.COLUMN_WIND_SPEED + ", " +
+                        WeatherEntry.COLUMN_DEGREES;
+                db.execSQL("CREATE TABLE " + WeatherEntry.TABLE_NAME + "_new (" +
+                        WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                        WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                        WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                        WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                        WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+                        WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+                        WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+                        WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                        WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                        WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                        WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+                        " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                        LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+                        " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
+                        WeatherEntry.COLUMN_LOC_KEY + "));");
+                db.execSQL("INSERT INTO " + WeatherEntry.TABLE_NAME + "_new (" + columns +
+                        ") SELECT " + columns + " FROM " + WeatherEntry.TABLE_NAME);
+                // Takes weather_location_date with it.
+                db.execSQL("DROP TABLE " + WeatherEntry.TABLE_NAME);
+                db.execSQL("ALTER TABLE " + WeatherEntry.TABLE_NAME + "_new RENAME TO " +
+                        WeatherEntry.TABLE_NAME);
+                db.execSQL("CREATE INDEX " + INDEX_WEATHER_LOCATION_DATE + " ON " +
+                        WeatherEntry.TABLE_NAME + " (" +
+                        WeatherEntry.COLUMN_LOC_KEY + ", " +
+                        WeatherEntry.COLUMN_DATE + ", " +
+                        WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                        WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                        WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                        WeatherEntry.COLUMN_MIN_TEMP + ");");
+                break;
+            }
+            case 9: {
+                // The dns column was never filled in, since HttpURLConnection resolves as part
+                // of connecting.  SQLite can't drop a column, so the metrics are copied into a
+                // table without it; the ring trigger goes with the old table.
+                final String columns = SyncMetricsEntry._ID + ", " +
+                        SyncMetricsEntry.COLUMN_SYNC_TIME + ", " +
+                        SyncMetricsEntry.COLUMN_LOCATION_SETTING + ", " +
+                        SyncMetricsEntry.COLUMN_STATUS + ", " +
+                        SyncMetricsEntry.COLUMN_HTTP_CODE + ", " +
+                        SyncMetricsEntry.COLUMN_BREAKER_STATE + ", " +
+                        SyncMetricsEntry.COLUMN_CONNECT + ", " +
+                        SyncMetricsEntry.COLUMN_FIRST_BYTE + ", " +
+                        SyncMetricsEntry.COLUMN_DOWNLOAD + ", " +
+                        SyncMetricsEntry.COLUMN_PARSE + ", " +
+                        SyncMetricsEntry.COLUMN_DB_WRITE + ", " +
+                        SyncMetricsEntry.COLUMN_FAN_OUT + ", " +
+                        SyncMetricsEntry.COLUMN_TOTAL + ", " +
+                        SyncMetricsEntry.COLUMN_BYTES + ", " +
+                        SyncMetricsEntry.COLUMN_ROWS + ", " +
+                        SyncMetricsEntry.COLUMN_TIMED_OUT_STAGE + ", " +
+                        SyncMetricsEntry.COLUMN_PREWARMED;
+                db.execSQL("CREATE TABLE " + SyncMetricsEntry.TABLE_NAME + "_new (" +
+                        SyncMetricsEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                        SyncMetricsEntry.COLUMN_SYNC_TIME + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_LOCATION_SETTING + " TEXT NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_STATUS + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_HTTP_CODE + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_BREAKER_STATE + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_CONNECT + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_FIRST_BYTE + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_DOWNLOAD + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_PARSE + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_DB_WRITE + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_FAN_OUT + " INTEGER, " +
+                        SyncMetricsEntry.COLUMN_TOTAL + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_BYTES + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_ROWS + " INTEGER NOT NULL, " +
+                        SyncMetricsEntry.COLUMN_TIMED_OUT_STAGE + " TEXT, " +
+                        SyncMetricsEntry.COLUMN_PREWARMED + " INTEGER NOT NULL DEFAULT 0 " +
+                        " );");
+                db.execSQL("INSERT INTO " + SyncMetricsEntry.TABLE_NAME + "_new (" + columns +
+                        ") SELECT " + columns + " FROM " + SyncMetricsEntry.TABLE_NAME);
+                db.execSQL("DROP TABLE " + SyncMetricsEntry.TABLE_NAME);
+                db.execSQL("ALTER TABLE " + SyncMetricsEntry.TABLE_NAME + "_new RENAME TO " +
+                        SyncMetricsEntry.TABLE_NAME);
+                db.execSQL("CREATE TRIGGER " +
+                        SyncMetricsEntry.TABLE_NAME + "_ring AFTER INSERT ON " +
+                        SyncMetricsEntry.TABLE_NAME +
+                        " BEGIN DELETE FROM " + SyncMetricsEntry.TABLE_NAME +
+                        " WHERE " + SyncMetricsEntry._ID + " <= NEW." + SyncMetricsEntry._ID +
+                        " - " + SyncMetricsEntry.MAX_ROWS + "; END;");
+                break;
+            }
+            default:
+                throw new IllegalStateException("No migration to version " + version);
+        }
     }
 }
@@ -17,14 +17,26 @@ package com.example.android.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 public class WeatherProvider extends ContentProvider {
+    private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
 
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
@@ -33,9 +45,20 @@ public class WeatherProvider extends ContentProvider {
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
+    static final int HOURLY = 200;
+    static final int HOURLY_WITH_LOCATION = 201;
     static final int LOCATION = 300;
+    static final int SYNC_METRICS = 400;
+    static final int SYNC_METRICS_ID = 401;
+
+    // While applyBatch runs, the Uris its operations changed are collected here instead of being
+    // notified one row at a time.
+    private final ThreadLocal<Set<Uri>> mBatchChanges = new ThreadLocal<Set<Uri>>();
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    // Package-private, like the selections below, so TestQueryPlans can check the SQL they
+    // make against the schema's indexes.
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    static final SQLiteQueryBuilder sHourlyByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -49,25 +72,40 @@ public class WeatherProvider extends ContentProvider {
                         "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
                         " = " + WeatherContract.LocationEntry.TABLE_NAME +
                         "." + WeatherContract.LocationEntry._ID);
+
+        //hourly INNER JOIN location ON hourly.location_id = location._id
+        sHourlyByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
+        sHourlyByLocationSettingQueryBuilder.setTables(
+                WeatherContract.HourlyEntry.TABLE_NAME + " INNER JOIN " +
+                        WeatherContract.LocationEntry.TABLE_NAME +
+                        " ON " + WeatherContract.HourlyEntry.TABLE_NAME +
+                        "." + WeatherContract.HourlyEntry.COLUMN_LOC_KEY +
+                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                        "." + WeatherContract.LocationEntry._ID);
     }
 
     //location.location_setting = ?
-    private static final String sLocationSettingSelection =
+    static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
     //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
+    static final String sLocationSettingWithStartDateSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
     //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
+    static final String sLocationSettingAndDaySelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    //date = ? AND location_id = ?
+    private static final String sDateAndLocationIdSelection =
+            WeatherContract.WeatherEntry.COLUMN_DATE + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?";
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
@@ -93,6 +131,31 @@ public class WeatherProvider extends ContentProvider {
         );
     }
 
+    //location.location_setting = ? AND time >= ?
+    static final String sHourlyLocationSettingWithStartTimeSelection =
+            WeatherContract.LocationEntry.TABLE_NAME +
+                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                    WeatherContract.HourlyEntry.COLUMN_TIME + " >= ? ";
+
+    private Cursor getHourlyByLocationSetting(Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.HourlyEntry.getLocationSettingFromUri(uri);
+        long startTime = WeatherContract.HourlyEntry.getStartTimeFromUri(uri);
+
+        if (sortOrder == null) {
+            // The limit only makes sense in time order.
+            sortOrder = WeatherContract.HourlyEntry.COLUMN_TIME + " ASC";
+        }
+        return sHourlyByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+                projection,
+                sHourlyLocationSettingWithStartTimeSelection,
+                new String[]{locationSetting, Long.toString(startTime)},
+                null,
+                null,
+                sortOrder,
+                WeatherContract.HourlyEntry.getLimitFromUri(uri)
+        );
+    }
+
     private Cursor getWeatherByLocationSettingAndDate(
             Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
@@ -129,7 +192,13 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*", WEATHER_WITH_LOCATION);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, HOURLY);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*", HOURLY_WITH_LOCATION);
+
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_METRICS, SYNC_METRICS);
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_METRICS + "/#", SYNC_METRICS_ID);
         return matcher;
     }
 
@@ -162,8 +231,16 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case WEATHER:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
+            case HOURLY:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
+            case HOURLY_WITH_LOCATION:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case SYNC_METRICS:
+                return WeatherContract.SyncMetricsEntry.CONTENT_TYPE;
+            case SYNC_METRICS_ID:
+                return WeatherContract.SyncMetricsEntry.CONTENT_ITEM_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -200,6 +277,24 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "hourly/*"
+            case HOURLY_WITH_LOCATION: {
+                retCursor = getHourlyByLocationSetting(uri, projection, sortOrder);
+                break;
+            }
+            // "hourly"
+            case HOURLY: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.HourlyEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
             // "location"
             case LOCATION: {
                 retCursor = mOpenHelper.getReadableDatabase().query(
@@ -213,6 +308,32 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "sync_metrics"
+            case SYNC_METRICS: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.SyncMetricsEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "sync_metrics/#"
+            case SYNC_METRICS_ID: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.SyncMetricsEntry.TABLE_NAME,
+                        projection,
+                        WeatherContract.SyncMetricsEntry._ID + " = ?",
+                        new String[]{Long.toString(ContentUris.parseId(uri))},
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -232,26 +353,46 @@ public class WeatherProvider extends ContentProvider {
 
         switch (match) {
             case WEATHER: {
-                normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                long _id = upsertWeather(db, values);
                 if ( _id > 0 )
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
             }
+            case HOURLY: {
+                long _id = db.insert(WeatherContract.HourlyEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = WeatherContract.HourlyEntry.buildHourlyUri(_id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                break;
+            }
             case LOCATION: {
                 long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
                 if ( _id > 0 )
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                // Inside a batch the row isn't committed yet; applyBatch takes care of it then.
+                if (mBatchChanges.get() == null) {
+                    LocationRegistry.getInstance().onInserted(values.getAsString(
+                            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING), _id);
+                }
+                break;
+            }
+            case SYNC_METRICS: {
+                long _id = db.insert(WeatherContract.SyncMetricsEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = WeatherContract.SyncMetricsEntry.buildSyncMetricsUri(_id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
             }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return returnUri;
     }
 
@@ -267,16 +408,27 @@ public class WeatherProvider extends ContentProvider {
                 rowsDeleted = db.delete(
                         WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
                 break;
+            case HOURLY:
+                rowsDeleted = db.delete(
+                        WeatherContract.HourlyEntry.TABLE_NAME, selection, selectionArgs);
+                break;
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    LocationRegistry.getInstance().invalidate();
+                }
+                break;
+            case SYNC_METRICS:
+                rowsDeleted = db.delete(
+                        WeatherContract.SyncMetricsEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsDeleted;
     }
@@ -302,15 +454,27 @@ public class WeatherProvider extends ContentProvider {
                 rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
                         selectionArgs);
                 break;
+            case HOURLY:
+                rowsUpdated = db.update(WeatherContract.HourlyEntry.TABLE_NAME, values, selection,
+                        selectionArgs);
+                break;
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                if (rowsUpdated != 0) {
+                    LocationRegistry.getInstance().invalidate();
+                }
+                break;
+            case SYNC_METRICS_ID:
+                rowsUpdated = db.update(WeatherContract.SyncMetricsEntry.TABLE_NAME, values,
+                        WeatherContract.SyncMetricsEntry._ID + " = ?",
+                        new String[]{Long.toString(ContentUris.parseId(uri))});
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsUpdated;
     }
@@ -321,27 +485,226 @@ public class WeatherProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
-                db.beginTransaction();
-                int returnCount = 0;
+                db.beginTransactionNonExclusive();
+                int returnCount;
+                try {
+                    returnCount = bulkInsertWeather(db, values);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                notifyChange(uri);
+                return returnCount;
+            case HOURLY: {
+                // One transaction for the whole forecast, so ~40 steps cost one journal sync
+                // rather than 40.
+                db.beginTransactionNonExclusive();
+                int hourlyCount = 0;
                 try {
                     for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                        long _id = db.insert(WeatherContract.HourlyEntry.TABLE_NAME, null, value);
                         if (_id != -1) {
-                            returnCount++;
+                            hourlyCount++;
                         }
                     }
                     db.setTransactionSuccessful();
                 } finally {
                     db.endTransaction();
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
-                return returnCount;
+                notifyChange(uri);
+                return hourlyCount;
+            }
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * Writes the weather rows with one compiled UPDATE and one compiled INSERT, binding each
+     * row's values to them by index, instead of having {@link SQLiteDatabase} build and compile
+     * the same SQL again for every row.  A row for a day and location we have already is
+     * updated in place, like {@link #upsertWeather} does.  The columns are those of the first
+     * row; a row with any others takes the slow path.  Must be called in a transaction.
+     *
+     * @return how many rows were written.
+     */
+    private int bulkInsertWeather(SQLiteDatabase db, ContentValues[] values) {
+        int returnCount = 0;
+        String[] columns = values.length > 0
+                ? values[0].keySet().toArray(new String[values[0].size()])
+                : new String[0];
+        int dateIndex = -1;
+        int locationIndex = -1;
+        for (int i = 0; i < columns.length; i++) {
+            if (WeatherContract.WeatherEntry.COLUMN_DATE.equals(columns[i])) {
+                dateIndex = i;
+            } else if (WeatherContract.WeatherEntry.COLUMN_LOC_KEY.equals(columns[i])) {
+                locationIndex = i;
+            }
+        }
+        if (dateIndex < 0 || locationIndex < 0) {
+            // Without a day and location there's nothing to find the stored row by.
+            for (ContentValues value : values) {
+                if (upsertWeather(db, value) != -1) {
+                    returnCount++;
+                }
+            }
+            return returnCount;
+        }
+
+        StringBuilder update = new StringBuilder("UPDATE ")
+                .append(WeatherContract.WeatherEntry.TABLE_NAME)
+                .append(" SET ");
+        StringBuilder insert = new StringBuilder("INSERT INTO ")
+                .append(WeatherContract.WeatherEntry.TABLE_NAME)
+                .append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            update.append(i > 0 ? "," : "").append(columns[i]).append("=?");
+            insert.append(i > 0 ? "," : "").append(columns[i]);
+        }
+        update.append(" WHERE ").append(sDateAndLocationIdSelection);
+        insert.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            insert.append(i > 0 ? ",?" : "?");
+        }
+        insert.append(")");
+
+        SQLiteStatement updateStatement = db.compileStatement(update.toString());
+        SQLiteStatement insertStatement = db.compileStatement(insert.toString());
+        try {
+            for (ContentValues value : values) {
+                if (!hasColumns(value, columns)) {
+                    if (upsertWeather(db, value) != -1) {
+                        returnCount++;
+                    }
+                    continue;
+                }
+                // What normalizeDate does, without rewriting the caller's values.
+                Long date = value.getAsLong(columns[dateIndex]);
+                if (date != null) {
+                    date = WeatherContract.normalizeDate(date);
+                }
+                for (int i = 0; i < columns.length; i++) {
+                    Object columnValue = i == dateIndex ? date : value.get(columns[i]);
+                    DatabaseUtils.bindObjectToProgram(updateStatement, i + 1, columnValue);
+                    DatabaseUtils.bindObjectToProgram(insertStatement, i + 1, columnValue);
+                }
+                DatabaseUtils.bindObjectToProgram(updateStatement, columns.length + 1, date);
+                DatabaseUtils.bindObjectToProgram(updateStatement, columns.length + 2,
+                        value.get(columns[locationIndex]));
+                try {
+                    if (updateStatement.executeUpdateDelete() == 0) {
+                        insertStatement.executeInsert();
+                    }
+                    returnCount++;
+                } catch (android.database.SQLException e) {
+                    // Skip it, just like SQLiteDatabase#insert would.
+                    Log.e(LOG_TAG, "Error inserting " + value, e);
+                }
+            }
+        } finally {
+            updateStatement.close();
+            insertStatement.close();
+        }
+        return returnCount;
+    }
+
+    /**
+     * Writes the weather row over the one stored for the same day and location, if there is
+     * one, and inserts it otherwise.  Each sync writes every day it gets, so replacing the row
+     * would give it a new _ID every time, which the forecast list uses to tell its items apart.
+     *
+     * @return the row's _ID, or -1 if it couldn't be written.
+     */
+    private long upsertWeather(SQLiteDatabase db, ContentValues values) {
+        normalizeDate(values);
+        Long date = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        if (date == null || locationId == null) {
+            return db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+        }
+
+        db.beginTransactionNonExclusive();
+        try {
+            long _id;
+            Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                    new String[]{WeatherContract.WeatherEntry._ID},
+                    sDateAndLocationIdSelection,
+                    new String[]{date.toString(), locationId.toString()},
+                    null, null, null);
+            try {
+                _id = cursor.moveToFirst() ? cursor.getLong(0) : -1;
+            } finally {
+                cursor.close();
+            }
+            if (_id != -1) {
+                db.update(WeatherContract.WeatherEntry.TABLE_NAME, values,
+                        WeatherContract.WeatherEntry._ID + " = ?",
+                        new String[]{Long.toString(_id)});
+            } else {
+                _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+            return _id;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static boolean hasColumns(ContentValues value, String[] columns) {
+        if (value.size() != columns.length) {
+            return false;
+        }
+        for (String column : columns) {
+            if (!value.containsKey(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Applies all the operations in a single transaction, so a sync's writes for a location
+     * either all land or none do, and observers are notified once per Uri after the commit
+     * instead of once per row.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final Set<Uri> changes = new LinkedHashSet<Uri>();
+        ContentProviderResult[] results;
+
+        mBatchChanges.set(changes);
+        db.beginTransactionNonExclusive();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchChanges.remove();
+            // Whether the batch committed or not, the registry can't know which of its location
+            // changes stuck.
+            if (changes.contains(WeatherContract.LocationEntry.CONTENT_URI)) {
+                LocationRegistry.getInstance().invalidate();
+            }
+        }
+
+        for (Uri uri : changes) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return results;
+    }
+
+    private void notifyChange(Uri uri) {
+        Set<Uri> batchChanges = mBatchChanges.get();
+        if (batchChanges != null) {
+            batchChanges.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
@@ -22,6 +22,7 @@ import android.net.Uri;
 import com.example.android.app.MainActivity;
 import com.example.android.app.Utility;
 import com.example.android.app.data.WeatherContract;
+import com.example.android.app.sync.ForecastRepository;
 import com.example.android.app.sync.SunshineSyncAdapter;
 import com.google.android.apps.muzei.api.Artwork;
 import com.google.android.apps.muzei.api.MuzeiArtSource;
@@ -55,10 +56,9 @@ public class WeatherMuzeiSource extends MuzeiArtSource {
     @Override
     protected void onUpdate(int reason) {
         String location = Utility.getPreferredLocation(this);
-        Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
-                location, System.currentTimeMillis());
-        Cursor cursor = getContentResolver().query(weatherForLocationUri, FORECAST_COLUMNS, null,
-                null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        Uri weatherForLocationUri = ForecastRepository.getForecastUri(location);
+        Cursor cursor = ForecastRepository.getInstance(this).query(weatherForLocationUri,
+                FORECAST_COLUMNS, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
         if (cursor.moveToFirst()) {
             int weatherId = cursor.getInt(INDEX_WEATHER_ID);
             String desc = cursor.getString(INDEX_SHORT_DESC);
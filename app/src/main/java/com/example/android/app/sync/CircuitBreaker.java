@@ -0,0 +1,221 @@
+package com.example.android.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.support.annotation.IntDef;
+import android.util.Log;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Keeps us from hammering an upstream endpoint that is down.
+ *
+ * The breaker starts out {@link #STATE_CLOSED}, letting every request through.  After
+ * {@link #FAILURE_THRESHOLD} failed requests in a row it opens: no requests go out until a
+ * jittered, exponentially growing backoff has passed.  Then it is {@link #STATE_HALF_OPEN} and
+ * lets a single trial request through, which closes the breaker if it succeeds and opens it
+ * again, for longer, if it fails.  The jitter spreads the retries of all our installs out, so
+ * they don't all come back at the same moment the upstream recovers.
+ *
+ * Outcomes are the {@link SunshineSyncAdapter.LocationStatus} of the sync.  The state is kept in
+ * {@link SyncState}'s preferences, so it survives the process going away between syncs.
+ */
+public class CircuitBreaker {
+    private static final String LOG_TAG = CircuitBreaker.class.getSimpleName();
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({STATE_CLOSED, STATE_OPEN, STATE_HALF_OPEN})
+    public @interface State {}
+
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_HALF_OPEN = 2;
+
+    // The endpoint the forecast comes from, for showing its breaker in the UI.
+    public static final String FORECAST_ENDPOINT = "api.openweathermap.org";
+
+    static final int FAILURE_THRESHOLD = 3;
+    static final long BASE_BACKOFF_MILLIS = 30 * 1000;
+    static final long MAX_BACKOFF_MILLIS = 60 * 60 * 1000;
+
+    // A trial request we never heard back from doesn't block the next one forever.
+    private static final long TRIAL_TIMEOUT_MILLIS = 2 * 60 * 1000;
+
+    private static final String KEY_STATE = "breaker_state:";
+    private static final String KEY_FAILURES = "breaker_failures:";
+    private static final String KEY_OPEN_COUNT = "breaker_open_count:";
+    private static final String KEY_RETRY_AT = "breaker_retry_at:";
+    private static final String KEY_TRIPS = "breaker_trips:";
+    private static final String KEY_REJECTED = "breaker_rejected:";
+
+    private static final Map<String, CircuitBreaker> sBreakers = new HashMap<String, CircuitBreaker>();
+    private static final Random sRandom = new Random();
+
+    private final SharedPreferences mPrefs;
+    private final String mEndpoint;
+    private long mTrialStartedMillis;
+
+    /**
+     * @return the breaker for the host the given URL points at.
+     */
+    static CircuitBreaker forUrl(Context context, String url) {
+        String host = Uri.parse(url).getHost();
+        return forEndpoint(context, host != null ? host : url);
+    }
+
+    public static CircuitBreaker forEndpoint(Context context, String endpoint) {
+        synchronized (sBreakers) {
+            CircuitBreaker breaker = sBreakers.get(endpoint);
+            if (breaker == null) {
+                breaker = new CircuitBreaker(SyncState.getPrefs(context), endpoint);
+                sBreakers.put(endpoint, breaker);
+            }
+            return breaker;
+        }
+    }
+
+    private CircuitBreaker(SharedPreferences prefs, String endpoint) {
+        mPrefs = prefs;
+        mEndpoint = endpoint;
+    }
+
+    /**
+     * @return whether a request may go out now.  When this returns true the caller must report
+     * how it went to {@link #onResult}.
+     */
+    synchronized boolean allowRequest() {
+        long now = System.currentTimeMillis();
+        switch (getState()) {
+            case STATE_OPEN:
+                if (now < getRetryAtMillis()) {
+                    reject();
+                    return false;
+                }
+                Log.d(LOG_TAG, mEndpoint + " half open, trying one request");
+                setState(STATE_HALF_OPEN);
+                mTrialStartedMillis = now;
+                return true;
+            case STATE_HALF_OPEN:
+                if (mTrialStartedMillis != 0 && now - mTrialStartedMillis < TRIAL_TIMEOUT_MILLIS) {
+                    // Somebody else is already finding out whether it's back.
+                    reject();
+                    return false;
+                }
+                mTrialStartedMillis = now;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Records the outcome of a request that {@link #allowRequest} let through.
+     */
+    synchronized void onResult(@SunshineSyncAdapter.LocationStatus int status) {
+        switch (status) {
+            case SunshineSyncAdapter.LOCATION_STATUS_OK:
+            case SunshineSyncAdapter.LOCATION_STATUS_INVALID:
+                // The server answered sensibly, even if it was to say it doesn't know the city.
+                onSuccess();
+                break;
+            case SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN:
+            case SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID:
+                onFailure();
+                break;
+            default:
+                // Tells us nothing about the server, e.g. we failed to store the forecast.
+                if (getState() == STATE_HALF_OPEN) {
+                    mTrialStartedMillis = 0;
+                }
+                break;
+        }
+    }
+
+    private void onSuccess() {
+        if (getState() != STATE_CLOSED) {
+            Log.d(LOG_TAG, mEndpoint + " is back, closing");
+        }
+        mTrialStartedMillis = 0;
+        mPrefs.edit()
+                .putInt(KEY_STATE + mEndpoint, STATE_CLOSED)
+                .putInt(KEY_FAILURES + mEndpoint, 0)
+                .putInt(KEY_OPEN_COUNT + mEndpoint, 0)
+                .remove(KEY_RETRY_AT + mEndpoint)
+                .commit();
+    }
+
+    private void onFailure() {
+        int failures = mPrefs.getInt(KEY_FAILURES + mEndpoint, 0) + 1;
+        @State int state = getState();
+        mTrialStartedMillis = 0;
+        if (state == STATE_HALF_OPEN || failures >= FAILURE_THRESHOLD) {
+            open(failures);
+        } else {
+            mPrefs.edit().putInt(KEY_FAILURES + mEndpoint, failures).commit();
+        }
+    }
+
+    private void open(int failures) {
+        int openCount = mPrefs.getInt(KEY_OPEN_COUNT + mEndpoint, 0) + 1;
+        long backoff = BASE_BACKOFF_MILLIS << Math.min(openCount - 1, 20);
+        backoff = Math.min(MAX_BACKOFF_MILLIS, backoff);
+        // Somewhere between half and all of the backoff, so installs that failed together
+        // don't retry together.
+        long delay = backoff / 2 + (long) (sRandom.nextDouble() * (backoff / 2));
+        long retryAt = System.currentTimeMillis() + delay;
+
+        Log.w(LOG_TAG, mEndpoint + " failed " + failures + " times, open for " + delay + " ms");
+        mPrefs.edit()
+                .putInt(KEY_STATE + mEndpoint, STATE_OPEN)
+                .putInt(KEY_FAILURES + mEndpoint, failures)
+                .putInt(KEY_OPEN_COUNT + mEndpoint, openCount)
+                .putLong(KEY_RETRY_AT + mEndpoint, retryAt)
+                .putInt(KEY_TRIPS + mEndpoint, getTripCount() + 1)
+                .commit();
+    }
+
+    private void reject() {
+        mPrefs.edit().putInt(KEY_REJECTED + mEndpoint, getRejectedCount() + 1).commit();
+    }
+
+    private void setState(@State int state) {
+        mPrefs.edit().putInt(KEY_STATE + mEndpoint, state).commit();
+    }
+
+    @State
+    public int getState() {
+        //noinspection ResourceType
+        return mPrefs.getInt(KEY_STATE + mEndpoint, STATE_CLOSED);
+    }
+
+    /**
+     * @return when an open breaker lets the next request through, in milliseconds since the
+     * epoch, or 0 if it isn't open.
+     */
+    public long getRetryAtMillis() {
+        return mPrefs.getLong(KEY_RETRY_AT + mEndpoint, 0);
+    }
+
+    /**
+     * @return how many times the breaker has opened.
+     */
+    public int getTripCount() {
+        return mPrefs.getInt(KEY_TRIPS + mEndpoint, 0);
+    }
+
+    /**
+     * @return how many requests the breaker kept from going out.
+     */
+    public int getRejectedCount() {
+        return mPrefs.getInt(KEY_REJECTED + mEndpoint, 0);
+    }
+
+    public String getEndpoint() {
+        return mEndpoint;
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.android.app.sync;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes that pass through it, and the time spent waiting for them, so transports can
+ * report what came over the wire and how long it took.
+ */
+class CountingInputStream extends FilterInputStream {
+    private long mCount;
+    private long mReadNanos;
+
+    CountingInputStream(InputStream in) {
+        super(in);
+    }
+
+    long getCount() {
+        return mCount;
+    }
+
+    long getReadMillis() {
+        return mReadNanos / 1000000;
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = System.nanoTime();
+        int b = super.read();
+        mReadNanos += System.nanoTime() - start;
+        if (b != -1) {
+            mCount++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        long start = System.nanoTime();
+        int read = super.read(buffer, offset, count);
+        mReadNanos += System.nanoTime() - start;
+        if (read > 0) {
+            mCount += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+        long start = System.nanoTime();
+        long skipped = super.skip(byteCount);
+        mReadNanos += System.nanoTime() - start;
+        if (skipped > 0) {
+            mCount += skipped;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        // Resetting would make us count the same bytes twice.
+        return false;
+    }
+}
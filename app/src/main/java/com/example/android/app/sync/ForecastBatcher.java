@@ -0,0 +1,124 @@
+package com.example.android.app.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Cuts the number of upstream round trips when many locations are tracked.
+ *
+ * OWM's multi-city "group" endpoint only serves current conditions, not the daily forecast we
+ * store, so we can't fold several cities into one forecast request.  What we can do is:
+ * <ul>
+ * <li>Group locations that resolve to the same upstream query (the same city name or postal
+ * code in a different case, or coordinates within about a kilometer) so each is fetched once
+ * and the response is written for every location in the group.</li>
+ * <li>Send the remaining requests in waves, with the wave size picked from the latency we
+ * observed for the previous ones: while the upstream answers quickly we put more requests in
+ * flight at once, so the radio is up for one short burst instead of many; when it slows down
+ * or fails we back off to fewer.</li>
+ * </ul>
+ */
+class ForecastBatcher {
+    private static final String LOG_TAG = ForecastBatcher.class.getSimpleName();
+
+    // Requests answering faster than this let us grow the next wave.
+    static final long TARGET_LATENCY_MILLIS = 2000;
+
+    static final int MIN_WAVE_SIZE = 1;
+
+    // Coordinates are grouped on a grid of this many decimal places (0.01 degrees is about 1km).
+    private static final String COORDINATE_FORMAT = "%.2f";
+
+    /**
+     * Locations that share one upstream request.
+     */
+    static final class Group {
+        final String key;
+        final List<SyncLocation> locations = new ArrayList<SyncLocation>();
+
+        Group(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return the location whose query we send upstream for the whole group.
+         */
+        SyncLocation getQueryLocation() {
+            return locations.get(0);
+        }
+
+        @Override
+        public String toString() {
+            return locations.toString();
+        }
+    }
+
+    private ForecastBatcher() {
+    }
+
+    /**
+     * Groups the locations by the upstream query they resolve to.  Groups keep the order of
+     * their first location, so the preferred location's group goes out first.
+     */
+    static List<Group> group(List<SyncLocation> locations) {
+        Map<String, Group> groups = new LinkedHashMap<String, Group>();
+        for (SyncLocation location : locations) {
+            String key = getQueryKey(location);
+            Group group = groups.get(key);
+            if (group == null) {
+                group = new Group(key);
+                groups.put(key, group);
+            }
+            group.locations.add(location);
+        }
+        return new ArrayList<Group>(groups.values());
+    }
+
+    static String getQueryKey(SyncLocation location) {
+        if (location.hasLatLon()) {
+            try {
+                return "coord:" +
+                        String.format(Locale.US, COORDINATE_FORMAT, Double.parseDouble(location.latitude)) +
+                        "," +
+                        String.format(Locale.US, COORDINATE_FORMAT, Double.parseDouble(location.longitude));
+            } catch (NumberFormatException e) {
+                // Fall through and use the setting.
+            }
+        }
+        return "q:" + location.setting.trim().toLowerCase(Locale.US);
+    }
+
+    /**
+     * @return how many requests to put in flight together for the next wave.
+     */
+    static int getWaveSize(Context context, int maxWaveSize) {
+        int waveSize = SyncState.getBatchSize(context, maxWaveSize);
+        return Math.max(MIN_WAVE_SIZE, Math.min(maxWaveSize, waveSize));
+    }
+
+    /**
+     * Adjusts the wave size from how the last wave went: grow by one while every request in it
+     * came back OK and under {@link #TARGET_LATENCY_MILLIS}, halve it when any was slow or
+     * failed.
+     */
+    static void onWaveFinished(Context context, int waveSize, int maxWaveSize,
+                               long slowestMillis, boolean anyFailed) {
+        int next;
+        if (anyFailed || slowestMillis > TARGET_LATENCY_MILLIS) {
+            next = Math.max(MIN_WAVE_SIZE, waveSize / 2);
+        } else {
+            next = Math.min(maxWaveSize, waveSize + 1);
+        }
+        if (next != waveSize) {
+            Log.d(LOG_TAG, "Wave of " + waveSize + " took " + slowestMillis + " ms" +
+                    (anyFailed ? " with failures" : "") + ", next wave size " + next);
+            SyncState.setBatchSize(context, next);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.example.android.app.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.example.android.app.data.WeatherContract;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes a location's forecast as the difference from what's already stored, rather than
+ * reinserting every day.
+ *
+ * Reinserting used to cost a delete and an insert per day (the weather table replaces on
+ * conflict), plus a range delete for the history, and told every observer the weather had
+ * changed even when nothing had.  Here the stored days are read first and only days that are new
+ * get inserted, only days whose values changed get updated, and only days that have become
+ * history or that the upstream no longer forecasts get deleted.  If none of that is needed
+ * nothing is written and nobody is notified.
+ *
+ * The job and the sync adapter can sync the same location at once, so the batch starts by
+ * checking, inside its transaction, that the location still has the rows the diff was made
+ * against.  If another sync got in between, the batch rolls back and the diff is made again.
+ */
+final class ForecastDeltaWriter {
+    private static final String LOG_TAG = ForecastDeltaWriter.class.getSimpleName();
+
+    // How often the diff is made again when another sync keeps changing the location under us.
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final String[] STORED_PROJECTION = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_DATE = 0;
+
+    private static final String LOCATION_SELECTION =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?";
+    private static final String LOCATION_AND_DATE_SELECTION =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ?";
+    private static final String LOCATION_AND_HISTORY_SELECTION =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?";
+
+    /**
+     * What a write did.
+     */
+    static final class Result {
+        int inserted;
+        int updated;
+        int deleted;
+        int unchanged;
+
+        int getRowsWritten() {
+            return inserted + updated + deleted;
+        }
+
+        @Override
+        public String toString() {
+            return inserted + " inserted, " + updated + " updated, " + deleted + " deleted, " +
+                    unchanged + " unchanged";
+        }
+    }
+
+    private ForecastDeltaWriter() {
+    }
+
+    /**
+     * Brings the stored forecast for a location in line with the given days, in one transaction.
+     *
+     * @param rows          the days to store, without a location key, each with a date.  Stored
+     *                      days after the cutoff that aren't among them get deleted.  If there
+     *                      are none, nothing is written: that's a broken forecast, not an empty
+     *                      one.
+     * @param oldDataCutoff days dated on or before this are history and get deleted.
+     */
+    static Result write(ContentResolver resolver, long locationId, List<ContentValues> rows,
+                        long oldDataCutoff)
+            throws RemoteException, OperationApplicationException {
+        if (rows.isEmpty()) {
+            return new Result();
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return tryWrite(resolver, locationId, rows, oldDataCutoff);
+            } catch (OperationApplicationException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                Log.d(LOG_TAG, "Forecast for location " + locationId +
+                        " changed while writing it, trying again", e);
+            }
+        }
+    }
+
+    private static Result tryWrite(ContentResolver resolver, long locationId,
+                                   List<ContentValues> rows, long oldDataCutoff)
+            throws RemoteException, OperationApplicationException {
+        String locationKey = Long.toString(locationId);
+        Result result = new Result();
+
+        // What we have now, by date.
+        Map<Long, ContentValues> stored = new HashMap<Long, ContentValues>();
+        boolean hasHistory = false;
+        int storedCount = 0;
+        Cursor cursor = resolver.query(WeatherContract.WeatherEntry.CONTENT_URI,
+                STORED_PROJECTION, LOCATION_SELECTION, new String[]{locationKey}, null);
+        if (cursor != null) {
+            try {
+                storedCount = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    long date = cursor.getLong(INDEX_DATE);
+                    if (date <= oldDataCutoff) {
+                        hasHistory = true;
+                    } else {
+                        stored.put(date, readRow(cursor));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        // Checked first thing in the transaction: if the location doesn't have the rows we just
+        // read any more, another sync wrote it in the meantime and this diff is out of date.
+        operations.add(ContentProviderOperation
+                .newAssertQuery(WeatherContract.WeatherEntry.CONTENT_URI)
+                .withSelection(LOCATION_SELECTION, new String[]{locationKey})
+                .withExpectedCount(storedCount)
+                .build());
+        Set<Long> incomingDates = new HashSet<Long>();
+        for (ContentValues row : rows) {
+            long date = row.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+            if (date <= oldDataCutoff) {
+                // Would only be deleted again below.
+                continue;
+            }
+            incomingDates.add(date);
+            ContentValues current = stored.get(date);
+            if (current == null) {
+                ContentValues values = new ContentValues(row);
+                values.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+                operations.add(ContentProviderOperation
+                        .newInsert(WeatherContract.WeatherEntry.CONTENT_URI)
+                        .withValues(values)
+                        .build());
+                result.inserted++;
+                continue;
+            }
+
+            ContentValues changed = diff(current, row);
+            if (changed.size() == 0) {
+                result.unchanged++;
+                continue;
+            }
+            operations.add(ContentProviderOperation
+                    .newUpdate(WeatherContract.WeatherEntry.CONTENT_URI)
+                    .withValues(changed)
+                    .withSelection(LOCATION_AND_DATE_SELECTION,
+                            new String[]{locationKey, Long.toString(date)})
+                    .build());
+            result.updated++;
+        }
+
+        // Drop the days that are now in the past, so we don't build up an endless history, and
+        // the days the upstream stopped forecasting, e.g. when it sent fewer days this time.
+        int firstDeleteIndex = operations.size();
+        if (hasHistory) {
+            operations.add(ContentProviderOperation
+                    .newDelete(WeatherContract.WeatherEntry.CONTENT_URI)
+                    .withSelection(LOCATION_AND_HISTORY_SELECTION,
+                            new String[]{locationKey, Long.toString(oldDataCutoff)})
+                    .build());
+        }
+        for (Long date : stored.keySet()) {
+            if (!incomingDates.contains(date)) {
+                operations.add(ContentProviderOperation
+                        .newDelete(WeatherContract.WeatherEntry.CONTENT_URI)
+                        .withSelection(LOCATION_AND_DATE_SELECTION,
+                                new String[]{locationKey, Long.toString(date)})
+                        .build());
+            }
+        }
+
+        if (operations.size() == 1) {
+            // Only the check, nothing to write.
+            return result;
+        }
+        // Inserts, updates and deletes go in together, so readers never see the location half
+        // updated.
+        ContentProviderResult[] results =
+                resolver.applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+        for (int i = firstDeleteIndex; i < results.length; i++) {
+            if (results[i].count != null) {
+                result.deleted += results[i].count;
+            }
+        }
+        return result;
+    }
+
+    private static ContentValues readRow(Cursor cursor) {
+        ContentValues row = new ContentValues();
+        row.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, cursor.getDouble(1));
+        row.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, cursor.getDouble(2));
+        row.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, cursor.getDouble(3));
+        row.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, cursor.getDouble(4));
+        row.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, cursor.getDouble(5));
+        row.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, cursor.getDouble(6));
+        row.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, cursor.getString(7));
+        row.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, cursor.getInt(8));
+        return row;
+    }
+
+    /**
+     * @return the columns of the incoming row that differ from the stored one.
+     */
+    static ContentValues diff(ContentValues stored, ContentValues incoming) {
+        ContentValues changed = new ContentValues(incoming);
+        for (String column : incoming.keySet()) {
+            if (!stored.containsKey(column)) {
+                // Not a value we compare, e.g. the date the row was matched on.
+                changed.remove(column);
+                continue;
+            }
+            Object oldValue = stored.get(column);
+            Object newValue = incoming.get(column);
+            boolean same;
+            if (oldValue instanceof Number && newValue instanceof Number) {
+                // The database hands everything numeric back as REAL or INTEGER, whatever we
+                // put in, so compare by value.
+                same = Double.compare(((Number) oldValue).doubleValue(),
+                        ((Number) newValue).doubleValue()) == 0;
+            } else {
+                same = oldValue == null ? newValue == null : oldValue.equals(newValue);
+            }
+            if (same) {
+                changed.remove(column);
+            }
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.android.app.sync;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Builds a stable fingerprint of a forecast from the normalized values we store, so a sync can
+ * tell whether anything actually changed even when the server sends no validators.
+ *
+ * Values are fed in as fixed width big-endian bytes (strings as length-prefixed UTF-8), so the
+ * result only depends on the values and their order, not on how the server formatted them.
+ */
+class ForecastDigest {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final MessageDigest mDigest;
+    private final byte[] mScratch = new byte[8];
+
+    ForecastDigest() {
+        try {
+            mDigest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android release ships SHA-1.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    ForecastDigest update(long value) {
+        for (int i = 7; i >= 0; i--) {
+            mScratch[i] = (byte) value;
+            value >>>= 8;
+        }
+        mDigest.update(mScratch, 0, 8);
+        return this;
+    }
+
+    ForecastDigest update(int value) {
+        return update((long) value);
+    }
+
+    ForecastDigest update(double value) {
+        return update(Double.doubleToLongBits(value));
+    }
+
+    ForecastDigest update(String value) {
+        if (value == null) {
+            return update(-1);
+        }
+        try {
+            byte[] bytes = value.getBytes("UTF-8");
+            update(bytes.length);
+            mDigest.update(bytes);
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported.
+            throw new IllegalStateException(e);
+        }
+        return this;
+    }
+
+    /**
+     * @return the digest as a hex string.  This also resets the digest.
+     */
+    String digest() {
+        byte[] bytes = mDigest.digest();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,283 @@
+package com.example.android.app.sync;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+
+/**
+ * Streaming parser for the OpenWeatherMap daily forecast.
+ *
+ * Instead of buffering the whole response into a String and building an org.json object tree
+ * out of it, we walk the response with a {@link JsonReader} straight off the connection stream
+ * and only keep the handful of fields we store in {@link
+ * com.example.android.app.data.WeatherContract.WeatherEntry}.  Each day is written into the same
+ * {@link DayForecast} record, which is handed to the {@link Callback} and then reused for the
+ * next day, so the caller must copy out whatever it wants to keep.
+ */
+class ForecastParser {
+
+    // These are the names of the JSON objects that need to be extracted.
+
+    // Location information
+    private static final String OWM_CITY = "city";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    private static final String OWM_LIST = "list";
+
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    private static final String OWM_MESSAGE_CODE = "cod";
+
+    /**
+     * Receives the parsed forecast as it streams in.
+     */
+    interface Callback {
+        /**
+         * Called once the city object has been read.  OWM sends it ahead of the list, but
+         * callers should not rely on that ordering.
+         */
+        void onCity(String cityName, double latitude, double longitude);
+
+        /**
+         * Called once per day, in the order the days appear in the response.  The record is
+         * reused for the next day as soon as this returns.
+         */
+        void onDay(int index, DayForecast day);
+    }
+
+    /**
+     * Mutable holder for one day of forecast.  Only the fields we persist are kept.
+     */
+    static final class DayForecast {
+        private static final int HAS_PRESSURE = 1;
+        private static final int HAS_HUMIDITY = 1 << 1;
+        private static final int HAS_WIND_SPEED = 1 << 2;
+        private static final int HAS_WIND_DIRECTION = 1 << 3;
+        private static final int HAS_HIGH = 1 << 4;
+        private static final int HAS_LOW = 1 << 5;
+        private static final int HAS_DESCRIPTION = 1 << 6;
+        private static final int HAS_WEATHER_ID = 1 << 7;
+        private static final int HAS_ALL = (1 << 8) - 1;
+
+        double pressure;
+        int humidity;
+        double windSpeed;
+        double windDirection;
+        int high;
+        int low;
+        String description;
+        int weatherId;
+
+        private int mFields;
+
+        void reset() {
+            pressure = 0;
+            humidity = 0;
+            windSpeed = 0;
+            windDirection = 0;
+            high = 0;
+            low = 0;
+            description = null;
+            weatherId = 0;
+            mFields = 0;
+        }
+
+        boolean isComplete() {
+            return mFields == HAS_ALL;
+        }
+    }
+
+    private final DayForecast mDay = new DayForecast();
+
+    /**
+     * Reads the forecast from the given stream, reporting the city and each day to the callback.
+     * The stream is not closed.
+     *
+     * @return the "cod" message code of the response, or {@link HttpURLConnection#HTTP_OK} if
+     * the response does not carry one.
+     * @throws JSONException if the payload is not a well formed forecast, including an OK
+     * response without a list of days
+     * @throws IOException if the stream could not be read
+     */
+    int parse(InputStream in, Callback callback) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            return readForecast(reader, callback);
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            // Keep the "the server sent us garbage" case apart from plain network failures,
+            // the same way the org.json based parser used to.
+            throw new JSONException(e.getMessage());
+        }
+    }
+
+    private int readForecast(JsonReader reader, Callback callback)
+            throws IOException, JSONException {
+        int messageCode = HttpURLConnection.HTTP_OK;
+        boolean hasList = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_MESSAGE_CODE.equals(name)) {
+                // OWM sends this as a string for some endpoints and as a number for others.
+                // nextInt() copes with both.
+                messageCode = reader.nextInt();
+            } else if (OWM_CITY.equals(name)) {
+                readCity(reader, callback);
+            } else if (OWM_LIST.equals(name)) {
+                readDays(reader, callback);
+                hasList = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        // Error responses only carry a message, but an OK one without the days is broken.
+        if (messageCode == HttpURLConnection.HTTP_OK && !hasList) {
+            throw new JSONException("Forecast is missing the list");
+        }
+        return messageCode;
+    }
+
+    private void readCity(JsonReader reader, Callback callback) throws IOException {
+        String cityName = null;
+        double latitude = 0;
+        double longitude = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        latitude = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        longitude = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        callback.onCity(cityName, latitude, longitude);
+    }
+
+    private void readDays(JsonReader reader, Callback callback)
+            throws IOException, JSONException {
+        final DayForecast day = mDay;
+        int index = 0;
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            day.reset();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_PRESSURE.equals(name)) {
+                    day.pressure = reader.nextDouble();
+                    day.mFields |= DayForecast.HAS_PRESSURE;
+                } else if (OWM_HUMIDITY.equals(name)) {
+                    day.humidity = (int) reader.nextDouble();
+                    day.mFields |= DayForecast.HAS_HUMIDITY;
+                } else if (OWM_WINDSPEED.equals(name)) {
+                    day.windSpeed = reader.nextDouble();
+                    day.mFields |= DayForecast.HAS_WIND_SPEED;
+                } else if (OWM_WIND_DIRECTION.equals(name)) {
+                    day.windDirection = reader.nextDouble();
+                    day.mFields |= DayForecast.HAS_WIND_DIRECTION;
+                } else if (OWM_TEMPERATURE.equals(name)) {
+                    readTemperature(reader, day);
+                } else if (OWM_WEATHER.equals(name)) {
+                    readWeather(reader, day);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (!day.isComplete()) {
+                throw new JSONException("Incomplete forecast for day " + index);
+            }
+            callback.onDay(index++, day);
+        }
+        reader.endArray();
+    }
+
+    private void readTemperature(JsonReader reader, DayForecast day) throws IOException {
+        // Temperatures are in a child object called "temp".  Try not to name variables
+        // "temp" when working with temperature.  It confuses everybody.
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_MAX.equals(name)) {
+                day.high = (int) reader.nextDouble();
+                day.mFields |= DayForecast.HAS_HIGH;
+            } else if (OWM_MIN.equals(name)) {
+                day.low = (int) reader.nextDouble();
+                day.mFields |= DayForecast.HAS_LOW;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readWeather(JsonReader reader, DayForecast day) throws IOException {
+        // Description is in a child array called "weather", which is 1 element long.
+        // That element also contains a weather code.  Anything past the first element is
+        // skipped.
+        reader.beginArray();
+        if (reader.hasNext() && reader.peek() == JsonToken.BEGIN_OBJECT) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_DESCRIPTION.equals(name)) {
+                    day.description = reader.nextString();
+                    day.mFields |= DayForecast.HAS_DESCRIPTION;
+                } else if (OWM_WEATHER_ID.equals(name)) {
+                    day.weatherId = reader.nextInt();
+                    day.mFields |= DayForecast.HAS_WEATHER_ID;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endArray();
+    }
+}
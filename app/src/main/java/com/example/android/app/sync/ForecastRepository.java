@@ -0,0 +1,212 @@
+package com.example.android.app.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.content.CursorLoader;
+import android.support.v4.content.Loader;
+import android.util.Log;
+
+import com.example.android.app.data.WeatherContract;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Where everything that shows the forecast gets it from: the forecast list and detail, both
+ * widgets, Muzei and the notification.
+ *
+ * Reads always answer straight from the provider, stale or not.  If the location's forecast
+ * is older than {@link #STALE_AFTER_MILLIS} (and the upstream didn't say it's still fresh), a
+ * background sync of that location is started on the way; once it lands the provider's change
+ * notification brings the new forecast to loaders, and the sync's fan-out to the widgets, Muzei
+ * and the notification.
+ *
+ * Every consumer asking at once only starts one sync per location.  A location whose sync
+ * failed isn't tried again for {@link #RETRY_AFTER_MILLIS}, so an upstream that's down doesn't
+ * get a request every time the app is opened.  Nobody asked for these syncs, so they go through
+ * {@link SyncCoordinator#requestRevalidation}, which leaves them to the sync manager's backoff
+ * or the job constraints like any other background sync.
+ */
+public final class ForecastRepository {
+    private static final String LOG_TAG = ForecastRepository.class.getSimpleName();
+
+    // Periodic syncs shouldn't leave a forecast older than this, even backed off all the way.
+    public static final long STALE_AFTER_MILLIS = 3 * 60 * 60 * 1000;
+    static final long RETRY_AFTER_MILLIS = 5 * 60 * 1000;
+
+    private static final Object sLock = new Object();
+    private static ForecastRepository sInstance;
+
+    /**
+     * Starts the sync of a stale location.
+     */
+    interface Revalidator {
+        /**
+         * @param callback called once the sync is done.
+         */
+        void revalidate(String locationSetting, SyncCoordinator.Callback callback);
+    }
+
+    private final Context mContext;
+    private final Revalidator mRevalidator;
+
+    // Locations with a revalidation in flight.
+    private final Map<String, Boolean> mRevalidating = new HashMap<String, Boolean>();
+    // When the last revalidation of each location was started.
+    private final Map<String, Long> mRevalidatedAt = new HashMap<String, Long>();
+
+    private int mReads;
+    private int mRevalidations;
+    private int mDeduplicated;
+
+    public static ForecastRepository getInstance(Context context) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new ForecastRepository(context.getApplicationContext(), null);
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * @param revalidator starts the syncs, or null to go through the {@link SyncCoordinator}.
+     */
+    ForecastRepository(final Context context, Revalidator revalidator) {
+        mContext = context;
+        if (revalidator == null) {
+            revalidator = new Revalidator() {
+                private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+                @Override
+                public void revalidate(final String locationSetting,
+                                       final SyncCoordinator.Callback callback) {
+                    // The coordinator lives on the main thread.
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            SyncCoordinator.getInstance(context).requestRevalidation(
+                                    locationSetting, callback);
+                        }
+                    });
+                }
+            };
+        }
+        mRevalidator = revalidator;
+    }
+
+    /**
+     * @return the forecast for the location from today on, oldest day first.
+     */
+    public static Uri getForecastUri(String locationSetting) {
+        return WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                locationSetting, System.currentTimeMillis());
+    }
+
+    /**
+     * Reads the forecast behind a {@link WeatherContract.WeatherEntry} location URI right away,
+     * revalidating it in the background if it's stale.  Don't call it on the main thread.
+     *
+     * @return the cursor, which the caller must close, or null if the query failed.
+     */
+    public Cursor query(Uri weatherUri, String[] projection, String sortOrder) {
+        onRead(weatherUri);
+        return mContext.getContentResolver().query(weatherUri, projection, null, null, sortOrder);
+    }
+
+    /**
+     * Like {@link #query}, but as a loader that follows the forecast as it changes.
+     */
+    public Loader<Cursor> createLoader(Context context, Uri weatherUri, String[] projection,
+                                       String sortOrder) {
+        onRead(weatherUri);
+        return new CursorLoader(context, weatherUri, projection, null, null, sortOrder);
+    }
+
+    /**
+     * @return whether the location's forecast is old enough to be synced again.
+     */
+    public boolean isStale(String locationSetting) {
+        long now = System.currentTimeMillis();
+        if (now < SyncState.getFreshUntil(mContext, locationSetting)) {
+            return false;
+        }
+        long syncedAt = SyncState.getSyncedAt(mContext, locationSetting);
+        return syncedAt > now || now - syncedAt >= STALE_AFTER_MILLIS;
+    }
+
+    /**
+     * Starts a sync of the location if its forecast is stale and there isn't one on the way
+     * already.
+     *
+     * @return whether a sync was started.
+     */
+    public boolean revalidateIfStale(final String locationSetting) {
+        if (locationSetting == null || !isStale(locationSetting)) {
+            return false;
+        }
+        synchronized (this) {
+            Long revalidatedAt = mRevalidatedAt.get(locationSetting);
+            long now = System.currentTimeMillis();
+            if (mRevalidating.containsKey(locationSetting) || revalidatedAt != null
+                    && now >= revalidatedAt && now - revalidatedAt < RETRY_AFTER_MILLIS) {
+                mDeduplicated++;
+                return false;
+            }
+            mRevalidating.put(locationSetting, Boolean.TRUE);
+            mRevalidatedAt.put(locationSetting, now);
+            mRevalidations++;
+        }
+        Log.d(LOG_TAG, "Forecast for " + locationSetting + " is stale, revalidating");
+
+        mRevalidator.revalidate(locationSetting, new SyncCoordinator.Callback() {
+            @Override
+            public void onSyncFinished(@SunshineSyncAdapter.LocationStatus int status) {
+                synchronized (ForecastRepository.this) {
+                    mRevalidating.remove(locationSetting);
+                }
+                Log.d(LOG_TAG, "Revalidated " + locationSetting + ", status " + status);
+            }
+        });
+        return true;
+    }
+
+    private void onRead(Uri weatherUri) {
+        synchronized (this) {
+            mReads++;
+        }
+        if (weatherUri.getPathSegments().size() > 1) {
+            revalidateIfStale(WeatherContract.WeatherEntry.getLocationSettingFromUri(weatherUri));
+        }
+    }
+
+    /**
+     * @return how many reads went through the repository.
+     */
+    public synchronized int getReadCount() {
+        return mReads;
+    }
+
+    /**
+     * @return how many syncs the repository started.
+     */
+    public synchronized int getRevalidationCount() {
+        return mRevalidations;
+    }
+
+    /**
+     * @return how many stale reads didn't need a sync of their own, because one was on the way
+     * or had just been tried.
+     */
+    public synchronized int getDeduplicatedCount() {
+        return mDeduplicated;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mReads + " reads, " + mRevalidations + " revalidations, " + mDeduplicated +
+                " deduplicated";
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.android.app.sync;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Moves a forecast request to the upstream and the response back.  The sync adapter only talks
+ * to the network through this, so the HTTP details live in {@link HttpForecastTransport} and
+ * sync can be driven offline with {@link StubForecastTransport}.
+ */
+public interface ForecastTransport {
+
+    /**
+     * Sends the request and returns once the status line and headers are in.  The body is
+     * streamed from {@link Response#getBody()}; the caller must close the response.
+     *
+     * @throws IOException if the upstream could not be reached
+     */
+    Response execute(Request request) throws IOException;
+
+    /**
+     * Gets a connection to the host of the given URL ready for the next request, so that it
+     * doesn't have to wait on DNS and the TCP handshake.  Blocks until it's done.
+     *
+     * @throws IOException if the host could not be reached
+     */
+    void prewarm(String url) throws IOException;
+
+    /**
+     * @return the number of body bytes this transport has read off the wire so far.
+     */
+    long getTotalBytesRead();
+
+    /**
+     * A forecast GET, with optional validators for a conditional request and an optional limit
+     * on how long any one blocking step of it may take.
+     */
+    final class Request {
+        final String url;
+        String eTag;
+        long ifModifiedSince;
+        int timeoutMillis;
+
+        public Request(String url) {
+            this.url = url;
+        }
+
+        public Request setETag(String eTag) {
+            this.eTag = eTag;
+            return this;
+        }
+
+        public Request setIfModifiedSince(long ifModifiedSince) {
+            this.ifModifiedSince = ifModifiedSince;
+            return this;
+        }
+
+        /**
+         * Caps the connect and read timeouts for this request.  The transport's own timeouts
+         * still apply if they're shorter; 0, the default, leaves them alone.
+         */
+        public Request setTimeoutMillis(int timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+            return this;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+    }
+
+    /**
+     * The upstream's answer.  Closing it releases the connection for reuse.
+     */
+    interface Response extends Closeable {
+        int getCode();
+
+        /**
+         * @return the decoded response body.  Content-Encoding has already been undone.
+         */
+        InputStream getBody() throws IOException;
+
+        String getETag();
+
+        long getLastModified();
+
+        /**
+         * @return until when, in milliseconds since the epoch, the response stays fresh
+         * according to its Cache-Control max-age or Expires header.  0 if it has neither, or
+         * mustn't be reused without asking the upstream again.
+         */
+        long getFreshUntil();
+
+        /**
+         * @return the number of body bytes read off the wire for this response, before any
+         * decompression.
+         */
+        long getBytesRead();
+
+        /**
+         * @return how long setting up the connection took, including resolving the host, in
+         * milliseconds.  Close to 0 when a pooled connection was reused.
+         */
+        long getConnectMillis();
+
+        /**
+         * @return how long it took from sending the request until the status line came back,
+         * in milliseconds.
+         */
+        long getFirstByteMillis();
+
+        /**
+         * @return how long reading the body has spent waiting on the wire so far, in
+         * milliseconds.
+         */
+        long getDownloadMillis();
+
+        /**
+         * @return whether a connection to the host had been warmed up with
+         * {@link #prewarm(String)} for this request to use.
+         */
+        boolean isPrewarmed();
+    }
+}
@@ -0,0 +1,300 @@
+package com.example.android.app.sync;
+
+import android.net.Uri;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.app.BuildConfig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link ForecastTransport} that cuts off the slow tail of upstream responses by hedging.
+ *
+ * Every request first goes out as it is.  If its headers aren't back within the
+ * {@link #HEDGE_PERCENTILE} of the latencies we've been seeing, the same request goes out once
+ * more to a mirror (another host serving the same API, or a local caching proxy), and whichever
+ * answers first is used.  Only the slowest few percent of requests get a hedge, so the extra
+ * load on the upstream stays small.
+ *
+ * The loser can't be stopped in the middle of a blocking socket call, so it is closed as soon as
+ * its headers do come in.  Closing drains what little is left of a forecast, which hands its
+ * connection back to the pool for the next sync.
+ */
+public class HedgingForecastTransport implements ForecastTransport {
+    private static final String LOG_TAG = HedgingForecastTransport.class.getSimpleName();
+
+    // How slow a request has to be, compared to the recent ones, before it gets a hedge.
+    static final float HEDGE_PERCENTILE = 0.95f;
+
+    // Until we have MIN_SAMPLES latencies the percentile means little, so wait this long.
+    static final long DEFAULT_HEDGE_DELAY_MILLIS = 1000;
+    static final long MIN_HEDGE_DELAY_MILLIS = 50;
+    private static final int MIN_SAMPLES = 20;
+    private static final int MAX_SAMPLES = 100;
+
+    private static final ExecutorService sAttemptExecutor =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "SunshineHedge #" + mCount.incrementAndGet());
+                }
+            });
+
+    private final ForecastTransport mDelegate;
+    private final List<String> mMirrors;
+    private final long mDefaultDelayMillis;
+
+    // The most recent MAX_SAMPLES header latencies, in milliseconds, as a ring.
+    private final long[] mLatencies = new long[MAX_SAMPLES];
+    private int mLatencyCount;
+
+    private final AtomicInteger mNextMirror = new AtomicInteger();
+    private final AtomicInteger mHedgesSent = new AtomicInteger();
+    private final AtomicInteger mHedgesWon = new AtomicInteger();
+
+    /**
+     * @param mirrors base URLs ("scheme://host[:port]") of the mirrors.  A hedge gets the
+     *                original request's path and query sent to the next one in turn.
+     */
+    public HedgingForecastTransport(ForecastTransport delegate, List<String> mirrors) {
+        this(delegate, mirrors, DEFAULT_HEDGE_DELAY_MILLIS);
+    }
+
+    HedgingForecastTransport(ForecastTransport delegate, List<String> mirrors,
+                             long defaultDelayMillis) {
+        mDelegate = delegate;
+        mMirrors = new ArrayList<String>(mirrors);
+        mDefaultDelayMillis = defaultDelayMillis;
+    }
+
+    /**
+     * @return the mirrors configured in {@link BuildConfig#FORECAST_MIRROR_URLS}, a comma
+     * separated list.
+     */
+    static List<String> getConfiguredMirrors() {
+        List<String> mirrors = new ArrayList<String>();
+        for (String mirror : Arrays.asList(BuildConfig.FORECAST_MIRROR_URLS.split(","))) {
+            mirror = mirror.trim();
+            if (!mirror.isEmpty()) {
+                mirrors.add(mirror);
+            }
+        }
+        return mirrors;
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        Call call = new Call();
+        call.start(request);
+
+        long delay = getHedgeDelayMillis();
+        Response response = call.await(delay);
+        if (response == null && !mMirrors.isEmpty()) {
+            int mirror = Math.abs(mNextMirror.getAndIncrement() % mMirrors.size());
+            Request hedge = copyTo(request, mMirrors.get(mirror));
+            // The answer may have come in since await gave up; then there's nothing to hedge.
+            if (call.start(hedge)) {
+                Log.d(LOG_TAG, "No answer after " + delay + " ms, hedged to " +
+                        mMirrors.get(mirror));
+                mHedgesSent.incrementAndGet();
+            }
+        }
+        if (response == null) {
+            response = call.await(0);
+        }
+        if (call.getWinner() > 0) {
+            mHedgesWon.incrementAndGet();
+        }
+        return response;
+    }
+
+    @Override
+    public void prewarm(String url) throws IOException {
+        // Only the primary.  Hedges are rare enough that they can pay for their own connection.
+        mDelegate.prewarm(url);
+    }
+
+    @Override
+    public long getTotalBytesRead() {
+        // The losers were read too, so they count.
+        return mDelegate.getTotalBytesRead();
+    }
+
+    /**
+     * @return how many requests got a hedge.
+     */
+    public int getHedgesSent() {
+        return mHedgesSent.get();
+    }
+
+    /**
+     * @return how many hedges answered before the request they hedged.
+     */
+    public int getHedgesWon() {
+        return mHedgesWon.get();
+    }
+
+    /**
+     * @return how long a request gets before it is hedged.
+     */
+    synchronized long getHedgeDelayMillis() {
+        int count = Math.min(mLatencyCount, MAX_SAMPLES);
+        if (count < MIN_SAMPLES) {
+            return mDefaultDelayMillis;
+        }
+        long[] sorted = Arrays.copyOf(mLatencies, count);
+        Arrays.sort(sorted);
+        int index = Math.min(count - 1, (int) (count * HEDGE_PERCENTILE));
+        return Math.max(MIN_HEDGE_DELAY_MILLIS, sorted[index]);
+    }
+
+    private synchronized void addLatency(long latencyMillis) {
+        mLatencies[mLatencyCount % MAX_SAMPLES] = latencyMillis;
+        mLatencyCount++;
+    }
+
+    private static Request copyTo(Request request, String baseUrl) {
+        Uri original = Uri.parse(request.url);
+        Uri base = Uri.parse(baseUrl);
+        String url = original.buildUpon()
+                .scheme(base.getScheme())
+                .encodedAuthority(base.getEncodedAuthority())
+                .build()
+                .toString();
+        return new Request(url)
+                .setETag(request.eTag)
+                .setIfModifiedSince(request.ifModifiedSince)
+                .setTimeoutMillis(request.timeoutMillis);
+    }
+
+    @Override
+    public String toString() {
+        return mHedgesSent.get() + " hedges sent, " + mHedgesWon.get() + " won, hedging after " +
+                getHedgeDelayMillis() + " ms";
+    }
+
+    /**
+     * The attempts at one request.  The first response in wins, any that come in after it are
+     * closed right away.
+     */
+    private class Call {
+        private final List<Future<?>> mAttempts = new ArrayList<Future<?>>(2);
+        private Response mResponse;
+        private int mWinner = -1;
+        private int mFailed;
+        private IOException mFailure;
+
+        /**
+         * Sends another attempt, unless a response is already in.
+         *
+         * @return whether the attempt was sent.
+         */
+        synchronized boolean start(final Request request) {
+            if (mResponse != null) {
+                return false;
+            }
+            final int attempt = mAttempts.size();
+            mAttempts.add(sAttemptExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    long start = SystemClock.elapsedRealtime();
+                    Response response;
+                    try {
+                        response = mDelegate.execute(request);
+                    } catch (IOException e) {
+                        onFailure(e);
+                        return;
+                    }
+                    addLatency(SystemClock.elapsedRealtime() - start);
+                    onResponse(attempt, response);
+                }
+            }));
+            return true;
+        }
+
+        synchronized int getWinner() {
+            return mWinner;
+        }
+
+        /**
+         * Waits for the first response.
+         *
+         * @param timeoutMillis how long to wait, 0 for as long as it takes.  The attempts give
+         *                      up by themselves when the request's timeouts run out.
+         * @return the first response, or null if none came in time.
+         * @throws IOException if every attempt so far failed.
+         */
+        synchronized Response await(long timeoutMillis) throws IOException {
+            long end = SystemClock.elapsedRealtime() + timeoutMillis;
+            while (mResponse == null && mFailed < mAttempts.size()) {
+                long wait = timeoutMillis == 0 ? 0 : end - SystemClock.elapsedRealtime();
+                if (timeoutMillis != 0 && wait <= 0) {
+                    return null;
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    cancelAll();
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for the forecast", e);
+                }
+            }
+            if (mResponse == null) {
+                throw mFailure;
+            }
+            return mResponse;
+        }
+
+        private void onResponse(int attempt, Response response) {
+            synchronized (this) {
+                if (mResponse == null) {
+                    mResponse = response;
+                    mWinner = attempt;
+                    // Whatever else is still out there lost.
+                    for (int i = 0; i < mAttempts.size(); i++) {
+                        if (i != attempt) {
+                            mAttempts.get(i).cancel(true);
+                        }
+                    }
+                    notifyAll();
+                    return;
+                }
+            }
+            try {
+                response.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error closing the losing response", e);
+            }
+        }
+
+        private synchronized void onFailure(IOException e) {
+            mFailed++;
+            mFailure = e;
+            notifyAll();
+        }
+
+        private void cancelAll() {
+            for (Future<?> attempt : mAttempts) {
+                attempt.cancel(true);
+            }
+        }
+    }
+}
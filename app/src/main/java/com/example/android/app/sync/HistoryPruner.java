@@ -0,0 +1,77 @@
+package com.example.android.app.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+
+import com.example.android.app.data.WeatherContract;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Drops the stored forecasts of locations that are no longer synced.
+ *
+ * Each sync prunes the history of the locations it writes (see {@link ForecastDeltaWriter}),
+ * but a location the user has taken off the saved list is never synced again, so its days and
+ * hourly steps would stay in the database for good.  Nothing needs them urgently, so this runs
+ * from {@link SunshineJobService#JOB_BACKFILL} while the device is charging and idle.
+ */
+final class HistoryPruner {
+
+    private static final String[] LOCATION_PROJECTION = {
+            WeatherContract.LocationEntry._ID,
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_ID = 0;
+    private static final int INDEX_LOCATION_SETTING = 1;
+
+    private HistoryPruner() {
+    }
+
+    /**
+     * Deletes the daily and hourly forecasts of every stored location whose setting isn't one
+     * of the given ones, in one transaction.
+     *
+     * @return how many locations were pruned.
+     */
+    static int prune(ContentResolver resolver, Collection<String> syncedSettings)
+            throws RemoteException, OperationApplicationException {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        Cursor cursor = resolver.query(WeatherContract.LocationEntry.CONTENT_URI,
+                LOCATION_PROJECTION, null, null, null);
+        if (cursor == null) {
+            return 0;
+        }
+        int pruned = 0;
+        try {
+            while (cursor.moveToNext()) {
+                if (syncedSettings.contains(cursor.getString(INDEX_LOCATION_SETTING))) {
+                    continue;
+                }
+                String[] locationKey = {Long.toString(cursor.getLong(INDEX_ID))};
+                operations.add(ContentProviderOperation
+                        .newDelete(WeatherContract.WeatherEntry.CONTENT_URI)
+                        .withSelection(WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                                locationKey)
+                        .build());
+                operations.add(ContentProviderOperation
+                        .newDelete(WeatherContract.HourlyEntry.CONTENT_URI)
+                        .withSelection(WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " = ?",
+                                locationKey)
+                        .build());
+                pruned++;
+            }
+        } finally {
+            cursor.close();
+        }
+        if (!operations.isEmpty()) {
+            resolver.applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+        }
+        return pruned;
+    }
+}
@@ -0,0 +1,237 @@
+package com.example.android.app.sync;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+
+/**
+ * Streaming parser for the OpenWeatherMap 3 hour forecast, the hourly counterpart of
+ * {@link ForecastParser}.  It works the same way: the response is walked with a
+ * {@link JsonReader} straight off the connection and every step is written into the same
+ * {@link StepForecast} record, so the caller must copy out whatever it wants to keep.
+ */
+class HourlyForecastParser {
+
+    // These are the names of the JSON objects that need to be extracted.
+    private static final String OWM_LIST = "list";
+    private static final String OWM_TIME = "dt";
+
+    // Temperature, pressure and humidity are children of the "main" object.
+    private static final String OWM_MAIN = "main";
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+
+    // Wind speed and direction are children of the "wind" object.
+    private static final String OWM_WIND = "wind";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    private static final String OWM_MESSAGE_CODE = "cod";
+
+    /**
+     * Receives the parsed steps as they stream in.
+     */
+    interface Callback {
+        /**
+         * Called once per step, in the order they appear in the response.  The record is
+         * reused for the next step as soon as this returns.
+         */
+        void onStep(int index, StepForecast step);
+    }
+
+    /**
+     * Mutable holder for one forecast step.  Only the fields we persist are kept.
+     */
+    static final class StepForecast {
+        private static final int HAS_TIME = 1;
+        private static final int HAS_TEMPERATURE = 1 << 1;
+        private static final int HAS_PRESSURE = 1 << 2;
+        private static final int HAS_HUMIDITY = 1 << 3;
+        private static final int HAS_WIND_SPEED = 1 << 4;
+        private static final int HAS_WIND_DIRECTION = 1 << 5;
+        private static final int HAS_DESCRIPTION = 1 << 6;
+        private static final int HAS_WEATHER_ID = 1 << 7;
+        private static final int HAS_ALL = (1 << 8) - 1;
+
+        // Milliseconds since the epoch.
+        long time;
+        double temperature;
+        double pressure;
+        int humidity;
+        double windSpeed;
+        double windDirection;
+        String description;
+        int weatherId;
+
+        private int mFields;
+
+        void reset() {
+            time = 0;
+            temperature = 0;
+            pressure = 0;
+            humidity = 0;
+            windSpeed = 0;
+            windDirection = 0;
+            description = null;
+            weatherId = 0;
+            mFields = 0;
+        }
+
+        boolean isComplete() {
+            return mFields == HAS_ALL;
+        }
+    }
+
+    private final StepForecast mStep = new StepForecast();
+
+    /**
+     * Reads the forecast from the given stream, reporting each step to the callback.  The stream
+     * is not closed.
+     *
+     * @return the "cod" message code of the response, or {@link HttpURLConnection#HTTP_OK} if
+     * the response does not carry one.
+     * @throws JSONException if the payload is not a well formed forecast, including an OK
+     * response without a list of steps
+     * @throws IOException if the stream could not be read
+     */
+    int parse(InputStream in, Callback callback) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            return readForecast(reader, callback);
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw new JSONException(e.getMessage());
+        }
+    }
+
+    private int readForecast(JsonReader reader, Callback callback)
+            throws IOException, JSONException {
+        int messageCode = HttpURLConnection.HTTP_OK;
+        boolean hasList = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_MESSAGE_CODE.equals(name)) {
+                messageCode = reader.nextInt();
+            } else if (OWM_LIST.equals(name)) {
+                readSteps(reader, callback);
+                hasList = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        // Error responses only carry a message, but an OK one without the steps is broken.
+        if (messageCode == HttpURLConnection.HTTP_OK && !hasList) {
+            throw new JSONException("Hourly forecast is missing the list");
+        }
+        return messageCode;
+    }
+
+    private void readSteps(JsonReader reader, Callback callback)
+            throws IOException, JSONException {
+        final StepForecast step = mStep;
+        int index = 0;
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            step.reset();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_TIME.equals(name)) {
+                    step.time = reader.nextLong() * 1000;
+                    step.mFields |= StepForecast.HAS_TIME;
+                } else if (OWM_MAIN.equals(name)) {
+                    readMain(reader, step);
+                } else if (OWM_WIND.equals(name)) {
+                    readWind(reader, step);
+                } else if (OWM_WEATHER.equals(name)) {
+                    readWeather(reader, step);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (!step.isComplete()) {
+                throw new JSONException("Incomplete forecast for step " + index);
+            }
+            callback.onStep(index++, step);
+        }
+        reader.endArray();
+    }
+
+    private void readMain(JsonReader reader, StepForecast step) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_TEMPERATURE.equals(name)) {
+                step.temperature = reader.nextDouble();
+                step.mFields |= StepForecast.HAS_TEMPERATURE;
+            } else if (OWM_PRESSURE.equals(name)) {
+                step.pressure = reader.nextDouble();
+                step.mFields |= StepForecast.HAS_PRESSURE;
+            } else if (OWM_HUMIDITY.equals(name)) {
+                step.humidity = (int) reader.nextDouble();
+                step.mFields |= StepForecast.HAS_HUMIDITY;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readWind(JsonReader reader, StepForecast step) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_WINDSPEED.equals(name)) {
+                step.windSpeed = reader.nextDouble();
+                step.mFields |= StepForecast.HAS_WIND_SPEED;
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                step.windDirection = reader.nextDouble();
+                step.mFields |= StepForecast.HAS_WIND_DIRECTION;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readWeather(JsonReader reader, StepForecast step) throws IOException {
+        // Like the daily forecast, a one element array; anything past the first is skipped.
+        reader.beginArray();
+        if (reader.hasNext() && reader.peek() == JsonToken.BEGIN_OBJECT) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_DESCRIPTION.equals(name)) {
+                    step.description = reader.nextString();
+                    step.mFields |= StepForecast.HAS_DESCRIPTION;
+                } else if (OWM_WEATHER_ID.equals(name)) {
+                    step.weatherId = reader.nextInt();
+                    step.mFields |= StepForecast.HAS_WEATHER_ID;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endArray();
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.android.app.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.example.android.app.data.LocationRegistry;
+import com.example.android.app.data.WeatherContract;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+
+/**
+ * Fetches the 3 hour forecast for a group of locations and stores it in
+ * {@link WeatherContract.HourlyEntry}.
+ *
+ * The steps only move every three hours, so this runs at most every
+ * {@link #REFRESH_INTERVAL_MILLIS} per location, and only after the daily forecast for the
+ * group went through (which also means the locations exist and the upstream is up).  Each
+ * location's steps are replaced in a single batch: the old ones deleted and the ~40 new ones
+ * inserted in one transaction, with one change notification.
+ *
+ * The whole thing runs within one {@link SyncDeadline} stage: the request's timeouts, the body
+ * reads and each location's write are all bounded by it.
+ */
+class HourlyForecastSync {
+    private static final String LOG_TAG = HourlyForecastSync.class.getSimpleName();
+
+    static final long REFRESH_INTERVAL_MILLIS = 60 * 60 * 1000;
+
+    private final Context mContext;
+
+    HourlyForecastSync(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * @return whether the group's hourly forecast is old enough to be fetched again.
+     */
+    boolean isDue(ForecastBatcher.Group group) {
+        long syncedAt = SyncState.getHourlySyncedAt(mContext, group.getQueryLocation().setting);
+        long now = System.currentTimeMillis();
+        return syncedAt > now || now - syncedAt >= REFRESH_INTERVAL_MILLIS;
+    }
+
+    /**
+     * Fetches the group's hourly forecast and stores it for every location in it, giving up
+     * when the deadline passes.
+     *
+     * @return how it went, as a location status for the whole group.
+     */
+    @SunshineSyncAdapter.LocationStatus
+    int sync(ForecastBatcher.Group group, ForecastTransport transport, SyncDeadline deadline,
+             SyncTimings timings) {
+        String url = SunshineSyncAdapter.buildHourlyForecastUrl(group.getQueryLocation());
+        ForecastTransport.Response response = null;
+        try {
+            response = transport.execute(new ForecastTransport.Request(url)
+                    .setTimeoutMillis(deadline.getTimeoutMillis()));
+            if (response.getCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Hourly forecast request failed with HTTP " +
+                        response.getCode());
+            }
+            InputStream in = response.getBody();
+            if (in == null) {
+                return SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN;
+            }
+
+            final ArrayList<ContentValues> rows = new ArrayList<ContentValues>();
+            int messageCode = new HourlyForecastParser().parse(deadline.wrap(in),
+                    new HourlyForecastParser.Callback() {
+                        @Override
+                        public void onStep(int index, HourlyForecastParser.StepForecast step) {
+                            ContentValues values = new ContentValues();
+                            values.put(WeatherContract.HourlyEntry.COLUMN_TIME, step.time);
+                            values.put(WeatherContract.HourlyEntry.COLUMN_TEMP, step.temperature);
+                            values.put(WeatherContract.HourlyEntry.COLUMN_HUMIDITY, step.humidity);
+                            values.put(WeatherContract.HourlyEntry.COLUMN_PRESSURE, step.pressure);
+                            values.put(WeatherContract.HourlyEntry.COLUMN_WIND_SPEED, step.windSpeed);
+                            values.put(WeatherContract.HourlyEntry.COLUMN_DEGREES, step.windDirection);
+                            values.put(WeatherContract.HourlyEntry.COLUMN_SHORT_DESC, step.description);
+                            values.put(WeatherContract.HourlyEntry.COLUMN_WEATHER_ID, step.weatherId);
+                            rows.add(values);
+                        }
+                    });
+            switch (messageCode) {
+                case HttpURLConnection.HTTP_OK:
+                    break;
+                case HttpURLConnection.HTTP_NOT_FOUND:
+                    return SunshineSyncAdapter.LOCATION_STATUS_INVALID;
+                default:
+                    return SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+            }
+            // Storing no steps would delete the ones we have; keep them and try again next sync.
+            if (rows.isEmpty()) {
+                Log.e(LOG_TAG, "Hourly forecast for " + group + " has no steps");
+                return SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID;
+            }
+
+            for (SyncLocation location : group.locations) {
+                // What's already stored is still good, the rest keep their old steps until the
+                // next sync.
+                if (deadline.isExpired()) {
+                    timings.onTimedOut(deadline.getStage());
+                    return SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN;
+                }
+                if (!store(location, rows, timings)) {
+                    return SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN;
+                }
+            }
+            SyncState.setHourlySyncedAt(mContext, group.getQueryLocation().setting,
+                    System.currentTimeMillis());
+            return SunshineSyncAdapter.LOCATION_STATUS_OK;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error fetching hourly forecast for " + group, e);
+            // A socket timeout or a failed deadline check both mean we ran out of time.
+            if (deadline.isExpired()) {
+                timings.onTimedOut(deadline.getStage());
+            }
+            return SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Error parsing hourly forecast for " + group, e);
+            return SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID;
+        } finally {
+            if (response != null) {
+                try {
+                    response.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error closing stream", e);
+                }
+            }
+        }
+    }
+
+    private boolean store(SyncLocation location, ArrayList<ContentValues> rows,
+                          SyncTimings timings) {
+        long locationId = LocationRegistry.getInstance().getLocationId(
+                mContext.getContentResolver(), location.setting);
+        if (locationId == -1) {
+            // The daily forecast didn't get stored for it either.
+            return true;
+        }
+
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(rows.size() + 1);
+        // The new steps replace all of the old ones, including the ones now in the past.
+        operations.add(ContentProviderOperation
+                .newDelete(WeatherContract.HourlyEntry.CONTENT_URI)
+                .withSelection(WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " = ?",
+                        new String[]{Long.toString(locationId)})
+                .build());
+        for (ContentValues row : rows) {
+            ContentValues values = new ContentValues(row);
+            values.put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY, locationId);
+            operations.add(ContentProviderOperation
+                    .newInsert(WeatherContract.HourlyEntry.CONTENT_URI)
+                    .withValues(values)
+                    .build());
+        }
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(LOG_TAG, "Error storing hourly forecast for " + location, e);
+            return false;
+        }
+        timings.rowsWritten += rows.size();
+        Log.d(LOG_TAG, "Stored " + rows.size() + " hourly steps for " + location);
+        return true;
+    }
+}
@@ -0,0 +1,307 @@
+package com.example.android.app.sync;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * {@link ForecastTransport} on top of {@link HttpURLConnection}.
+ *
+ * HttpURLConnection already keeps idle keep-alive connections in a process wide pool, but only
+ * gets to reuse one if the previous response was read to the end and closed rather than
+ * disconnected.  {@link HttpResponse#close()} takes care of that, so consecutive syncs to the
+ * same host skip DNS and the TCP handshake.  We also ask for gzip, which the forecast JSON
+ * compresses very well, and put deadlines on connecting and reading so a stalled socket can't
+ * hold the sync thread forever.  A request can lower them to what's left of its sync's budget.
+ *
+ * {@link #prewarm} puts a connection into that pool ahead of time, with a HEAD request for the
+ * host's root.  The next request to the host finds it there if it comes within
+ * {@link #PREWARM_WINDOW_MILLIS}.
+ */
+public class HttpForecastTransport implements ForecastTransport {
+    static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    static final int DEFAULT_READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    // How much of an unread body we're willing to read and throw away to keep the connection.
+    // Anything bigger is cheaper to just disconnect.
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    // Idle connections kept per route.  A handful is plenty for one upstream.
+    private static final String MAX_POOLED_CONNECTIONS = "5";
+
+    // How long the pool keeps an idle connection around, which is as long as a pre-warm helps.
+    static final long PREWARM_WINDOW_MILLIS = 5 * 60 * 1000;
+
+    static {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", MAX_POOLED_CONNECTIONS);
+        System.setProperty("http.keepAliveDuration", Long.toString(PREWARM_WINDOW_MILLIS));
+    }
+
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+    private final AtomicLong mTotalBytesRead = new AtomicLong();
+
+    // When we last warmed up a connection to each host, until a request gets to use it.
+    private final ConcurrentHashMap<String, Long> mPrewarmedAt =
+            new ConcurrentHashMap<String, Long>();
+
+    public HttpForecastTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    public HttpForecastTransport(int connectTimeoutMillis, int readTimeoutMillis) {
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        URL url = new URL(request.url);
+
+        Long prewarmedAt = mPrewarmedAt.remove(url.getHost());
+        boolean prewarmed = prewarmedAt != null
+                && SystemClock.elapsedRealtime() - prewarmedAt < PREWARM_WINDOW_MILLIS;
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(capTimeout(mConnectTimeoutMillis, request.timeoutMillis));
+        connection.setReadTimeout(capTimeout(mReadTimeoutMillis, request.timeoutMillis));
+        connection.setRequestMethod("GET");
+
+        // Setting this ourselves turns off HttpURLConnection's transparent gzip handling, so
+        // we undo the encoding in HttpResponse.  That way we get to count the compressed bytes.
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+
+        if (request.eTag != null) {
+            connection.setRequestProperty("If-None-Match", request.eTag);
+        }
+        if (request.ifModifiedSince != 0) {
+            connection.setIfModifiedSince(request.ifModifiedSince);
+        }
+
+        try {
+            // HttpURLConnection resolves the host as part of connecting, under the connect
+            // timeout, so the connect time includes DNS.
+            long start = SystemClock.elapsedRealtime();
+            connection.connect();
+            long connectMillis = SystemClock.elapsedRealtime() - start;
+
+            start = SystemClock.elapsedRealtime();
+            int code = connection.getResponseCode();
+            long firstByteMillis = SystemClock.elapsedRealtime() - start;
+
+            return new HttpResponse(connection, code, connectMillis, firstByteMillis, prewarmed);
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    @Override
+    public void prewarm(String url) throws IOException {
+        URL target = new URL(url);
+        // The HEAD resolves the host and leaves a connection in the pool.
+        HttpURLConnection connection = (HttpURLConnection) new URL(target.getProtocol(),
+                target.getHost(), target.getPort(), "/").openConnection();
+        connection.setConnectTimeout(mConnectTimeoutMillis);
+        connection.setReadTimeout(mReadTimeoutMillis);
+        connection.setRequestMethod("HEAD");
+        try {
+            int code = connection.getResponseCode();
+            // Whatever the answer, closing its (empty) body is what releases the connection.
+            InputStream in = code < HttpURLConnection.HTTP_BAD_REQUEST
+                    ? connection.getInputStream()
+                    : connection.getErrorStream();
+            if (in != null) {
+                in.close();
+            }
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+        mPrewarmedAt.put(target.getHost(), SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Works out how long a response stays fresh from its headers.  A max-age takes precedence
+     * over Expires, and the Age a cache in between has already used up is taken off.  Expires
+     * is taken relative to the response's Date, so our clock being off doesn't matter.
+     *
+     * @param age     the Age header in seconds, 0 if missing.
+     * @param expires the Expires header in milliseconds since the epoch, 0 if missing.
+     * @param date    the Date header in milliseconds since the epoch, 0 if missing.
+     * @return until when the response is fresh, or 0 if it isn't.
+     */
+    static long parseFreshUntil(String cacheControl, int age, long expires, long date,
+                                long nowMillis) {
+        long maxAgeSeconds = -1;
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    return 0;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        maxAgeSeconds = Long.parseLong(
+                                directive.substring("max-age=".length()).replace("\"", ""));
+                    } catch (NumberFormatException e) {
+                        // Treat it as if it wasn't there.
+                    }
+                }
+            }
+        }
+
+        long freshMillis;
+        if (maxAgeSeconds >= 0) {
+            freshMillis = (maxAgeSeconds - age) * 1000;
+        } else if (expires != 0) {
+            freshMillis = expires - (date != 0 ? date : nowMillis);
+        } else {
+            return 0;
+        }
+        return freshMillis > 0 ? nowMillis + freshMillis : 0;
+    }
+
+    private static int capTimeout(int timeoutMillis, int capMillis) {
+        return capMillis > 0 ? Math.min(timeoutMillis, capMillis) : timeoutMillis;
+    }
+
+    @Override
+    public long getTotalBytesRead() {
+        return mTotalBytesRead.get();
+    }
+
+    private class HttpResponse implements Response {
+        private final HttpURLConnection mConnection;
+        private final int mCode;
+        private final long mConnectMillis;
+        private final long mFirstByteMillis;
+        private final boolean mPrewarmed;
+        private CountingInputStream mRawBody;
+        private InputStream mBody;
+        private long mReported;
+
+        HttpResponse(HttpURLConnection connection, int code, long connectMillis,
+                     long firstByteMillis, boolean prewarmed) {
+            mConnection = connection;
+            mCode = code;
+            mConnectMillis = connectMillis;
+            mFirstByteMillis = firstByteMillis;
+            mPrewarmed = prewarmed;
+        }
+
+        @Override
+        public int getCode() {
+            return mCode;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                InputStream in = mCode < HttpURLConnection.HTTP_BAD_REQUEST
+                        ? mConnection.getInputStream()
+                        : mConnection.getErrorStream();
+                if (in == null) {
+                    return null;
+                }
+                mRawBody = new CountingInputStream(in);
+                mBody = "gzip".equalsIgnoreCase(mConnection.getContentEncoding())
+                        ? new GZIPInputStream(mRawBody)
+                        : mRawBody;
+            }
+            return mBody;
+        }
+
+        @Override
+        public String getETag() {
+            return mConnection.getHeaderField("ETag");
+        }
+
+        @Override
+        public long getLastModified() {
+            return mConnection.getLastModified();
+        }
+
+        @Override
+        public long getFreshUntil() {
+            return parseFreshUntil(mConnection.getHeaderField("Cache-Control"),
+                    mConnection.getHeaderFieldInt("Age", 0), mConnection.getExpiration(),
+                    mConnection.getDate(), System.currentTimeMillis());
+        }
+
+        @Override
+        public long getBytesRead() {
+            return mRawBody == null ? 0 : mRawBody.getCount();
+        }
+
+        @Override
+        public long getConnectMillis() {
+            return mConnectMillis;
+        }
+
+        @Override
+        public long getFirstByteMillis() {
+            return mFirstByteMillis;
+        }
+
+        @Override
+        public long getDownloadMillis() {
+            return mRawBody == null ? 0 : mRawBody.getReadMillis();
+        }
+
+        @Override
+        public boolean isPrewarmed() {
+            return mPrewarmed;
+        }
+
+        @Override
+        public void close() {
+            boolean reusable = true;
+            try {
+                if (mRawBody == null) {
+                    // Nobody looked at the body (a 304, or an error we didn't care about).
+                    // Open it anyway so it can be drained.
+                    getBody();
+                }
+                if (mRawBody != null) {
+                    reusable = drain(mRawBody);
+                    mRawBody.close();
+                }
+            } catch (IOException e) {
+                reusable = false;
+            } finally {
+                mTotalBytesRead.addAndGet(getBytesRead() - mReported);
+                mReported = getBytesRead();
+                if (!reusable) {
+                    mConnection.disconnect();
+                }
+            }
+        }
+
+        /**
+         * Reads what's left of the body so the connection can go back to the pool.
+         *
+         * @return false if there was too much left and the connection should be dropped.
+         */
+        private boolean drain(InputStream in) throws IOException {
+            byte[] buffer = new byte[4096];
+            long drained = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                drained += read;
+                if (drained > MAX_DRAIN_BYTES) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
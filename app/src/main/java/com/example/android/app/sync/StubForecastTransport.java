@@ -0,0 +1,262 @@
+package com.example.android.app.sync;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process {@link ForecastTransport} that answers from recorded forecast payloads instead of
+ * the network, so sync can be exercised and load tested offline.
+ *
+ * Payloads are looked up by the location in the request: the "q" query parameter, or
+ * "lat,lon" for coordinate requests.  Requests for a location we have nothing recorded for get
+ * the default payload if one is set, and a 404 otherwise.  Each payload gets a stable ETag, so
+ * conditional requests are answered with a 304 just like the real upstream would.
+ *
+ * Requests for the 3 hour forecast all get the same hourly payload, an empty forecast unless
+ * one is set.
+ */
+public class StubForecastTransport implements ForecastTransport {
+    private static final String QUERY_PARAM = "q";
+    private static final String LAT_PARAM = "lat";
+    private static final String LON_PARAM = "lon";
+
+    private static final byte[] NOT_FOUND_BODY =
+            "{\"cod\":\"404\",\"message\":\"city not found\"}".getBytes();
+    private static final byte[] EMPTY_HOURLY_BODY =
+            "{\"cod\":\"200\",\"cnt\":0,\"list\":[]}".getBytes();
+    private static final String DAILY_PATH_SUFFIX = "/daily";
+
+    private final Map<String, byte[]> mPayloads = new HashMap<String, byte[]>();
+    private byte[] mDefaultPayload;
+    private byte[] mHourlyPayload = EMPTY_HOURLY_BODY;
+    private volatile long mLatencyMillis;
+    private volatile int mMaxAgeSeconds;
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicLong mTotalBytesRead = new AtomicLong();
+
+    /**
+     * Creates a stub serving every "*.json" file in the given assets directory, keyed by the
+     * file name without the extension.  A file named "default.json" becomes the default payload.
+     */
+    public static StubForecastTransport fromAssets(Context context, String assetDirectory)
+            throws IOException {
+        StubForecastTransport transport = new StubForecastTransport();
+        AssetManager assets = context.getAssets();
+        String[] files = assets.list(assetDirectory);
+        if (files == null) {
+            return transport;
+        }
+        for (String file : files) {
+            if (!file.endsWith(".json")) {
+                continue;
+            }
+            byte[] payload = readFully(assets.open(assetDirectory + "/" + file));
+            String key = file.substring(0, file.length() - ".json".length());
+            if ("default".equals(key)) {
+                transport.setDefaultPayload(payload);
+            } else {
+                transport.record(key, payload);
+            }
+        }
+        return transport;
+    }
+
+    /**
+     * Serves the payload for requests about the given location setting (or "lat,lon").
+     */
+    public synchronized StubForecastTransport record(String location, byte[] payload) {
+        mPayloads.put(location, payload);
+        return this;
+    }
+
+    public synchronized StubForecastTransport setDefaultPayload(byte[] payload) {
+        mDefaultPayload = payload;
+        return this;
+    }
+
+    public synchronized StubForecastTransport setHourlyPayload(byte[] payload) {
+        mHourlyPayload = payload;
+        return this;
+    }
+
+    /**
+     * Makes every request take at least this long before its headers come back, to stand in
+     * for a slow upstream.  Requests with a shorter timeout time out instead.
+     */
+    public StubForecastTransport setLatencyMillis(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+        return this;
+    }
+
+    /**
+     * Makes the forecast responses fresh for this long, as if they came with a Cache-Control
+     * max-age.  0, the default, leaves them without one.
+     */
+    public StubForecastTransport setMaxAgeSeconds(int maxAgeSeconds) {
+        mMaxAgeSeconds = maxAgeSeconds;
+        return this;
+    }
+
+    /**
+     * @return how many requests have been answered so far.
+     */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    @Override
+    public long getTotalBytesRead() {
+        return mTotalBytesRead.get();
+    }
+
+    @Override
+    public void prewarm(String url) {
+        // There's no connection to warm up.
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        mRequestCount.incrementAndGet();
+        long latency = mLatencyMillis;
+        if (request.timeoutMillis > 0 && latency > request.timeoutMillis) {
+            // Behave like a socket that gave up waiting on the headers.
+            SystemClock.sleep(request.timeoutMillis);
+            throw new SocketTimeoutException("No response within " + request.timeoutMillis + " ms");
+        }
+        if (latency > 0) {
+            SystemClock.sleep(latency);
+        }
+
+        byte[] payload = findPayload(Uri.parse(request.url));
+        if (payload == null) {
+            return new StubResponse(HttpURLConnection.HTTP_NOT_FOUND, NOT_FOUND_BODY, null, latency);
+        }
+
+        String eTag = "\"" + Integer.toHexString(Arrays.hashCode(payload)) + "\"";
+        if (eTag.equals(request.eTag)) {
+            return new StubResponse(HttpURLConnection.HTTP_NOT_MODIFIED, new byte[0], eTag, latency);
+        }
+        return new StubResponse(HttpURLConnection.HTTP_OK, payload, eTag, latency);
+    }
+
+    private synchronized byte[] findPayload(Uri uri) {
+        String path = uri.getPath();
+        if (path == null || !path.endsWith(DAILY_PATH_SUFFIX)) {
+            return mHourlyPayload;
+        }
+        String key = uri.getQueryParameter(QUERY_PARAM);
+        if (key == null) {
+            key = uri.getQueryParameter(LAT_PARAM) + "," + uri.getQueryParameter(LON_PARAM);
+        }
+        byte[] payload = mPayloads.get(key);
+        return payload != null ? payload : mDefaultPayload;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private class StubResponse implements Response {
+        private final int mCode;
+        private final String mETag;
+        private final CountingInputStream mBody;
+        private final long mFirstByteMillis;
+        private final long mFreshUntil;
+        private boolean mClosed;
+
+        StubResponse(int code, byte[] body, String eTag, long firstByteMillis) {
+            mCode = code;
+            int maxAgeSeconds = mMaxAgeSeconds;
+            mFreshUntil = maxAgeSeconds > 0 && code != HttpURLConnection.HTTP_NOT_FOUND
+                    ? System.currentTimeMillis() + maxAgeSeconds * 1000L
+                    : 0;
+            mETag = eTag;
+            mFirstByteMillis = firstByteMillis;
+            mBody = new CountingInputStream(new ByteArrayInputStream(body));
+        }
+
+        @Override
+        public int getCode() {
+            return mCode;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return mBody;
+        }
+
+        @Override
+        public String getETag() {
+            return mETag;
+        }
+
+        @Override
+        public long getLastModified() {
+            return 0;
+        }
+
+        @Override
+        public long getFreshUntil() {
+            return mFreshUntil;
+        }
+
+        @Override
+        public long getBytesRead() {
+            return mBody.getCount();
+        }
+
+        @Override
+        public long getConnectMillis() {
+            return 0;
+        }
+
+        @Override
+        public long getFirstByteMillis() {
+            // The made up latency is all spent waiting for the "server".
+            return mFirstByteMillis;
+        }
+
+        @Override
+        public long getDownloadMillis() {
+            return mBody.getReadMillis();
+        }
+
+        @Override
+        public boolean isPrewarmed() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            if (!mClosed) {
+                mClosed = true;
+                mTotalBytesRead.addAndGet(mBody.getCount());
+            }
+        }
+    }
+}
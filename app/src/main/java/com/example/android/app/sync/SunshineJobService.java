@@ -0,0 +1,347 @@
+package com.example.android.app.sync;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SyncResult;
+import android.os.Build;
+import android.os.PersistableBundle;
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.example.android.app.R;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs sync as JobScheduler jobs instead of through the sync adapter, so the system only starts
+ * us once the constraints of the job are met and can batch our network use with other apps'.
+ *
+ * There are five kinds of job:
+ * <ul>
+ * <li>{@link #JOB_PERIODIC} refreshes the preferred and every saved location on any network,
+ * at the interval {@link SyncScheduler} picked, or every {@link #MIN_PERIOD_MILLIS_N} if that
+ * is shorter and the platform won't run periodic jobs more often.</li>
+ * <li>{@link #JOB_USER_REFRESH} is a one off refresh of every location the user asked for,
+ * e.g. after changing a setting.  It runs as soon as there's a network.</li>
+ * <li>{@link #JOB_PREFETCH} refreshes every location every few hours, but only on an
+ * unmetered network while charging.  It revalidates even forecasts that are still fresh, which
+ * costs little there, and each 304 renews their freshness so the periodic job can skip them
+ * when it next runs on a metered network.</li>
+ * <li>{@link #JOB_REVALIDATE} is a one off refresh of locations a read found stale, e.g. for a
+ * widget.  Nobody asked for it, so like the periodic job it leaves forecasts the upstream said
+ * are still fresh alone.</li>
+ * <li>{@link #JOB_BACKFILL} is the history work nobody is waiting for: once a day, while the
+ * device is charging and idle, it drops the stored forecasts of locations that are no longer
+ * synced ({@link HistoryPruner}).  It needs no network.</li>
+ * </ul>
+ *
+ * Whether this or the sync adapter is used is decided by the use_job_scheduler bool resource.
+ * The sync itself is the same either way: both end up in
+ * {@link SunshineSyncAdapter#performSync}.
+ */
+public class SunshineJobService extends JobService {
+    private static final String LOG_TAG = SunshineJobService.class.getSimpleName();
+
+    static final int JOB_PERIODIC = 1;
+    static final int JOB_USER_REFRESH = 2;
+    static final int JOB_BACKFILL = 3;
+    static final int JOB_REVALIDATE = 4;
+    static final int JOB_PREFETCH = 5;
+
+    private static final long BACKFILL_INTERVAL_MILLIS = 24 * 60 * 60 * 1000;
+    // As often as the periodic job runs at its slowest.
+    private static final long PREFETCH_INTERVAL_MILLIS =
+            SyncScheduler.MAX_INTERVAL_SECONDS * 1000L;
+    private static final long INITIAL_BACKOFF_MILLIS = 30 * 1000;
+
+    // What JobInfo.getMinPeriodMillis() returns from N (API 24) on: shorter periods are quietly
+    // raised to it.  We still build against M, which doesn't have the method.
+    static final long MIN_PERIOD_MILLIS_N = 15 * 60 * 1000;
+
+    private static final Object sSyncAdapterLock = new Object();
+    private static SunshineSyncAdapter sSunshineSyncAdapter = null;
+
+    // One job at a time, like the sync manager does for the sync adapter.
+    private static final ExecutorService sJobExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "SunshineJob");
+                }
+            });
+
+    private final Map<Integer, Future<?>> mRunningJobs = new HashMap<Integer, Future<?>>();
+
+    /**
+     * @return whether sync should run through this service rather than the sync adapter.
+     */
+    public static boolean isEnabled(Context context) {
+        return context.getResources().getBoolean(R.bool.use_job_scheduler);
+    }
+
+    /**
+     * Makes sure the periodic, prefetch and backfill jobs are scheduled, e.g. after switching
+     * over from the sync adapter.  Jobs that are already pending are left alone.
+     */
+    public static void ensureScheduled(Context context) {
+        JobScheduler scheduler = getJobScheduler(context);
+        boolean hasPeriodic = false;
+        boolean hasPrefetch = false;
+        boolean hasBackfill = false;
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            hasPeriodic |= job.getId() == JOB_PERIODIC;
+            hasPrefetch |= job.getId() == JOB_PREFETCH;
+            // Backfill jobs from before it stopped syncing still wait for an unmetered network.
+            hasBackfill |= job.getId() == JOB_BACKFILL
+                    && job.getNetworkType() == JobInfo.NETWORK_TYPE_NONE;
+        }
+        if (!hasPeriodic) {
+            int interval = SyncState.getSyncInterval(context, SunshineSyncAdapter.SYNC_INTERVAL);
+            schedulePeriodic(context, interval);
+        }
+        if (!hasPrefetch) {
+            schedulePrefetch(context);
+        }
+        if (!hasBackfill) {
+            scheduleBackfill(context);
+        }
+    }
+
+    /**
+     * (Re)schedules the periodic refresh of every location.
+     */
+    static void schedulePeriodic(Context context, int intervalSeconds) {
+        long periodMillis = getPeriodMillis(intervalSeconds);
+        if (periodMillis != intervalSeconds * 1000L) {
+            Log.d(LOG_TAG, "Periodic sync every " + intervalSeconds + " s is too often, using "
+                    + periodMillis / 1000 + " s");
+        }
+        JobInfo job = new JobInfo.Builder(JOB_PERIODIC, getComponent(context))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setPeriodic(periodMillis)
+                .setPersisted(true)
+                .build();
+        schedule(context, job);
+    }
+
+    /**
+     * @return the period the periodic job actually runs at for the given interval, which on N
+     * and later is at least {@link #MIN_PERIOD_MILLIS_N}.
+     */
+    static long getPeriodMillis(int intervalSeconds) {
+        long periodMillis = intervalSeconds * 1000L;
+        if (Build.VERSION.SDK_INT >= 24 && periodMillis < MIN_PERIOD_MILLIS_N) {
+            return MIN_PERIOD_MILLIS_N;
+        }
+        return periodMillis;
+    }
+
+    /**
+     * Refreshes the given locations, or every location if null, as soon as there is a network.
+     */
+    static void scheduleUserRefresh(Context context, String[] locationSettings, int batchId) {
+        PersistableBundle extras = new PersistableBundle();
+        extras.putStringArray(SunshineSyncAdapter.EXTRA_LOCATIONS, locationSettings);
+        extras.putInt(SunshineSyncAdapter.EXTRA_BATCH_ID, batchId);
+        JobInfo job = new JobInfo.Builder(JOB_USER_REFRESH, getComponent(context))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setBackoffCriteria(INITIAL_BACKOFF_MILLIS, JobInfo.BACKOFF_POLICY_EXPONENTIAL)
+                .setExtras(extras)
+                .build();
+        schedule(context, job);
+    }
+
+    /**
+     * Refreshes the given stale locations, or every location if null, once there is a network.
+     */
+    static void scheduleRevalidation(Context context, String[] locationSettings, int batchId) {
+        PersistableBundle extras = new PersistableBundle();
+        extras.putStringArray(SunshineSyncAdapter.EXTRA_LOCATIONS, locationSettings);
+        extras.putInt(SunshineSyncAdapter.EXTRA_BATCH_ID, batchId);
+        JobInfo job = new JobInfo.Builder(JOB_REVALIDATE, getComponent(context))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setBackoffCriteria(INITIAL_BACKOFF_MILLIS, JobInfo.BACKOFF_POLICY_EXPONENTIAL)
+                .setExtras(extras)
+                .build();
+        schedule(context, job);
+    }
+
+    /**
+     * Revalidates every location every few hours, while on an unmetered network and charging.
+     */
+    static void schedulePrefetch(Context context) {
+        JobInfo job = new JobInfo.Builder(JOB_PREFETCH, getComponent(context))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresCharging(true)
+                .setPeriodic(PREFETCH_INTERVAL_MILLIS)
+                .setPersisted(true)
+                .build();
+        schedule(context, job);
+    }
+
+    static void scheduleBackfill(Context context) {
+        JobInfo job = new JobInfo.Builder(JOB_BACKFILL, getComponent(context))
+                .setRequiresCharging(true)
+                .setRequiresDeviceIdle(true)
+                .setPeriodic(BACKFILL_INTERVAL_MILLIS)
+                .setPersisted(true)
+                .build();
+        schedule(context, job);
+    }
+
+    /**
+     * Cancels all our jobs, for when we fall back to the sync adapter.
+     */
+    static void cancelAll(Context context) {
+        JobScheduler scheduler = getJobScheduler(context);
+        scheduler.cancel(JOB_PERIODIC);
+        scheduler.cancel(JOB_USER_REFRESH);
+        scheduler.cancel(JOB_BACKFILL);
+        scheduler.cancel(JOB_REVALIDATE);
+        scheduler.cancel(JOB_PREFETCH);
+    }
+
+    private static void schedule(Context context, JobInfo job) {
+        if (getJobScheduler(context).schedule(job) != JobScheduler.RESULT_SUCCESS) {
+            Log.e(LOG_TAG, "Couldn't schedule job " + job.getId());
+        }
+    }
+
+    private static JobScheduler getJobScheduler(Context context) {
+        return (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    }
+
+    private static ComponentName getComponent(Context context) {
+        return new ComponentName(context, SunshineJobService.class);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        synchronized (sSyncAdapterLock) {
+            if (sSunshineSyncAdapter == null) {
+                sSunshineSyncAdapter = new SunshineSyncAdapter(getApplicationContext(), false);
+            }
+        }
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        if (params.getJobId() == JOB_BACKFILL) {
+            return startBackfill(params);
+        }
+        final List<SyncLocation> locations = getLocations(params);
+        if (locations.isEmpty()) {
+            return false;
+        }
+
+        synchronized (mRunningJobs) {
+            mRunningJobs.put(params.getJobId(), sJobExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(LOG_TAG, "Starting job " + params.getJobId() + " for " + locations);
+                    SyncResult syncResult = new SyncResult();
+                    // The prefetch asks about fresh forecasts too, like a user would.
+                    sSunshineSyncAdapter.performSync(locations, syncResult,
+                            params.getJobId() == JOB_USER_REFRESH
+                                    || params.getJobId() == JOB_PREFETCH,
+                            params.getExtras().getInt(SunshineSyncAdapter.EXTRA_BATCH_ID,
+                                    SyncCoordinator.NO_BATCH));
+
+                    if (!finishRunningJob(params)) {
+                        // onStopJob got here first; the job is over as far as the system is
+                        // concerned, so there's nothing to report or reschedule.
+                        return;
+                    }
+                    // Let JobScheduler retry with backoff if we couldn't reach the server,
+                    // rather than waiting for the next period.  Unless the circuit breaker is
+                    // open, in which case retrying early would only be turned away.
+                    jobFinished(params, syncResult.stats.numIoExceptions > 0
+                            && syncResult.delayUntil == 0);
+
+                    // Only now that this job is done can the periodic one be replaced.
+                    SyncScheduler.reschedule(getApplicationContext(),
+                            sSunshineSyncAdapter.isWatchConnected());
+                }
+            }));
+        }
+        return true;
+    }
+
+    private boolean startBackfill(final JobParameters params) {
+        synchronized (mRunningJobs) {
+            mRunningJobs.put(params.getJobId(), sJobExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    List<String> synced = new ArrayList<String>();
+                    for (SyncLocation location : SyncLocation.fromPreferences(
+                            SunshineJobService.this)) {
+                        synced.add(location.setting);
+                    }
+                    try {
+                        int pruned = HistoryPruner.prune(getContentResolver(), synced);
+                        Log.d(LOG_TAG, "Pruned the history of " + pruned + " locations");
+                    } catch (RemoteException | OperationApplicationException e) {
+                        Log.e(LOG_TAG, "Error pruning the history", e);
+                    }
+                    if (finishRunningJob(params)) {
+                        jobFinished(params, false);
+                    }
+                }
+            }));
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the job was still running, i.e. onStopJob hasn't cancelled it.
+     */
+    private boolean finishRunningJob(JobParameters params) {
+        synchronized (mRunningJobs) {
+            return mRunningJobs.remove(params.getJobId()) != null;
+        }
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // The constraints no longer hold, e.g. the network went away or we were unplugged.
+        Future<?> future;
+        synchronized (mRunningJobs) {
+            future = mRunningJobs.remove(params.getJobId());
+        }
+        if (future != null) {
+            future.cancel(true);
+        }
+        return true;
+    }
+
+    private List<SyncLocation> getLocations(JobParameters params) {
+        List<SyncLocation> all = SyncLocation.fromPreferences(this);
+        if (params.getJobId() == JOB_USER_REFRESH || params.getJobId() == JOB_REVALIDATE) {
+            return SyncLocation.filter(all,
+                    params.getExtras().getStringArray(SunshineSyncAdapter.EXTRA_LOCATIONS));
+        }
+        // The periodic and prefetch jobs refresh every location, like the sync adapter's
+        // periodic sync.
+        return all;
+    }
+}
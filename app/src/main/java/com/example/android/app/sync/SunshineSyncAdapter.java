@@ -2,65 +2,61 @@ package com.example.android.app.sync;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
-import android.annotation.SuppressLint;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
-import android.content.res.Resources;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
-import android.support.v4.app.NotificationCompat;
-import android.support.v4.app.TaskStackBuilder;
+import android.text.TextUtils;
 import android.text.format.Time;
 import android.util.Log;
 
-import com.bumptech.glide.Glide;
 import com.example.android.app.BuildConfig;
-import com.example.android.app.MainActivity;
 import com.example.android.app.R;
-import com.example.android.app.Utility;
+import com.example.android.app.data.LocationRegistry;
 import com.example.android.app.data.WeatherContract;
-import com.example.android.app.muzei.WeatherMuzeiSource;
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.ResultCallback;
-import com.google.android.gms.wearable.Asset;
-import com.google.android.gms.wearable.DataApi;
-import com.google.android.gms.wearable.PutDataMapRequest;
-import com.google.android.gms.wearable.PutDataRequest;
-import com.google.android.gms.wearable.Wearable;
-
-import org.json.JSONArray;
+
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.Vector;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
@@ -68,24 +64,14 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
             "com.example.android.sunshine.app.ACTION_DATA_UPDATED";
     // Interval at which to sync with the weather, in seconds.
     // 60 seconds (1 minute) * 180 = 3 hours
+    // This is only the interval we start with; SyncScheduler adjusts it after every sync.
     public static final int SYNC_INTERVAL = 45;
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
-    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
-    private static final int WEATHER_NOTIFICATION_ID = 3004;
-
+    // Sync extra naming the location settings to sync, when not all of them.
+    static final String EXTRA_LOCATIONS = "com.example.android.app.sync.extra.LOCATIONS";
+    // Sync extra naming the SyncCoordinator batch a sync was asked for by, if any.
+    static final String EXTRA_BATCH_ID = "com.example.android.app.sync.extra.BATCH_ID";
 
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
-    };
-
-    // these indices must match the projection
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-    private static final int INDEX_SHORT_DESC = 3;
 
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
@@ -97,453 +83,802 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static final int LOCATION_STATUS_UNKNOWN = 3;
     public static final int LOCATION_STATUS_INVALID = 4;
 
-    private GoogleApiClient mGoogleApiClient;
+    // The most forecast requests we have in flight at the same time, and how long a whole sync
+    // may take before we stop waiting for the stragglers.
+    private static final int MAX_PARALLEL_LOCATIONS = 4;
+    static final long SYNC_BUDGET_MILLIS = 2 * 60 * 1000;
+
+    // How much of the sync's budget one group's requests may take, and how that is split
+    // between the stages.  Each stage is also bounded by what's left of the request's budget,
+    // so a stage that finishes early leaves more for the ones after it.
+    private static final float REQUEST_SHARE = 0.5f;
+    private static final float FETCH_SHARE = 0.3f;
+    private static final float PARSE_SHARE = 0.3f;
+    private static final float PERSIST_SHARE = 0.2f;
+    private static final float HOURLY_SHARE = 0.2f;
+
+    // However long the upstream says a forecast stays fresh, a periodic sync still goes out
+    // after this long, in case a misconfigured cache promises days.
+    private static final long MAX_FRESH_MILLIS = 6 * 60 * 60 * 1000;
+
+    private static final ExecutorService sLocationExecutor =
+            createExecutor(MAX_PARALLEL_LOCATIONS, "SunshineSync");
+
+    // The UI coming back more often than this doesn't warm up another connection; the last one
+    // is still in the pool.
+    private static final long PREWARM_INTERVAL_MILLIS = 60 * 1000;
+    private static final AtomicLong sLastPrewarmMillis = new AtomicLong();
+    // Prewarming blocks on the network, so it gets a thread of its own rather than holding up a
+    // sync worker.
+    private static final ExecutorService sPrewarmExecutor = createExecutor(1, "SunshinePrewarm");
+
+    private static final Object sTransportLock = new Object();
+    private static ForecastTransport sForecastTransport = null;
+
+    private final SyncFanOut mFanOut;
+    private final HourlyForecastSync mHourly;
 
-    public SunshineSyncAdapter(Context context, boolean autoInitialize) {
-        super(context, autoInitialize);
+    /**
+     * Outcome of syncing one group of locations.
+     */
+    private static final class GroupResult {
+        final int[] statuses;
+        final long elapsedMillis;
+        final SyncTimings timings;
+
+        GroupResult(int[] statuses, long elapsedMillis, SyncTimings timings) {
+            this.statuses = statuses;
+            this.elapsedMillis = elapsedMillis;
+            this.timings = timings;
+        }
+    }
 
-        /*mGoogleApiClient = new GoogleApiClient.Builder(context)
-                .addApi(Wearable.API)
-                .build();*/
+    private static ExecutorService createExecutor(int threads, final String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads,
+                30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
 
-        mGoogleApiClient = new GoogleApiClient.Builder(context)
-                .addConnectionCallbacks(new GoogleApiClient.ConnectionCallbacks() {
-                    @Override
-                    public void onConnected(Bundle connectionHint) {
-                    }
                     @Override
-                    public void onConnectionSuspended(int cause) {
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, name + " #" + mCount.incrementAndGet());
                     }
-                })
-                .addOnConnectionFailedListener(new GoogleApiClient.OnConnectionFailedListener() {
-                    @Override
-                    public void onConnectionFailed(ConnectionResult result) {
-                    }
-                })
-                .addApi(Wearable.API)
-                .build();
-        mGoogleApiClient.connect();
+                });
+        // Don't keep idle threads around between syncs.
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public SunshineSyncAdapter(Context context, boolean autoInitialize) {
+        super(context, autoInitialize);
+        mFanOut = new SyncFanOut(context);
+        mHourly = new HourlyForecastSync(context);
     }
 
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
         Log.d(LOG_TAG, "Starting sync");
+        // Syncs asked for through syncImmediately may only be about some of the locations.
+        List<SyncLocation> locations = SyncLocation.filter(
+                SyncLocation.fromPreferences(getContext()),
+                extras.getStringArray(EXTRA_LOCATIONS));
+        performSync(locations, syncResult,
+                extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false),
+                extras.getInt(EXTRA_BATCH_ID, SyncCoordinator.NO_BATCH));
+
+        // Pick when to come back based on how this and the previous syncs went.
+        SyncScheduler.reschedule(getContext(), isWatchConnected());
+    }
 
-        // We no longer need just the location String, but also potentially the latitude and
-        // longitude, in case we are syncing based on a new Place Picker API result.
+    /**
+     * Fetches and stores the forecast for the given locations.  This is the whole sync,
+     * whether it was started by the sync manager or by {@link SunshineJobService}.
+     *
+     * @param userInitiated whether the user asked for this sync.  Otherwise locations whose
+     *                      forecast the upstream said is still fresh are left alone.
+     * @param batchId       the {@link SyncCoordinator} batch this sync was asked for by, or
+     *                      {@link SyncCoordinator#NO_BATCH}.
+     */
+    void performSync(List<SyncLocation> locations, SyncResult syncResult,
+                     boolean userInitiated, int batchId) {
         Context context = getContext();
-        String locationQuery = Utility.getPreferredLocation(context);
-        String locationLatitude = String.valueOf(Utility.getLocationLatitude(context));
-        String locationLongitude = String.valueOf(Utility.getLocationLongitude(context));
+        Map<String, Integer> statusByLocation = new HashMap<String, Integer>();
+        String preferredSetting = null;
+
+        // Don't even open a connection for a forecast the upstream told us not to ask about
+        // again yet.  Someone asking for it explicitly gets it anyway.
+        if (!userInitiated) {
+            List<SyncLocation> stale = new ArrayList<SyncLocation>(locations.size());
+            long now = System.currentTimeMillis();
+            for (SyncLocation location : locations) {
+                long freshUntil = SyncState.getFreshUntil(context, location.setting);
+                if (now < freshUntil && hasStoredForecast(location.setting)) {
+                    Log.d(LOG_TAG, "Not syncing " + location + ", fresh until " +
+                            new Date(freshUntil));
+                    statusByLocation.put(location.setting, LOCATION_STATUS_OK);
+                    if (location.preferred) {
+                        preferredSetting = location.setting;
+                    }
+                } else {
+                    stale.add(location);
+                }
+            }
+            locations = stale;
+        }
+
+        // Locations that resolve to the same upstream query share a single request.
+        List<ForecastBatcher.Group> groups = ForecastBatcher.group(locations);
+
+        // Fetch the groups on the worker pool, in waves sized from the latency we've been
+        // seeing.  Each group gets its own request, parse and transactions, so a slow or broken
+        // city only holds up its own worker.
+        long batchStart = SystemClock.elapsedRealtime();
+        final long syncTimeMillis = System.currentTimeMillis();
+        final SyncDeadline deadline = new SyncDeadline(SyncDeadline.STAGE_SYNC, SYNC_BUDGET_MILLIS);
+        long sequentialMillis = 0;
+        int requests = 0;
+        SyncTimings totalTimings = new SyncTimings();
+        int next = 0;
+        while (next < groups.size()) {
+            if (deadline.isExpired()) {
+                // Out of time: the groups we didn't get to keep what they have, and since that
+                // says nothing about the upstream, neither the breaker nor the wave size hear
+                // about it.
+                for (ForecastBatcher.Group group : groups.subList(next, groups.size())) {
+                    Log.d(LOG_TAG, "Not syncing " + group + ", out of time");
+                    int[] statuses = skipGroup(group, syncTimeMillis);
+                    for (int j = 0; j < statuses.length; j++) {
+                        SyncLocation location = group.locations.get(j);
+                        statusByLocation.put(location.setting, statuses[j]);
+                        if (location.preferred) {
+                            preferredSetting = location.setting;
+                        }
+                    }
+                }
+                break;
+            }
+            int waveSize = ForecastBatcher.getWaveSize(context, MAX_PARALLEL_LOCATIONS);
+            List<ForecastBatcher.Group> wave =
+                    groups.subList(next, Math.min(groups.size(), next + waveSize));
+            next += wave.size();
+
+            List<Future<GroupResult>> futures = new ArrayList<Future<GroupResult>>(wave.size());
+            // Set by whoever gets to a group first: its worker, or the wait below giving up on
+            // it.  The loser leaves the group's metrics to the winner.
+            final List<AtomicBoolean> claims = new ArrayList<AtomicBoolean>(wave.size());
+            for (final ForecastBatcher.Group group : wave) {
+                final AtomicBoolean claim = new AtomicBoolean();
+                claims.add(claim);
+                futures.add(sLocationExecutor.submit(new Callable<GroupResult>() {
+                    @Override
+                    public GroupResult call() {
+                        if (!claim.compareAndSet(false, true)) {
+                            return null;
+                        }
+                        long start = SystemClock.elapsedRealtime();
+                        SyncTimings timings = new SyncTimings();
+                        // Groups in later waves get a full share too, as far as the sync's
+                        // budget still allows.
+                        SyncDeadline requestDeadline =
+                                deadline.stage(SyncDeadline.STAGE_REQUEST, REQUEST_SHARE);
+                        int[] statuses = syncGroup(group, requestDeadline, timings, syncTimeMillis);
+                        return new GroupResult(statuses, SystemClock.elapsedRealtime() - start,
+                                timings);
+                    }
+                }));
+            }
 
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+            long slowestMillis = 0;
+            boolean anyFailed = false;
+            boolean timedOut = false;
+            for (int i = 0; i < futures.size(); i++) {
+                ForecastBatcher.Group group = wave.get(i);
+                Future<GroupResult> future = futures.get(i);
+                int[] statuses;
+                long elapsed;
+                try {
+                    // Every group works within the sync's budget, so this only runs out on a
+                    // group that never got a worker in time, or on a blocking call that didn't
+                    // honor its deadline.
+                    GroupResult result = future.get(deadline.getRemainingMillis(),
+                            TimeUnit.MILLISECONDS);
+                    statuses = result.statuses;
+                    elapsed = result.elapsedMillis;
+                    Log.d(LOG_TAG, "Stages for " + group + ": " + result.timings);
+                    totalTimings.add(result.timings);
+                } catch (TimeoutException e) {
+                    // The sync's budget ran out before this group was done.  Like a group that
+                    // never got to start, that's not the upstream's fault.
+                    Log.w(LOG_TAG, "Out of time waiting for " + group);
+                    future.cancel(true);
+                    elapsed = SystemClock.elapsedRealtime() - batchStart;
+                    if (claims.get(i).compareAndSet(false, true)) {
+                        statuses = skipGroup(group, syncTimeMillis);
+                    } else {
+                        // The worker records its own metrics once it notices the interrupt.
+                        statuses = unknownStatuses(group);
+                    }
+                    timedOut = true;
+                } catch (InterruptedException e) {
+                    // The sync itself was cancelled (e.g. the system stopped the job).  Nothing
+                    // went wrong with the upstream, so leave the statuses alone and call off the
+                    // groups still out.  Whoever is waiting on this sync keeps waiting for it to
+                    // be retried.
+                    Thread.currentThread().interrupt();
+                    Log.d(LOG_TAG, "Sync cancelled while waiting for " + group);
+                    for (Future<GroupResult> outstanding : futures.subList(i, futures.size())) {
+                        outstanding.cancel(true);
+                    }
+                    return;
+                } catch (ExecutionException e) {
+                    Log.e(LOG_TAG, "Error syncing " + group, e);
+                    future.cancel(true);
+                    statuses = failedStatuses(group);
+                    elapsed = SystemClock.elapsedRealtime() - batchStart;
+                }
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+                for (int j = 0; j < statuses.length; j++) {
+                    SyncLocation location = group.locations.get(j);
+                    @LocationStatus int status = statuses[j];
+                    if (status == LOCATION_STATUS_SERVER_DOWN) {
+                        syncResult.stats.numIoExceptions++;
+                        anyFailed = true;
+                    } else if (status == LOCATION_STATUS_SERVER_INVALID) {
+                        syncResult.stats.numParseExceptions++;
+                        anyFailed = true;
+                    }
+                    statusByLocation.put(location.setting, status);
+                    if (location.preferred) {
+                        preferredSetting = location.setting;
+                    }
+                    // The location status only describes the location the UI is showing.
+                    if (location.preferred && status != LOCATION_STATUS_UNKNOWN) {
+                        setLocationStatus(context, status);
+                    }
+                    Log.d(LOG_TAG, "Synced " + location + " in " + elapsed + " ms, status " + status);
+                }
+                slowestMillis = Math.max(slowestMillis, elapsed);
+                sequentialMillis += elapsed;
+                requests++;
+            }
+            // A wave cut short by the budget didn't tell us how fast the upstream is.
+            if (!timedOut) {
+                ForecastBatcher.onWaveFinished(context, waveSize, MAX_PARALLEL_LOCATIONS,
+                        slowestMillis, anyFailed);
+            }
+        }
 
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
+        Log.d(LOG_TAG, "Synced " + locations.size() + " locations with " + requests +
+                " requests in " + (SystemClock.elapsedRealtime() - batchStart) + " ms (" +
+                sequentialMillis + " ms one after the other). Stages: " + totalTimings);
+        Log.d(LOG_TAG, "Location registry: " + LocationRegistry.getInstance() + " (hit rate " +
+                LocationRegistry.getInstance().getHitRate() + ")");
+        ForecastTransport transport = getForecastTransport();
+        if (transport instanceof HedgingForecastTransport) {
+            Log.d(LOG_TAG, "Hedging: " + transport);
+        }
 
-        try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String LAT_PARAM = "lat";
-            final String LON_PARAM = "lon";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri.Builder uriBuilder = Uri.parse(FORECAST_BASE_URL).buildUpon();
-
-            // Instead of always building the query based off of the location string, we want to
-            // potentially build a query using a lat/lon value. This will be the case when we are
-            // syncing based off of a new location from the Place Picker API. So we need to check
-            // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
-            // service may not understand the location address provided by the Place Picker API
-            // and the user could end up with no weather! The horror!
-            if (Utility.isLocationLatLonAvailable(context)) {
-                uriBuilder.appendQueryParameter(LAT_PARAM, locationLatitude)
-                        .appendQueryParameter(LON_PARAM, locationLongitude);
-            } else {
-                uriBuilder.appendQueryParameter(QUERY_PARAM, locationQuery);
+        // While the upstream is known to be down, ask the sync manager not to bother us until
+        // the breaker lets requests through again.
+        CircuitBreaker breaker = CircuitBreaker.forEndpoint(context, CircuitBreaker.FORECAST_ENDPOINT);
+        if (breaker.getState() == CircuitBreaker.STATE_OPEN) {
+            syncResult.delayUntil = breaker.getRetryAtMillis() / 1000;
+            Log.d(LOG_TAG, "Circuit breaker open (" + breaker.getTripCount() + " trips, " +
+                    breaker.getRejectedCount() + " requests held back), delaying syncs until " +
+                    new Date(breaker.getRetryAtMillis()));
+        }
+
+        // Let anyone waiting on these locations know they're done.
+        SyncCoordinator.getInstance(context).onSyncFinished(batchId, statusByLocation,
+                preferredSetting);
+    }
+
+    /**
+     * @return whether a watch is connected that could be showing our weather.
+     */
+    boolean isWatchConnected() {
+        return mFanOut.isWatchConnected();
+    }
+
+    private static int[] failedStatuses(ForecastBatcher.Group group) {
+        int[] statuses = new int[group.locations.size()];
+        Arrays.fill(statuses, LOCATION_STATUS_SERVER_DOWN);
+        return statuses;
+    }
+
+    private static int[] unknownStatuses(ForecastBatcher.Group group) {
+        int[] statuses = new int[group.locations.size()];
+        Arrays.fill(statuses, LOCATION_STATUS_UNKNOWN);
+        return statuses;
+    }
+
+    /**
+     * Leaves a group alone because the sync's budget is used up, and says so in the metrics
+     * table.  That says nothing about the upstream, so the breaker is left out of it.
+     *
+     * @return the resulting location status for each location in the group, in order.
+     */
+    private int[] skipGroup(ForecastBatcher.Group group, long syncTimeMillis) {
+        SyncTimings timings = new SyncTimings();
+        timings.onTimedOut(SyncDeadline.STAGE_SYNC);
+        String forecastUrl = buildForecastUrl(group.getQueryLocation());
+        timings.record(getContext().getContentResolver(), syncTimeMillis,
+                group.getQueryLocation().setting, LOCATION_STATUS_UNKNOWN,
+                CircuitBreaker.forUrl(getContext(), forecastUrl).getState(), 0);
+        return unknownStatuses(group);
+    }
+
+    /**
+     * Fetches and parses the forecast for a group of locations sharing one upstream query, then
+     * stores it for each of them, all within the given deadline.  How long it all took goes into
+     * the sync metrics table.
+     *
+     * @return the resulting location status for each location in the group, in order.
+     */
+    private int[] syncGroup(ForecastBatcher.Group group, SyncDeadline deadline,
+                            SyncTimings timings, long syncTimeMillis) {
+        long start = SystemClock.elapsedRealtime();
+        String forecastUrl = buildForecastUrl(group.getQueryLocation());
+
+        // Don't add to the load of an upstream that's already struggling.
+        CircuitBreaker breaker = CircuitBreaker.forUrl(getContext(), forecastUrl);
+        int[] statuses;
+        if (deadline.isExpired()) {
+            // The sync's budget was used up by the groups before this one.  That says nothing
+            // about the upstream, so leave the breaker out of it.
+            Log.d(LOG_TAG, "Not syncing " + group + ", out of time");
+            timings.onTimedOut(deadline.getStage());
+            statuses = unknownStatuses(group);
+        } else if (!breaker.allowRequest()) {
+            Log.d(LOG_TAG, "Not syncing " + group + ", " + breaker.getEndpoint() + " is down");
+            statuses = failedStatuses(group);
+        } else {
+            statuses = fetchGroup(group, forecastUrl, deadline, timings);
+            // Every location in the group got the same response, so the first one speaks for
+            // the server.
+            breaker.onResult(statuses[0]);
+
+            // The hourly forecast comes from the same upstream, so it only goes out once the
+            // daily one made it through.  A failure here leaves the daily forecast alone.
+            if (statuses[0] == LOCATION_STATUS_OK && mHourly.isDue(group)) {
+                @LocationStatus int hourlyStatus = mHourly.sync(group, getForecastTransport(),
+                        deadline.stage(SyncDeadline.STAGE_HOURLY, HOURLY_SHARE), timings);
+                breaker.onResult(hourlyStatus);
+                Log.d(LOG_TAG, "Hourly forecast for " + group + ", status " + hourlyStatus);
             }
+        }
 
-            Uri builtUri = uriBuilder.appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
+        // Every location in the group has the same status, so the query location's stands for
+        // the request.
+        @LocationStatus int status = statuses[0];
+        timings.record(getContext().getContentResolver(), syncTimeMillis,
+                group.getQueryLocation().setting, status, breaker.getState(),
+                SystemClock.elapsedRealtime() - start);
+        return statuses;
+    }
 
-            URL url = new URL(builtUri.toString());
+    private int[] fetchGroup(ForecastBatcher.Group group, String forecastUrl,
+                             SyncDeadline deadline, SyncTimings timings) {
+        Context context = getContext();
+        SyncLocation queryLocation = group.getQueryLocation();
+        int[] statuses = new int[group.locations.size()];
 
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
+        // This needs to be declared outside the try/catch
+        // so that it can be closed in the finally block.
+        ForecastTransport.Response response = null;
+        // The stage we're in, to tell which one ran out of time if it ends in an IOException.
+        SyncDeadline stage = null;
 
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
+        try {
+            ForecastTransport.Request request = new ForecastTransport.Request(forecastUrl);
+
+            // If we still have the forecast from the last response, only ask for the data again
+            // if it changed since.  That only works if every location in the group still has
+            // the forecast the validators describe.
+            String eTag = SyncState.getETag(context, queryLocation.setting, forecastUrl);
+            long lastModified = SyncState.getLastModified(context, queryLocation.setting, forecastUrl);
+            boolean conditional = eTag != null || lastModified != 0;
+            for (SyncLocation location : group.locations) {
+                if (!conditional) {
+                    break;
+                }
+                conditional = TextUtils.equals(eTag,
+                                SyncState.getETag(context, location.setting, forecastUrl))
+                        && lastModified == SyncState.getLastModified(context, location.setting, forecastUrl)
+                        && hasStoredForecast(location.setting);
             }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
+            if (conditional) {
+                request.setETag(eTag).setIfModifiedSince(lastModified);
             }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
+            // Stage 1, fetch: send the request to OpenWeatherMap.  The socket timeouts come from
+            // the fetch budget, which also bounds every read of the body in stage 2.
+            stage = deadline.stage(SyncDeadline.STAGE_FETCH, FETCH_SHARE);
+            request.setTimeoutMillis(stage.getTimeoutMillis());
+            long stageStart = SystemClock.elapsedRealtime();
+            response = getForecastTransport().execute(request);
+            timings.fetchMillis = SystemClock.elapsedRealtime() - stageStart;
+            timings.setResponse(response);
+
+            if (response.getCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // What we have is still current, so there is nothing to parse, store or
+                // tell anyone about.
+                SyncState.incrementNotModifiedCount(context);
+                Log.d(LOG_TAG, "Sync Complete for " + group + ". Not modified (" +
+                        SyncState.getNotModifiedCount(context) + " so far)");
+                if (group.getQueryLocation().preferred) {
+                    SyncState.recordForecastChange(context, false);
+                }
+                // A 304 renews the freshness of what we have.
+                long freshUntil = getFreshUntil(response);
+                for (SyncLocation location : group.locations) {
+                    SyncState.setFreshUntil(context, location.setting, freshUntil);
+                    SyncState.setSyncedAt(context, location.setting, System.currentTimeMillis());
+                }
+                Arrays.fill(statuses, LOCATION_STATUS_OK);
+                return statuses;
+            }
+            if (response.getCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Forecast request failed with HTTP " + response.getCode());
             }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
+
+            // Stage 2, parse: read the forecast straight off the connection.  An empty stream
+            // shows up as an EOFException from the parser, which we treat like any other failed
+            // download.
+            InputStream inputStream = response.getBody();
+            if (inputStream == null) {
+                // Nothing to do.
+                Arrays.fill(statuses, LOCATION_STATUS_UNKNOWN);
+                return statuses;
+            }
+            stage = deadline.stage(SyncDeadline.STAGE_PARSE, PARSE_SHARE);
+            stageStart = SystemClock.elapsedRealtime();
+            ParsedForecast forecast = getWeatherDataFromStream(stage.wrap(inputStream));
+            timings.parseMillis = SystemClock.elapsedRealtime() - stageStart;
+            timings.setResponse(response);
+
+            // Stage 3, persist: hand the one response to every location that asked for it.
+            // Stage 4, fan-out, is queued by storeForecast once the preferred location is
+            // committed, and doesn't hold up the sync.  Every location's write is a transaction
+            // of its own, so running out of time leaves the ones not yet written as they were.
+            stage = deadline.stage(SyncDeadline.STAGE_PERSIST, PERSIST_SHARE);
+            stageStart = SystemClock.elapsedRealtime();
+            for (int i = 0; i < statuses.length; i++) {
+                SyncLocation location = group.locations.get(i);
+                if (stage.isExpired()) {
+                    timings.onTimedOut(stage.getStage());
+                    statuses[i] = LOCATION_STATUS_UNKNOWN;
+                } else {
+                    statuses[i] = storeForecast(forecast, location, timings);
+                }
+                if (statuses[i] == LOCATION_STATUS_OK) {
+                    SyncState.setValidators(context, location.setting, forecastUrl,
+                            response.getETag(), response.getLastModified());
+                    SyncState.setFreshUntil(context, location.setting, getFreshUntil(response));
+                    SyncState.setSyncedAt(context, location.setting, System.currentTimeMillis());
+                } else {
+                    SyncState.clearValidators(context, location.setting);
+                }
+            }
+            timings.persistMillis = SystemClock.elapsedRealtime() - stageStart;
+            return statuses;
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error ", e);
+            // A socket timeout or a failed deadline check both mean the stage ran out of time.
+            if (stage != null && stage.isExpired()) {
+                timings.onTimedOut(stage.getStage());
+            }
             // If the code didn't successfully get the weather data, there's no point in attempting
             // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+            Arrays.fill(statuses, LOCATION_STATUS_SERVER_DOWN);
+            return statuses;
         } catch (JSONException e) {
             Log.e(LOG_TAG, e.getMessage(), e);
             e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+            Arrays.fill(statuses, LOCATION_STATUS_SERVER_INVALID);
+            return statuses;
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            if (reader != null) {
+            // Closing the response, rather than disconnecting, lets the transport hand the
+            // connection back to its pool for the next sync.
+            if (response != null) {
                 try {
-                    reader.close();
+                    response.close();
                 } catch (final IOException e) {
                     Log.e(LOG_TAG, "Error closing stream", e);
                 }
             }
         }
-        return;
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
-     *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * @return until when the response says it's fresh, but no further than
+     * {@link #MAX_FRESH_MILLIS} from now.
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-
-        //Log.v("SunshineSyncAdapter", "Sync");
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
+    private static long getFreshUntil(ForecastTransport.Response response) {
+        return Math.min(response.getFreshUntil(), System.currentTimeMillis() + MAX_FRESH_MILLIS);
+    }
 
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
+    /**
+     * Builds the OpenWeatherMap daily forecast URL for a location.
+     */
+    static String buildForecastUrl(SyncLocation location) {
+        final String FORECAST_BASE_URL =
+                "http://api.openweathermap.org/data/2.5/forecast/daily?";
+        int numDays = 14;
+        return buildUrl(FORECAST_BASE_URL, location, numDays);
+    }
 
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
+    /**
+     * Builds the OpenWeatherMap 3 hour forecast URL for a location.
+     */
+    static String buildHourlyForecastUrl(SyncLocation location) {
+        final String HOURLY_BASE_URL =
+                "http://api.openweathermap.org/data/2.5/forecast?";
+        // Five days in 3 hour steps
+        int numSteps = 40;
+        return buildUrl(HOURLY_BASE_URL, location, numSteps);
+    }
 
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
+    private static String buildUrl(String baseUrl, SyncLocation location, int count) {
+        String format = "json";
+        String units = "metric";
 
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
+        // Construct the URL for the OpenWeatherMap query
+        // Possible parameters are avaiable at OWM's forecast API page, at
+        // http://openweathermap.org/API#forecast
+        final String QUERY_PARAM = "q";
+        final String LAT_PARAM = "lat";
+        final String LON_PARAM = "lon";
+        final String FORMAT_PARAM = "mode";
+        final String UNITS_PARAM = "units";
+        final String DAYS_PARAM = "cnt";
+        final String APPID_PARAM = "APPID";
+
+        Uri.Builder uriBuilder = Uri.parse(baseUrl).buildUpon();
+
+        // Instead of always building the query based off of the location string, we want to
+        // potentially build a query using a lat/lon value. This will be the case when we are
+        // syncing based off of a new location from the Place Picker API. So we need to check
+        // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
+        // service may not understand the location address provided by the Place Picker API
+        // and the user could end up with no weather! The horror!
+        if (location.hasLatLon()) {
+            uriBuilder.appendQueryParameter(LAT_PARAM, location.latitude)
+                    .appendQueryParameter(LON_PARAM, location.longitude);
+        } else {
+            uriBuilder.appendQueryParameter(QUERY_PARAM, location.setting);
+        }
 
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
+        return uriBuilder.appendQueryParameter(FORMAT_PARAM, format)
+                .appendQueryParameter(UNITS_PARAM, units)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(count))
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build()
+                .toString();
+    }
 
-        final String OWM_MESSAGE_CODE = "cod";
+    /**
+     * Replaces the transport used to reach the forecast upstream, e.g. with a
+     * {@link StubForecastTransport} to load test sync offline.  Passing null goes back to the
+     * default {@link HttpForecastTransport}.
+     */
+    public static void setForecastTransport(ForecastTransport transport) {
+        synchronized (sTransportLock) {
+            sForecastTransport = transport;
+        }
+    }
 
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-            Context context = getContext();
-
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
+    static ForecastTransport getForecastTransport() {
+        synchronized (sTransportLock) {
+            if (sForecastTransport == null) {
+                sForecastTransport = new HttpForecastTransport();
+                // With mirrors to go to, the slowest requests get a second chance there.
+                List<String> mirrors = HedgingForecastTransport.getConfiguredMirrors();
+                if (!mirrors.isEmpty()) {
+                    sForecastTransport = new HedgingForecastTransport(sForecastTransport, mirrors);
                 }
             }
+            return sForecastTransport;
+        }
+    }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
-
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
+    /**
+     * A forecast response, parsed but not yet stored.  The rows don't have a location key yet,
+     * so the same forecast can be written for several locations.
+     */
+    private static final class ParsedForecast {
+        int messageCode;
+        String cityName;
+        double cityLatitude;
+        double cityLongitude;
+        boolean hasCity;
+        final ArrayList<ContentValues> rows = new ArrayList<ContentValues>();
+        int todayHigh;
+        int todayLow;
+        int todayWeatherId;
+        String digest;
+        // Rows dated on or before this are history and get deleted.
+        long oldDataCutoff;
+    }
 
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
+    /**
+     * Stream the forecast JSON out of the response and pull out the days we care about.
+     *
+     * The response is read field by field by {@link ForecastParser}, which reuses a single
+     * per-day record, so we never hold the raw payload or an org.json tree in memory.  Only
+     * the ContentValues we hand to the provider are allocated per day.
+     */
+    private ParsedForecast getWeatherDataFromStream(InputStream forecastStream)
+            throws IOException, JSONException {
 
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, which means that we need to know the GMT offset to translate this data
+        // properly.
 
-            Time dayTime = new Time();
-            dayTime.setToNow();
+        // Since this data is also sent in-order and the first day is always the
+        // current day, we're going to take advantage of that to get a nice
+        // normalized UTC date for all of our weather.
 
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        Time dayTime = new Time();
+        dayTime.setToNow();
 
-            // now we work exclusively in UTC
-            dayTime = new Time();
+        // we start at the day returned by local time. Otherwise this is a mess.
+        final int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
 
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
+        // now we work exclusively in UTC
+        final Time utcTime = new Time();
 
-                int high;
-                int low;
+        final ParsedForecast forecast = new ParsedForecast();
+        final ForecastDigest digest = new ForecastDigest();
 
-                String description;
-                int weatherId;
+        forecast.messageCode = new ForecastParser().parse(forecastStream, new ForecastParser.Callback() {
+            @Override
+            public void onCity(String cityName, double latitude, double longitude) {
+                forecast.cityName = cityName;
+                forecast.cityLatitude = latitude;
+                forecast.cityLongitude = longitude;
+                forecast.hasCity = true;
+            }
 
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
+            @Override
+            public void onDay(int index, ForecastParser.DayForecast day) {
+                if (index == 0) {
+                    forecast.todayHigh = day.high;
+                    forecast.todayLow = day.low;
+                    forecast.todayWeatherId = day.weatherId;
+                }
 
                 // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
-
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getInt(OWM_MAX);
-                low = temperatureObject.getInt(OWM_MIN);
-
-                //if(dateTime == new Date("03/14/2016"))
-               // Log.v("MainActivity", "B4 SYNC");
-                if (i == 0) {
-                    syncWatch(String.valueOf(high), String.valueOf(low), weatherId);
-                }
-              //  Log.v("MainActivity", "AFTER SYNC");
+                long dateTime = utcTime.setJulianDay(julianStartDay + index);
+
+                digest.update(dateTime)
+                        .update(day.humidity)
+                        .update(day.pressure)
+                        .update(day.windSpeed)
+                        .update(day.windDirection)
+                        .update(day.high)
+                        .update(day.low)
+                        .update(day.description)
+                        .update(day.weatherId);
+
                 ContentValues weatherValues = new ContentValues();
 
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
                 weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
-
-                cVVector.add(weatherValues);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, day.humidity);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, day.pressure);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, day.windSpeed);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, day.windDirection);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, day.high);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, day.low);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, day.description);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, day.weatherId);
+
+                forecast.rows.add(weatherValues);
             }
+        });
 
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
-
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
-            }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
+        forecast.digest = digest.update(forecast.rows.size()).digest();
+        forecast.oldDataCutoff = utcTime.setJulianDay(julianStartDay - 1);
+        return forecast;
+    }
 
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+    /**
+     * Writes a parsed forecast for one location.
+     *
+     * @return the resulting location status.
+     */
+    @LocationStatus
+    private int storeForecast(ParsedForecast forecast, SyncLocation location,
+                              SyncTimings timings)
+            throws JSONException {
+        String locationSetting = location.setting;
+
+        // do we have an error?
+        switch (forecast.messageCode) {
+            case HttpURLConnection.HTTP_OK:
+                break;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                return LOCATION_STATUS_INVALID;
+            default:
+                return LOCATION_STATUS_SERVER_DOWN;
         }
-    }
 
-    private void updateWidgets() {
-        Context context = getContext();
-        // Setting the package ensures that only components in our app will receive the broadcast
-        Intent dataUpdatedIntent = new Intent(ACTION_DATA_UPDATED)
-                .setPackage(context.getPackageName());
-        context.sendBroadcast(dataUpdatedIntent);
-    }
+        if (!forecast.hasCity) {
+            throw new JSONException("Forecast is missing the city");
+        }
+        // Writing no days would delete the ones we have, so an empty forecast is as broken as
+        // one without a city.
+        if (forecast.rows.isEmpty()) {
+            throw new JSONException("Forecast has no days");
+        }
 
-    private void updateMuzei() {
-        // Muzei is only compatible with Jelly Bean MR1+ devices, so there's no need to update the
-        // Muzei background on lower API level devices
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
-            Context context = getContext();
-            context.startService(new Intent(ACTION_DATA_UPDATED)
-                    .setClass(context, WeatherMuzeiSource.class));
+        // If the rows we'd write are exactly the ones we wrote last time, skip the provider
+        // writes and don't wake up the widgets, Muzei, the notification or the watch for it.
+        if (forecast.digest.equals(SyncState.getForecastDigest(getContext(), locationSetting))
+                && hasStoredForecast(locationSetting)) {
+            Log.d(LOG_TAG, "Sync Complete for " + location + ". Forecast unchanged");
+            if (location.preferred) {
+                SyncState.recordForecastChange(getContext(), false);
+            }
+            return LOCATION_STATUS_OK;
         }
-    }
 
-    private void notifyWeather() {
-        Context context = getContext();
-        //checking the last update and notify if it' the first of the day
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String displayNotificationsKey = context.getString(R.string.pref_enable_notifications_key);
-        boolean displayNotifications = prefs.getBoolean(displayNotificationsKey,
-                Boolean.parseBoolean(context.getString(R.string.pref_enable_notifications_default)));
-
-        if ( displayNotifications ) {
-
-            String lastNotificationKey = context.getString(R.string.pref_last_notification);
-            long lastSync = prefs.getLong(lastNotificationKey, 0);
-
-            if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
-                // Last sync was more than 1 day ago, let's send a notification with the weather.
-                String locationQuery = Utility.getPreferredLocation(context);
-
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-                // we'll query our contentProvider, as always
-                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                    double high = cursor.getDouble(INDEX_MAX_TEMP);
-                    double low = cursor.getDouble(INDEX_MIN_TEMP);
-                    String desc = cursor.getString(INDEX_SHORT_DESC);
-
-                    int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
-                    Resources resources = context.getResources();
-                    int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
-                    String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
-
-                    // On Honeycomb and higher devices, we can retrieve the size of the large icon
-                    // Prior to that, we use a fixed size
-                    @SuppressLint("InlinedApi")
-                    int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-                    @SuppressLint("InlinedApi")
-                    int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-
-                    // Retrieve the large icon
-                    Bitmap largeIcon;
-                    try {
-                        largeIcon = Glide.with(context)
-                                .load(artUrl)
-                                .asBitmap()
-                                .error(artResourceId)
-                                .fitCenter()
-                                .into(largeIconWidth, largeIconHeight).get();
-                    } catch (InterruptedException | ExecutionException e) {
-                        Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
-                        largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
-                    }
-                    String title = context.getString(R.string.app_name);
-
-                    // Define the text of the forecast.
-                    String contentText = String.format(context.getString(R.string.format_notification),
-                            desc,
-                            Utility.formatTemperature(context, high),
-                            Utility.formatTemperature(context, low));
-
-                    // NotificationCompatBuilder is a very convenient way to build backward-compatible
-                    // notifications.  Just throw in some data.
-                    NotificationCompat.Builder mBuilder =
-                            new NotificationCompat.Builder(getContext())
-                                    .setColor(resources.getColor(R.color.primary_light))
-                                    .setSmallIcon(iconId)
-                                    .setLargeIcon(largeIcon)
-                                    .setContentTitle(title)
-                                    .setContentText(contentText);
-
-                    // Make something interesting happen when the user clicks on the notification.
-                    // In this case, opening the app is sufficient.
-                    Intent resultIntent = new Intent(context, MainActivity.class);
-
-                    // The stack builder object will contain an artificial back stack for the
-                    // started Activity.
-                    // This ensures that navigating backward from the Activity leads out of
-                    // your application to the Home screen.
-                    TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
-                    stackBuilder.addNextIntent(resultIntent);
-                    PendingIntent resultPendingIntent =
-                            stackBuilder.getPendingIntent(
-                                    0,
-                                    PendingIntent.FLAG_UPDATE_CURRENT
-                            );
-                    mBuilder.setContentIntent(resultPendingIntent);
-
-                    NotificationManager mNotificationManager =
-                            (NotificationManager) getContext().getSystemService(Context.NOTIFICATION_SERVICE);
-                    // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
-                    mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
-
-                    //refreshing last sync
-                    SharedPreferences.Editor editor = prefs.edit();
-                    editor.putLong(lastNotificationKey, System.currentTimeMillis());
-                    editor.commit();
-                }
-                cursor.close();
+        long locationId = addLocation(locationSetting, forecast.cityName,
+                forecast.cityLatitude, forecast.cityLongitude);
+
+        // Only write the days that actually changed.
+        ForecastDeltaWriter.Result written;
+        try {
+            written = ForecastDeltaWriter.write(getContext().getContentResolver(), locationId,
+                    forecast.rows, forecast.oldDataCutoff);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(LOG_TAG, "Error storing forecast for " + location, e);
+            return LOCATION_STATUS_UNKNOWN;
+        }
+        timings.rowsWritten += written.getRowsWritten();
+        SyncState.setForecastDigest(getContext(), locationSetting, forecast.digest);
+
+        // Widgets, Muzei, the notification and the watch only show the preferred location.
+        if (location.preferred) {
+            boolean changed = written.inserted + written.updated > 0;
+            SyncState.recordForecastChange(getContext(), changed);
+            if (changed) {
+                // Everything else that shows the forecast catches up on its own thread.
+                mFanOut.publish(new SyncFanOut.TodayForecast(
+                        forecast.todayHigh, forecast.todayLow, forecast.todayWeatherId,
+                        timings));
             }
         }
+        Log.d(LOG_TAG, "Sync Complete for " + location + ". " + written);
+        return LOCATION_STATUS_OK;
+    }
+
+    /**
+     * Checks whether we still have forecast rows for the location from today on.  A 304 is only
+     * useful while they're there; if they were wiped we need the full response again.
+     */
+    private boolean hasStoredForecast(String locationSetting) {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                        locationSetting, System.currentTimeMillis()),
+                new String[]{WeatherContract.WeatherEntry.COLUMN_DATE},
+                null,
+                null,
+                null);
+        if (cursor == null) {
+            return false;
+        }
+        boolean hasForecast = cursor.moveToFirst();
+        cursor.close();
+        return hasForecast;
     }
 
     /**
@@ -556,20 +891,12 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
      * @return the row ID of the added location.
      */
     long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
-
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = getContext().getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
-                null);
+        // First, check if the location with this city name exists in the db.  The registry
+        // remembers the ids, so this usually doesn't need to touch the provider.
+        long locationId = LocationRegistry.getInstance().getLocationId(
+                getContext().getContentResolver(), locationSetting);
 
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
+        if (locationId == -1) {
             // Now that the content provider is set up, inserting rows of data is pretty simple.
             // First create a ContentValues object to hold the data you want to insert.
             ContentValues locationValues = new ContentValues();
@@ -591,7 +918,6 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
             locationId = ContentUris.parseId(insertedUri);
         }
 
-        locationCursor.close();
         // Wait, that worked?  Yes!
         return locationId;
     }
@@ -602,6 +928,14 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static void configurePeriodicSync(Context context, int syncInterval, int flexTime) {
         Account account = getSyncAccount(context);
         String authority = context.getString(R.string.content_authority);
+        if (SunshineJobService.isEnabled(context)) {
+            // JobScheduler runs our periodic sync instead, so make sure the sync manager
+            // doesn't run it as well.
+            ContentResolver.removePeriodicSync(account, authority, new Bundle());
+            SunshineJobService.schedulePeriodic(context, syncInterval);
+            return;
+        }
+        SunshineJobService.cancelAll(context);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
             // we can enable inexact timers in our periodic sync
             SyncRequest request = new SyncRequest.Builder().
@@ -616,13 +950,99 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     }
 
     /**
-     * Helper method to have the sync adapter sync immediately
+     * Gets a connection to the forecast upstream ready in the background, so that a sync the
+     * user asks for next doesn't have to wait for DNS and the TCP handshake on a radio that was
+     * idle.  Call it when the forecast becomes visible.
+     */
+    public static void prewarmConnection(Context context) {
+        long now = SystemClock.elapsedRealtime();
+        long last = sLastPrewarmMillis.get();
+        if (last != 0 && now - last < PREWARM_INTERVAL_MILLIS) {
+            return;
+        }
+
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        if (activeNetwork == null || !activeNetwork.isConnected()) {
+            return;
+        }
+
+        final String forecastUrl =
+                buildForecastUrl(SyncLocation.fromPreferences(context).get(0));
+        // An upstream that's down won't give us a connection worth keeping.
+        if (CircuitBreaker.forUrl(context, forecastUrl).getState() == CircuitBreaker.STATE_OPEN) {
+            return;
+        }
+        // Only now that a prewarm is going out does it count; being offline a moment ago
+        // shouldn't hold off the next try.
+        if (!sLastPrewarmMillis.compareAndSet(last, now)) {
+            return;
+        }
+        sPrewarmExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    getForecastTransport().prewarm(forecastUrl);
+                    Log.d(LOG_TAG, "Warmed up a connection in " +
+                            (SystemClock.elapsedRealtime() - start) + " ms");
+                } catch (IOException e) {
+                    Log.d(LOG_TAG, "Couldn't warm up a connection", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Helper method to have the sync adapter sync immediately.  The UI should go through
+     * {@link SyncCoordinator} instead, which merges requests that arrive together.
      * @param context The context used to access the account service
      */
     public static void syncImmediately(Context context) {
+        syncImmediately(context, null, SyncCoordinator.NO_BATCH);
+    }
+
+    /**
+     * Syncs the given location settings immediately.
+     * @param context The context used to access the account service
+     * @param locationSettings The locations to sync, or null for all of them
+     * @param batchId The SyncCoordinator batch asking for the sync, handed back once it's done
+     */
+    static void syncImmediately(Context context, String[] locationSettings, int batchId) {
+        if (SunshineJobService.isEnabled(context)) {
+            SunshineJobService.scheduleUserRefresh(context, locationSettings, batchId);
+            return;
+        }
         Bundle bundle = new Bundle();
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        if (locationSettings != null) {
+            bundle.putStringArray(EXTRA_LOCATIONS, locationSettings);
+        }
+        bundle.putInt(EXTRA_BATCH_ID, batchId);
+        ContentResolver.requestSync(getSyncAccount(context),
+                context.getString(R.string.content_authority), bundle);
+    }
+
+    /**
+     * Syncs the given location settings soon, without the user having asked for it.  Unlike
+     * {@link #syncImmediately}, the sync manager's backoff applies, and locations whose
+     * forecast is still fresh are skipped.
+     * @param context The context used to access the account service
+     * @param locationSettings The locations to sync, or null for all of them
+     * @param batchId The SyncCoordinator batch asking for the sync, handed back once it's done
+     */
+    static void syncInBackground(Context context, String[] locationSettings, int batchId) {
+        if (SunshineJobService.isEnabled(context)) {
+            SunshineJobService.scheduleRevalidation(context, locationSettings, batchId);
+            return;
+        }
+        Bundle bundle = new Bundle();
+        if (locationSettings != null) {
+            bundle.putStringArray(EXTRA_LOCATIONS, locationSettings);
+        }
+        bundle.putInt(EXTRA_BATCH_ID, batchId);
         ContentResolver.requestSync(getSyncAccount(context),
                 context.getString(R.string.content_authority), bundle);
     }
@@ -685,6 +1105,9 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
 
     public static void initializeSyncAdapter(Context context) {
         getSyncAccount(context);
+        if (SunshineJobService.isEnabled(context)) {
+            SunshineJobService.ensureScheduled(context);
+        }
     }
 
     /**
@@ -700,39 +1123,5 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         spe.commit();
     }
 
-    private void syncWatch(String min, String max, int weatherId){
-      //  Log.v("SunshineSyncAdapter", "syncWatch");
-        String time =  String.valueOf(new Date().getTime());
-        PutDataMapRequest putDataMapRequest = PutDataMapRequest.create("/weather-update");
-        putDataMapRequest.getDataMap().putLong("time", new Date().getTime()); // MOST IMPORTANT LINE FOR TIMESTAMP
-        //Bitmap bm = BitmapFactory.decodeResource(getContext().getResources(), Utility.getArtResourceForWeatherCondition(weatherId));
-        Bitmap bitmap = BitmapFactory.decodeResource(getContext().getResources(), Utility.getArtResourceForWeatherCondition(weatherId));
-        //Asset asset = getContext().getResources().createAssetFromBitmap(bitmap);
-        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.PNG, 100, byteStream);
-        Asset asset = Asset.createFromBytes(byteStream.toByteArray());
-        putDataMapRequest.getDataMap().putAsset("weather-image", asset);
-        putDataMapRequest.getDataMap().putString("min-temp", min);
-        putDataMapRequest.getDataMap().putString("max-temp", max);
-       // Log.v("SunshineSyncAdapter", min + time + " " + max + time);
-        PutDataRequest request = putDataMapRequest.asPutDataRequest();
-
-        if (mGoogleApiClient == null){
-          //  Log.v("SunshineSyncAdapter", "NOOOOOOOOOOOOOOOOO, life is no good");
-            return;
-        }
-
-        Wearable.DataApi.putDataItem(mGoogleApiClient,request).setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
-
 
-            @Override
-            public void onResult(DataApi.DataItemResult dataItemResult) {
-                if (!dataItemResult.getStatus().isSuccess()) {
-                    Log.v("MainActivity", "Something went wrong, watch was not notified");
-                } else {
-                    Log.v("MainActivity", "Success, Watch Notified");
-                }
-            }
-        });
-    }
 }
\ No newline at end of file
@@ -0,0 +1,272 @@
+package com.example.android.app.sync;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Single place to ask for an immediate sync from the UI, or for a background one when a read
+ * finds the forecast stale ({@link ForecastRepository}).
+ *
+ * A burst of preference edits used to queue one expedited sync per edit, each doing the whole
+ * network, parse and write cycle.  Instead, requests are held for {@link #DEBOUNCE_MILLIS}
+ * (restarted by every new request, up to {@link #MAX_DEBOUNCE_MILLIS}) and then sent as a
+ * single sync of the union of their locations.  Requests made while a sync is in flight wait
+ * for the next one, even if the one in flight covers their location: it has already read the
+ * preferences, so it may not have the change the request is about.
+ *
+ * A batch is only sent as an expedited, manual sync if the user asked for one of its locations.
+ * Otherwise it's an ordinary background sync, which the sync manager backs off like a periodic
+ * one and which leaves forecasts the upstream said are still fresh alone.
+ *
+ * Every request's {@link Callback} is called exactly once, on the main thread, when the sync
+ * it was sent with has finished.  Syncs we didn't ask for (e.g. periodic ones) don't count,
+ * they may have started before the request.  All state is only touched on the main thread.
+ */
+public class SyncCoordinator {
+    private static final String LOG_TAG = SyncCoordinator.class.getSimpleName();
+
+    static final long DEBOUNCE_MILLIS = 500;
+    static final long MAX_DEBOUNCE_MILLIS = 2000;
+
+    // If we don't hear back from a sync in this long (the network may never have come up),
+    // we let its callers go and start over with the next request.
+    static final long IN_FLIGHT_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    // The batch id of syncs nobody here asked for.
+    static final int NO_BATCH = 0;
+
+    public interface Callback {
+        /**
+         * @param status the status of the requested location, or of the preferred location for
+         *               requests covering every location.
+         */
+        void onSyncFinished(@SunshineSyncAdapter.LocationStatus int status);
+    }
+
+    private static final Object sLock = new Object();
+    private static SyncCoordinator sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Batch mPending = new Batch();
+    private Batch mInFlight;
+    private long mFirstPendingMillis;
+    private int mLastBatchId = NO_BATCH;
+
+    private int mRequestCount;
+    private int mMergedCount;
+
+    /**
+     * Requests collected for one sync: the locations it covers (null meaning all of them) and
+     * whoever is waiting on it.
+     */
+    private static final class Batch {
+        int id = NO_BATCH;
+        boolean userInitiated;
+        Set<String> locations = new HashSet<String>();
+        final List<Request> requests = new ArrayList<Request>();
+
+        boolean isEmpty() {
+            return requests.isEmpty();
+        }
+
+        void add(Request request) {
+            requests.add(request);
+            userInitiated |= request.userInitiated;
+            if (request.locationSetting == null) {
+                locations = null;
+            } else if (locations != null) {
+                locations.add(request.locationSetting);
+            }
+        }
+    }
+
+    private static final class Request {
+        final String locationSetting;
+        final Callback callback;
+        final boolean userInitiated;
+
+        Request(String locationSetting, Callback callback, boolean userInitiated) {
+            this.locationSetting = locationSetting;
+            this.callback = callback;
+            this.userInitiated = userInitiated;
+        }
+    }
+
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    private final Runnable mInFlightTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.w(LOG_TAG, "No word from the sync in flight, giving up on it");
+            finish(mInFlight, null, null);
+            mInFlight = null;
+            dispatch();
+        }
+    };
+
+    public static SyncCoordinator getInstance(Context context) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new SyncCoordinator(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private SyncCoordinator(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Asks for every location to be synced soon.
+     */
+    public void requestSync(Callback callback) {
+        requestSync(null, callback);
+    }
+
+    /**
+     * Asks for a location to be synced soon.  Must be called on the main thread.
+     *
+     * @param locationSetting the location to sync, or null for all of them.
+     * @param callback        called once the sync covering the location is done, may be null.
+     */
+    public void requestSync(String locationSetting, Callback callback) {
+        addRequest(new Request(locationSetting, callback, true));
+    }
+
+    /**
+     * Asks for a location nobody is looking at right now to be synced in the background, e.g.
+     * because a widget found its forecast stale.  Must be called on the main thread.
+     *
+     * @param callback called once the sync covering the location is done, may be null.
+     */
+    void requestRevalidation(String locationSetting, Callback callback) {
+        addRequest(new Request(locationSetting, callback, false));
+    }
+
+    private void addRequest(Request request) {
+        mRequestCount++;
+
+        long now = System.currentTimeMillis();
+        if (mPending.isEmpty()) {
+            mFirstPendingMillis = now;
+        } else {
+            mMergedCount++;
+            Log.d(LOG_TAG, "Merged request for " + describe(request.locationSetting) +
+                    " into the pending sync (" + mMergedCount + " merged so far)");
+        }
+        mPending.add(request);
+
+        // Wait for the burst to settle, but don't keep the first request waiting forever.
+        long delay = Math.min(DEBOUNCE_MILLIS,
+                Math.max(0, mFirstPendingMillis + MAX_DEBOUNCE_MILLIS - now));
+        mHandler.removeCallbacks(mDispatch);
+        mHandler.postDelayed(mDispatch, delay);
+    }
+
+    /**
+     * @return how many sync requests we've had.
+     */
+    public int getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * @return how many of those requests didn't need a sync of their own.
+     */
+    public int getMergedCount() {
+        return mMergedCount;
+    }
+
+    private void dispatch() {
+        if (mPending.isEmpty() || mInFlight != null) {
+            // Either nothing to do, or we go as soon as the sync in flight is done.
+            return;
+        }
+        mInFlight = new Batch();
+        mInFlight.id = ++mLastBatchId;
+        mInFlight.userInitiated = mPending.userInitiated;
+        mInFlight.locations = mPending.locations;
+        mInFlight.requests.addAll(mPending.requests);
+        mPending.locations = new HashSet<String>();
+        mPending.requests.clear();
+        mPending.userInitiated = false;
+
+        Log.d(LOG_TAG, "Syncing " + describe(mInFlight.locations) + " for " +
+                mInFlight.requests.size() + " requests" +
+                (mInFlight.userInitiated ? "" : " in the background"));
+        String[] locations = mInFlight.locations == null
+                ? null
+                : mInFlight.locations.toArray(new String[mInFlight.locations.size()]);
+        if (mInFlight.userInitiated) {
+            SunshineSyncAdapter.syncImmediately(mContext, locations, mInFlight.id);
+        } else {
+            SunshineSyncAdapter.syncInBackground(mContext, locations, mInFlight.id);
+        }
+        mHandler.postDelayed(mInFlightTimeout, IN_FLIGHT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Called by the sync, from its own thread, when it has finished.
+     *
+     * @param batchId  the batch the sync was asked for by, or {@link #NO_BATCH}.
+     * @param statuses the resulting status of each location the sync covered.
+     */
+    void onSyncFinished(final int batchId, final Map<String, Integer> statuses,
+                        final String preferredSetting) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mInFlight == null || batchId != mInFlight.id) {
+                    // A periodic sync, or one we gave up on.  Whoever is waiting only wants to
+                    // hear about the sync that started after their request.
+                    return;
+                }
+                mHandler.removeCallbacks(mInFlightTimeout);
+                Batch done = mInFlight;
+                mInFlight = null;
+                finish(done, statuses, preferredSetting);
+                dispatch();
+            }
+        });
+    }
+
+    private void finish(Batch batch, Map<String, Integer> statuses, String preferredSetting) {
+        for (Request request : batch.requests) {
+            if (request.callback == null) {
+                continue;
+            }
+            String location = request.locationSetting != null
+                    ? request.locationSetting
+                    : preferredSetting;
+            Integer status = statuses == null ? null : statuses.get(location);
+            //noinspection ResourceType
+            request.callback.onSyncFinished(status == null
+                    ? SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN
+                    : status);
+        }
+    }
+
+    private static String describe(String locationSetting) {
+        return locationSetting == null ? "all locations" : locationSetting;
+    }
+
+    private static String describe(Set<String> locations) {
+        return locations == null ? "all locations" : locations.toString();
+    }
+}
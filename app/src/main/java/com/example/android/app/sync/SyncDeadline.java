@@ -0,0 +1,123 @@
+package com.example.android.app.sync;
+
+import android.os.SystemClock;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A time budget for a sync, or for one stage of it.
+ *
+ * performSync starts a sync with {@link SunshineSyncAdapter#SYNC_BUDGET_MILLIS}, each request
+ * gets a share of that and each stage of the request a share of the request's, with
+ * {@link #stage}.  Every blocking call on the way is bounded by what's left: connect and read
+ * timeouts, the body stream ({@link #wrap}) and the writes.  The fan-out runs after the sync and
+ * has a budget of its own.  The stage that runs out is what ends up in the sync metrics.
+ */
+final class SyncDeadline {
+    static final String STAGE_SYNC = "sync";
+    static final String STAGE_REQUEST = "request";
+    static final String STAGE_FETCH = "fetch";
+    static final String STAGE_PARSE = "parse";
+    static final String STAGE_PERSIST = "persist";
+    static final String STAGE_HOURLY = "hourly";
+    static final String STAGE_FAN_OUT = "fan-out";
+
+    /**
+     * Thrown when a stage has used up its budget.  It's an IOException so that it takes the same
+     * path out as the socket timeouts it stands in for.
+     */
+    static final class ExceededException extends IOException {
+        ExceededException(String stage) {
+            super("Over budget in " + stage);
+        }
+    }
+
+    private final String mStage;
+    private final long mBudgetMillis;
+    private final long mEndMillis;
+
+    /**
+     * Starts a budget of the given length, now.
+     */
+    SyncDeadline(String stage, long budgetMillis) {
+        this(stage, budgetMillis, SystemClock.elapsedRealtime() + budgetMillis);
+    }
+
+    private SyncDeadline(String stage, long budgetMillis, long endMillis) {
+        mStage = stage;
+        mBudgetMillis = budgetMillis;
+        mEndMillis = endMillis;
+    }
+
+    /**
+     * @return a deadline for a stage starting now, which may take the given share of this
+     * deadline's whole budget but never runs past this deadline.
+     */
+    SyncDeadline stage(String stage, float share) {
+        long budget = (long) (mBudgetMillis * share);
+        long end = Math.min(mEndMillis, SystemClock.elapsedRealtime() + budget);
+        return new SyncDeadline(stage, budget, end);
+    }
+
+    String getStage() {
+        return mStage;
+    }
+
+    long getRemainingMillis() {
+        return Math.max(0, mEndMillis - SystemClock.elapsedRealtime());
+    }
+
+    boolean isExpired() {
+        return getRemainingMillis() == 0;
+    }
+
+    /**
+     * @throws ExceededException if there's no time left.
+     */
+    void check() throws ExceededException {
+        if (isExpired()) {
+            throw new ExceededException(mStage);
+        }
+    }
+
+    /**
+     * @return a timeout for a single blocking call: what's left, but never 0, which would mean
+     * no timeout at all.
+     */
+    int getTimeoutMillis() {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, getRemainingMillis()));
+    }
+
+    /**
+     * @return the stream, failing any read started after the deadline.  A single read is
+     * bounded by the socket's read timeout, which should come from {@link #getTimeoutMillis}.
+     */
+    InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                check();
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                check();
+                return super.read(buffer, offset, count);
+            }
+
+            @Override
+            public long skip(long byteCount) throws IOException {
+                check();
+                return super.skip(byteCount);
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return mStage + " (" + getRemainingMillis() + " of " + mBudgetMillis + " ms left)";
+    }
+}
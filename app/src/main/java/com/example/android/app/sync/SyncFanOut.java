@@ -0,0 +1,376 @@
+package com.example.android.app.sync;
+
+import android.annotation.SuppressLint;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.TaskStackBuilder;
+import android.util.Log;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.request.FutureTarget;
+import com.example.android.app.MainActivity;
+import com.example.android.app.R;
+import com.example.android.app.Utility;
+import com.example.android.app.data.WeatherContract;
+import com.example.android.app.muzei.WeatherMuzeiSource;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.wearable.Asset;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.NodeApi;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.PutDataRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The last stage of a sync: telling everything that shows the preferred location's weather
+ * that there is a new forecast.  That's the widgets, Muzei, the notification and the watch.
+ *
+ * Some of these are slow (the watch gets a PNG compressed bitmap, the notification waits on
+ * Glide for its icon), so they run on their own thread once the forecast has been committed.
+ * The sync itself is done as soon as the database write is.  If several forecasts are published
+ * before the consumers get to run, only the latest one is sent.
+ *
+ * A run gets {@link #BUDGET_MILLIS} to itself.  The icon download is the only part that can
+ * block for long, so it gets whatever is left of that and falls back to the bundled art when
+ * it doesn't make it.
+ */
+class SyncFanOut {
+    private static final String LOG_TAG = SyncFanOut.class.getSimpleName();
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    private static final int WEATHER_NOTIFICATION_ID = 3004;
+
+    private static final long WATCH_QUERY_TIMEOUT_SECONDS = 5;
+
+    // How long one run may take.
+    static final long BUDGET_MILLIS = 30 * 1000;
+
+    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_WEATHER_ID = 0;
+    private static final int INDEX_MAX_TEMP = 1;
+    private static final int INDEX_MIN_TEMP = 2;
+    private static final int INDEX_SHORT_DESC = 3;
+
+    private static final ExecutorService sFanOutExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "SunshineFanOut");
+                }
+            });
+
+    private final Context mContext;
+    private final GoogleApiClient mGoogleApiClient;
+
+    // The forecast waiting to be sent out, if the consumers haven't picked it up yet.
+    private final AtomicReference<TodayForecast> mPending = new AtomicReference<TodayForecast>();
+
+    /**
+     * What the watch needs to show today's forecast.  The other consumers read it back from the
+     * provider.  The timings of the request that brought it are told how long the fan-out took;
+     * a forecast replaced by a newer one before the consumers got to it never fans out.
+     */
+    static final class TodayForecast {
+        final int high;
+        final int low;
+        final int weatherId;
+        final SyncTimings timings;
+
+        TodayForecast(int high, int low, int weatherId, SyncTimings timings) {
+            this.high = high;
+            this.low = low;
+            this.weatherId = weatherId;
+            this.timings = timings;
+        }
+    }
+
+    SyncFanOut(Context context) {
+        mContext = context;
+
+        /*mGoogleApiClient = new GoogleApiClient.Builder(context)
+                .addApi(Wearable.API)
+                .build();*/
+
+        mGoogleApiClient = new GoogleApiClient.Builder(context)
+                .addConnectionCallbacks(new GoogleApiClient.ConnectionCallbacks() {
+                    @Override
+                    public void onConnected(Bundle connectionHint) {
+                    }
+                    @Override
+                    public void onConnectionSuspended(int cause) {
+                    }
+                })
+                .addOnConnectionFailedListener(new GoogleApiClient.OnConnectionFailedListener() {
+                    @Override
+                    public void onConnectionFailed(ConnectionResult result) {
+                    }
+                })
+                .addApi(Wearable.API)
+                .build();
+        mGoogleApiClient.connect();
+    }
+
+    /**
+     * Sends the preferred location's new forecast to all consumers, without waiting for them.
+     * Must only be called once the forecast has been committed to the provider.
+     */
+    void publish(TodayForecast today) {
+        if (mPending.getAndSet(today) != null) {
+            // A run is already queued, it'll pick this one up instead.
+            return;
+        }
+        sFanOutExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                TodayForecast latest = mPending.getAndSet(null);
+                if (latest == null) {
+                    return;
+                }
+                long start = SystemClock.elapsedRealtime();
+                SyncDeadline deadline = new SyncDeadline(SyncDeadline.STAGE_FAN_OUT, BUDGET_MILLIS);
+                syncWatch(String.valueOf(latest.high), String.valueOf(latest.low),
+                        latest.weatherId);
+                long watchDone = SystemClock.elapsedRealtime();
+                updateWidgets();
+                updateMuzei();
+                long broadcastsDone = SystemClock.elapsedRealtime();
+                boolean timedOut = !notifyWeather(deadline);
+                long end = SystemClock.elapsedRealtime();
+                Log.d(LOG_TAG, "Fan-out took " + (end - start) + " ms (watch " +
+                        (watchDone - start) + " ms, widgets and Muzei " +
+                        (broadcastsDone - watchDone) + " ms, notification " +
+                        (end - broadcastsDone) + " ms)" + (timedOut ? ", over budget" : ""));
+                latest.timings.onFanOutFinished(end - start, timedOut);
+            }
+        });
+    }
+
+    /**
+     * @return whether a watch is connected that could be showing our weather.
+     */
+    boolean isWatchConnected() {
+        if (mGoogleApiClient == null || !mGoogleApiClient.isConnected()) {
+            return false;
+        }
+        NodeApi.GetConnectedNodesResult result = Wearable.NodeApi
+                .getConnectedNodes(mGoogleApiClient)
+                .await(WATCH_QUERY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        return result.getStatus().isSuccess() && !result.getNodes().isEmpty();
+    }
+
+    private void updateWidgets() {
+        Context context = mContext;
+        // Setting the package ensures that only components in our app will receive the broadcast
+        Intent dataUpdatedIntent = new Intent(SunshineSyncAdapter.ACTION_DATA_UPDATED)
+                .setPackage(context.getPackageName());
+        context.sendBroadcast(dataUpdatedIntent);
+    }
+
+    private void updateMuzei() {
+        // Muzei is only compatible with Jelly Bean MR1+ devices, so there's no need to update the
+        // Muzei background on lower API level devices
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            Context context = mContext;
+            context.startService(new Intent(SunshineSyncAdapter.ACTION_DATA_UPDATED)
+                    .setClass(context, WeatherMuzeiSource.class));
+        }
+    }
+
+    /**
+     * Shows today's forecast in a notification, if the user wants one and hasn't had one today.
+     *
+     * @return false if the deadline ran out before the notification had its icon.
+     */
+    private boolean notifyWeather(SyncDeadline deadline) {
+        boolean inTime = true;
+        Context context = mContext;
+        //checking the last update and notify if it' the first of the day
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String displayNotificationsKey = context.getString(R.string.pref_enable_notifications_key);
+        boolean displayNotifications = prefs.getBoolean(displayNotificationsKey,
+                Boolean.parseBoolean(context.getString(R.string.pref_enable_notifications_default)));
+
+        if ( displayNotifications ) {
+
+            String lastNotificationKey = context.getString(R.string.pref_last_notification);
+            long lastSync = prefs.getLong(lastNotificationKey, 0);
+
+            if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
+                // Last sync was more than 1 day ago, let's send a notification with the weather.
+                String locationQuery = Utility.getPreferredLocation(context);
+
+                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
+
+                // we'll query our contentProvider, as always
+                Cursor cursor = ForecastRepository.getInstance(context).query(weatherUri,
+                        NOTIFY_WEATHER_PROJECTION, null);
+
+                if (cursor.moveToFirst()) {
+                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
+                    double high = cursor.getDouble(INDEX_MAX_TEMP);
+                    double low = cursor.getDouble(INDEX_MIN_TEMP);
+                    String desc = cursor.getString(INDEX_SHORT_DESC);
+
+                    int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
+                    Resources resources = context.getResources();
+                    int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
+                    String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
+
+                    // On Honeycomb and higher devices, we can retrieve the size of the large icon
+                    // Prior to that, we use a fixed size
+                    @SuppressLint("InlinedApi")
+                    int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
+                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+                    @SuppressLint("InlinedApi")
+                    int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
+                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+
+                    // Retrieve the large icon, but don't hold the fan-out hostage to a slow
+                    // image host.  The bundled art will do if it doesn't arrive in time.
+                    Bitmap largeIcon;
+                    FutureTarget<Bitmap> iconTarget = Glide.with(context)
+                            .load(artUrl)
+                            .asBitmap()
+                            .error(artResourceId)
+                            .fitCenter()
+                            .into(largeIconWidth, largeIconHeight);
+                    try {
+                        largeIcon = iconTarget.get(deadline.getRemainingMillis(),
+                                TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        Log.w(LOG_TAG, "Gave up on the large icon from " + artUrl + ", " + deadline);
+                        Glide.clear(iconTarget);
+                        largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
+                        inTime = false;
+                    } catch (InterruptedException | ExecutionException e) {
+                        Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
+                        largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
+                    }
+                    String title = context.getString(R.string.app_name);
+
+                    // Define the text of the forecast.
+                    String contentText = String.format(context.getString(R.string.format_notification),
+                            desc,
+                            Utility.formatTemperature(context, high),
+                            Utility.formatTemperature(context, low));
+
+                    // NotificationCompatBuilder is a very convenient way to build backward-compatible
+                    // notifications.  Just throw in some data.
+                    NotificationCompat.Builder mBuilder =
+                            new NotificationCompat.Builder(mContext)
+                                    .setColor(resources.getColor(R.color.primary_light))
+                                    .setSmallIcon(iconId)
+                                    .setLargeIcon(largeIcon)
+                                    .setContentTitle(title)
+                                    .setContentText(contentText);
+
+                    // Make something interesting happen when the user clicks on the notification.
+                    // In this case, opening the app is sufficient.
+                    Intent resultIntent = new Intent(context, MainActivity.class);
+
+                    // The stack builder object will contain an artificial back stack for the
+                    // started Activity.
+                    // This ensures that navigating backward from the Activity leads out of
+                    // your application to the Home screen.
+                    TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
+                    stackBuilder.addNextIntent(resultIntent);
+                    PendingIntent resultPendingIntent =
+                            stackBuilder.getPendingIntent(
+                                    0,
+                                    PendingIntent.FLAG_UPDATE_CURRENT
+                            );
+                    mBuilder.setContentIntent(resultPendingIntent);
+
+                    NotificationManager mNotificationManager =
+                            (NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE);
+                    // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
+                    mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
+
+                    //refreshing last sync
+                    SharedPreferences.Editor editor = prefs.edit();
+                    editor.putLong(lastNotificationKey, System.currentTimeMillis());
+                    editor.commit();
+                }
+                cursor.close();
+            }
+        }
+        return inTime;
+    }
+
+    private void syncWatch(String min, String max, int weatherId){
+      //  Log.v("SunshineSyncAdapter", "syncWatch");
+        String time =  String.valueOf(new Date().getTime());
+        PutDataMapRequest putDataMapRequest = PutDataMapRequest.create("/weather-update");
+        putDataMapRequest.getDataMap().putLong("time", new Date().getTime()); // MOST IMPORTANT LINE FOR TIMESTAMP
+        //Bitmap bm = BitmapFactory.decodeResource(mContext.getResources(), Utility.getArtResourceForWeatherCondition(weatherId));
+        Bitmap bitmap = BitmapFactory.decodeResource(mContext.getResources(), Utility.getArtResourceForWeatherCondition(weatherId));
+        //Asset asset = mContext.getResources().createAssetFromBitmap(bitmap);
+        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, byteStream);
+        Asset asset = Asset.createFromBytes(byteStream.toByteArray());
+        putDataMapRequest.getDataMap().putAsset("weather-image", asset);
+        putDataMapRequest.getDataMap().putString("min-temp", min);
+        putDataMapRequest.getDataMap().putString("max-temp", max);
+       // Log.v("SunshineSyncAdapter", min + time + " " + max + time);
+        PutDataRequest request = putDataMapRequest.asPutDataRequest();
+
+        if (mGoogleApiClient == null){
+          //  Log.v("SunshineSyncAdapter", "NOOOOOOOOOOOOOOOOO, life is no good");
+            return;
+        }
+
+        Wearable.DataApi.putDataItem(mGoogleApiClient,request).setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
+
+
+            @Override
+            public void onResult(DataApi.DataItemResult dataItemResult) {
+                if (!dataItemResult.getStatus().isSuccess()) {
+                    Log.v("MainActivity", "Something went wrong, watch was not notified");
+                } else {
+                    Log.v("MainActivity", "Success, Watch Notified");
+                }
+            }
+        });
+    }
+}
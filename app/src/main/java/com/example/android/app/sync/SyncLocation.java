@@ -0,0 +1,83 @@
+package com.example.android.app.sync;
+
+import android.content.Context;
+
+import com.example.android.app.Utility;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One location the sync adapter fetches a forecast for.
+ */
+final class SyncLocation {
+    /** The location setting the forecast is stored under. */
+    final String setting;
+    /** Latitude and longitude to query by instead of the setting, or null. */
+    final String latitude;
+    final String longitude;
+    /** Whether this is the user's preferred location, the one the UI shows. */
+    final boolean preferred;
+
+    SyncLocation(String setting, String latitude, String longitude, boolean preferred) {
+        this.setting = setting;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.preferred = preferred;
+    }
+
+    boolean hasLatLon() {
+        return latitude != null && longitude != null;
+    }
+
+    /**
+     * Returns every location we keep a forecast for: the preferred location first, then the
+     * saved ones.
+     */
+    static List<SyncLocation> fromPreferences(Context context) {
+        List<SyncLocation> locations = new ArrayList<SyncLocation>();
+
+        // We no longer need just the location String, but also potentially the latitude and
+        // longitude, in case we are syncing based on a new Place Picker API result.
+        String preferred = Utility.getPreferredLocation(context);
+        if (Utility.isLocationLatLonAvailable(context)) {
+            locations.add(new SyncLocation(preferred,
+                    String.valueOf(Utility.getLocationLatitude(context)),
+                    String.valueOf(Utility.getLocationLongitude(context)),
+                    true));
+        } else {
+            locations.add(new SyncLocation(preferred, null, null, true));
+        }
+
+        for (String saved : Utility.getSavedLocations(context)) {
+            if (!saved.equals(preferred)) {
+                locations.add(new SyncLocation(saved, null, null, false));
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * @return the locations whose setting is one of the given ones, or all of them if the
+     * settings are null.
+     */
+    static List<SyncLocation> filter(List<SyncLocation> locations, String[] settings) {
+        if (settings == null) {
+            return locations;
+        }
+        List<String> wanted = Arrays.asList(settings);
+        List<SyncLocation> filtered = new ArrayList<SyncLocation>();
+        for (SyncLocation location : locations) {
+            if (wanted.contains(location.setting)) {
+                filtered.add(location);
+            }
+        }
+        return filtered;
+    }
+
+    @Override
+    public String toString() {
+        return setting;
+    }
+}
@@ -0,0 +1,346 @@
+package com.example.android.app.sync;
+
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.util.Log;
+
+import com.example.android.app.widget.DetailWidgetProvider;
+import com.example.android.app.widget.TodayWidgetProvider;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks how long to wait before the next periodic sync, instead of always using
+ * {@link SunshineSyncAdapter#SYNC_INTERVAL}.
+ *
+ * The interval starts from how often the forecast actually changed over the last syncs, then
+ * gets shorter while somebody is looking at the weather (the app, a widget or a watch) and
+ * longer on a metered network or a low battery.  It never goes below
+ * {@link #MIN_INTERVAL_SECONDS} or above {@link #MAX_INTERVAL_SECONDS}.
+ *
+ * Every decision is logged, and the inputs it was made from are appended to a file so a
+ * recorded day can be replayed with {@link #replay} and compared with the fixed schedule.
+ */
+public class SyncScheduler {
+    private static final String LOG_TAG = SyncScheduler.class.getSimpleName();
+
+    // Never sync more often than the fixed schedule did, and at least every three hours.
+    static final int MIN_INTERVAL_SECONDS = SunshineSyncAdapter.SYNC_INTERVAL;
+    static final int MAX_INTERVAL_SECONDS = 3 * 60 * 60;
+
+    // With a forecast that never changes we back off to MIN_INTERVAL_SECONDS << this.
+    private static final int MAX_BACKOFF_STEPS = 6;
+
+    // Below this (in percent) and not charging counts as a low battery.
+    private static final int LOW_BATTERY_PERCENT = 15;
+
+    private static final String RECORDING_FILE = "sync_schedule.log";
+    // Once the recording gets this big it is moved to RECORDING_FILE + ".old" and restarted,
+    // which keeps well over a day of decisions around.
+    private static final long MAX_RECORDING_BYTES = 64 * 1024;
+
+    private static volatile boolean sUiVisible;
+
+    /**
+     * What a scheduling decision is based on.
+     */
+    static final class Inputs {
+        final long timeMillis;
+        /** Fraction of recent syncs that brought a different forecast, or -1 if unknown. */
+        final float changeRate;
+        final int batteryPercent;
+        final boolean charging;
+        final boolean metered;
+        final boolean uiVisible;
+        final boolean widgetsVisible;
+        final boolean watchConnected;
+
+        Inputs(long timeMillis, float changeRate, int batteryPercent, boolean charging,
+               boolean metered, boolean uiVisible, boolean widgetsVisible, boolean watchConnected) {
+            this.timeMillis = timeMillis;
+            this.changeRate = changeRate;
+            this.batteryPercent = batteryPercent;
+            this.charging = charging;
+            this.metered = metered;
+            this.uiVisible = uiVisible;
+            this.widgetsVisible = widgetsVisible;
+            this.watchConnected = watchConnected;
+        }
+
+        boolean isAnythingVisible() {
+            return uiVisible || widgetsVisible || watchConnected;
+        }
+
+        String toLogLine() {
+            return timeMillis + " " + changeRate + " " + batteryPercent + " " + charging + " " +
+                    metered + " " + uiVisible + " " + widgetsVisible + " " + watchConnected;
+        }
+
+        /**
+         * @return the inputs written by {@link #toLogLine()}, or null if the line is garbled.
+         */
+        static Inputs fromLogLine(String line) {
+            String[] fields = line.trim().split(" ");
+            if (fields.length != 8) {
+                return null;
+            }
+            try {
+                return new Inputs(Long.parseLong(fields[0]), Float.parseFloat(fields[1]),
+                        Integer.parseInt(fields[2]), Boolean.parseBoolean(fields[3]),
+                        Boolean.parseBoolean(fields[4]), Boolean.parseBoolean(fields[5]),
+                        Boolean.parseBoolean(fields[6]), Boolean.parseBoolean(fields[7]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The chosen interval, and why.
+     */
+    static final class Decision {
+        final int intervalSeconds;
+        final String reason;
+
+        Decision(int intervalSeconds, String reason) {
+            this.intervalSeconds = intervalSeconds;
+            this.reason = reason;
+        }
+
+        int getFlexSeconds() {
+            return intervalSeconds / 3;
+        }
+    }
+
+    private SyncScheduler() {
+    }
+
+    /**
+     * Called by the UI as it comes and goes, so syncs run more often while it's on screen.
+     */
+    public static void setUiVisible(boolean visible) {
+        sUiVisible = visible;
+    }
+
+    /**
+     * Gathers the current inputs.  Whether a watch is connected has to come from the caller,
+     * since finding out needs a connected GoogleApiClient.
+     */
+    static Inputs readInputs(Context context, boolean watchConnected) {
+        int batteryPercent = 100;
+        boolean charging = false;
+        // ACTION_BATTERY_CHANGED is sticky, so this just reads the last broadcast.
+        Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null) {
+            int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            if (level >= 0 && scale > 0) {
+                batteryPercent = level * 100 / scale;
+            }
+            charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        }
+
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        // No network at all is treated like a metered one; there's no point hurrying.
+        boolean metered = activeNetwork == null || !activeNetwork.isConnected()
+                || cm.isActiveNetworkMetered();
+
+        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+        boolean widgetsVisible =
+                appWidgetManager.getAppWidgetIds(
+                        new ComponentName(context, TodayWidgetProvider.class)).length > 0
+                || appWidgetManager.getAppWidgetIds(
+                        new ComponentName(context, DetailWidgetProvider.class)).length > 0;
+
+        return new Inputs(System.currentTimeMillis(), SyncState.getForecastChangeRate(context),
+                batteryPercent, charging, metered, sUiVisible, widgetsVisible, watchConnected);
+    }
+
+    /**
+     * Picks the next sync interval for the given inputs.  This only looks at its argument, so
+     * the same function drives both the live schedule and {@link #replay}.
+     */
+    static Decision decide(Inputs inputs) {
+        StringBuilder reason = new StringBuilder();
+        long interval;
+
+        // How often the forecast changed decides the base: every other sync or more and we
+        // stay at the floor, never and we back off all the way.
+        if (inputs.changeRate < 0) {
+            interval = MIN_INTERVAL_SECONDS << (MAX_BACKOFF_STEPS / 2);
+            reason.append("no change history");
+        } else {
+            float busy = Math.min(1f, inputs.changeRate * 2);
+            int steps = Math.round((1f - busy) * MAX_BACKOFF_STEPS);
+            interval = (long) MIN_INTERVAL_SECONDS << steps;
+            reason.append("changed ").append(Math.round(inputs.changeRate * 100)).append("%");
+        }
+
+        if (inputs.isAnythingVisible()) {
+            interval /= 4;
+            reason.append(", visible (");
+            if (inputs.uiVisible) reason.append(" app");
+            if (inputs.widgetsVisible) reason.append(" widget");
+            if (inputs.watchConnected) reason.append(" watch");
+            reason.append(" )");
+        } else {
+            interval *= 2;
+            reason.append(", nothing visible");
+        }
+
+        if (inputs.metered) {
+            interval *= 2;
+            reason.append(", metered");
+        } else if (inputs.charging) {
+            interval /= 2;
+            reason.append(", unmetered and charging");
+        }
+
+        if (!inputs.charging && inputs.batteryPercent <= LOW_BATTERY_PERCENT) {
+            interval *= 4;
+            reason.append(", battery ").append(inputs.batteryPercent).append("%");
+        }
+
+        if (interval < MIN_INTERVAL_SECONDS) {
+            interval = MIN_INTERVAL_SECONDS;
+            reason.append(", at floor");
+        } else if (interval > MAX_INTERVAL_SECONDS) {
+            interval = MAX_INTERVAL_SECONDS;
+            reason.append(", at ceiling");
+        }
+        return new Decision((int) interval, reason.toString());
+    }
+
+    /**
+     * Decides the next interval from the current state of the device, logs and records the
+     * decision, and re-registers the periodic sync if the interval changed.
+     */
+    static Decision reschedule(Context context, boolean watchConnected) {
+        Inputs inputs = readInputs(context, watchConnected);
+        Decision decision = decide(inputs);
+        Log.d(LOG_TAG, "Next sync in " + decision.intervalSeconds + " s: " + decision.reason);
+        record(context, inputs);
+
+        if (decision.intervalSeconds != SyncState.getSyncInterval(context, 0)) {
+            SunshineSyncAdapter.configurePeriodicSync(context,
+                    decision.intervalSeconds, decision.getFlexSeconds());
+            SyncState.setSyncInterval(context, decision.intervalSeconds);
+        }
+        return decision;
+    }
+
+    private static synchronized void record(Context context, Inputs inputs) {
+        File file = new File(context.getFilesDir(), RECORDING_FILE);
+        if (file.length() > MAX_RECORDING_BYTES) {
+            File old = new File(context.getFilesDir(), RECORDING_FILE + ".old");
+            if (!file.renameTo(old)) {
+                file.delete();
+            }
+        }
+        Writer writer = null;
+        try {
+            writer = new FileWriter(file, true);
+            writer.write(inputs.toLogLine());
+            writer.write('\n');
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Couldn't record sync schedule inputs", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // Nothing we can do.
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the recorded inputs, oldest first.
+     */
+    static synchronized List<Inputs> readRecording(Context context) throws IOException {
+        List<Inputs> recording = new ArrayList<Inputs>();
+        readRecording(new File(context.getFilesDir(), RECORDING_FILE + ".old"), recording);
+        readRecording(new File(context.getFilesDir(), RECORDING_FILE), recording);
+        return recording;
+    }
+
+    private static void readRecording(File file, List<Inputs> recording) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Inputs inputs = Inputs.fromLogLine(line);
+                if (inputs != null) {
+                    recording.add(inputs);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Simulates the adaptive schedule over recorded inputs: starting at the first recording,
+     * each simulated sync decides its interval from the latest inputs recorded by then.
+     *
+     * @return how many syncs the adaptive schedule would have made over the recording.
+     */
+    static int replay(List<Inputs> recording) {
+        return replay(recording, 0);
+    }
+
+    /**
+     * Like {@link #replay(List)}, but never waits less than the given period between syncs,
+     * the way JobScheduler runs the periodic job on N and later
+     * ({@link SunshineJobService#MIN_PERIOD_MILLIS_N}).
+     */
+    static int replay(List<Inputs> recording, long minPeriodMillis) {
+        if (recording.isEmpty()) {
+            return 0;
+        }
+        long end = recording.get(recording.size() - 1).timeMillis;
+        long time = recording.get(0).timeMillis;
+        int next = 0;
+        int syncs = 0;
+        do {
+            while (next + 1 < recording.size() && recording.get(next + 1).timeMillis <= time) {
+                next++;
+            }
+            syncs++;
+            time += Math.max(minPeriodMillis, decide(recording.get(next)).intervalSeconds * 1000L);
+        } while (time <= end);
+        return syncs;
+    }
+
+    /**
+     * @return how many syncs the fixed {@link SunshineSyncAdapter#SYNC_INTERVAL} schedule makes
+     * over the same recording, to compare {@link #replay} with.
+     */
+    static int replayFixed(List<Inputs> recording) {
+        if (recording.isEmpty()) {
+            return 0;
+        }
+        long span = recording.get(recording.size() - 1).timeMillis - recording.get(0).timeMillis;
+        return (int) (span / (SunshineSyncAdapter.SYNC_INTERVAL * 1000L)) + 1;
+    }
+}
@@ -0,0 +1,213 @@
+package com.example.android.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Bookkeeping the sync adapter keeps between runs, stored in its own preferences file so it
+ * doesn't show up next to the user's settings.  Most of it is kept per location setting.
+ *
+ * These helpers use commit to write, so like
+ * {@link SunshineSyncAdapter#setLocationStatus} they should not be called from the UI thread.
+ */
+public class SyncState {
+    private static final String PREFS_NAME = "sync_state";
+
+    private static final String KEY_ETAG = "etag:";
+    private static final String KEY_LAST_MODIFIED = "last_modified:";
+    private static final String KEY_VALIDATED_URL = "validated_url:";
+    private static final String KEY_FORECAST_DIGEST = "forecast_digest:";
+    private static final String KEY_NOT_MODIFIED_COUNT = "not_modified_count";
+    private static final String KEY_BATCH_SIZE = "batch_size";
+    private static final String KEY_CHANGE_HISTORY = "change_history";
+    private static final String KEY_CHANGE_HISTORY_LENGTH = "change_history_length";
+    private static final String KEY_SYNC_INTERVAL = "sync_interval";
+    private static final String KEY_HOURLY_SYNCED_AT = "hourly_synced_at:";
+    private static final String KEY_FRESH_UNTIL = "fresh_until:";
+    private static final String KEY_SYNCED_AT = "synced_at:";
+
+    // How many of the last syncs the change history covers, one bit each.
+    private static final int CHANGE_HISTORY_SIZE = 32;
+
+    private SyncState() {
+    }
+
+    static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the ETag the server sent with the forecast we currently have stored for this
+     * location, or null if there is none or it was for a different request URL.
+     */
+    static String getETag(Context context, String locationSetting, String url) {
+        SharedPreferences prefs = getPrefs(context);
+        if (!url.equals(prefs.getString(KEY_VALIDATED_URL + locationSetting, null))) {
+            return null;
+        }
+        return prefs.getString(KEY_ETAG + locationSetting, null);
+    }
+
+    /**
+     * Returns the Last-Modified time the server sent with the forecast we currently have
+     * stored for this location, or 0 if there is none or it was for a different request URL.
+     */
+    static long getLastModified(Context context, String locationSetting, String url) {
+        SharedPreferences prefs = getPrefs(context);
+        if (!url.equals(prefs.getString(KEY_VALIDATED_URL + locationSetting, null))) {
+            return 0;
+        }
+        return prefs.getLong(KEY_LAST_MODIFIED + locationSetting, 0);
+    }
+
+    /**
+     * Remembers the validators of a response once its forecast has been stored, so the next
+     * sync of the same URL can be made conditional.
+     */
+    static void setValidators(Context context, String locationSetting, String url,
+                              String eTag, long lastModified) {
+        SharedPreferences.Editor editor = getPrefs(context).edit();
+        if (eTag == null && lastModified == 0) {
+            editor.remove(KEY_VALIDATED_URL + locationSetting)
+                    .remove(KEY_ETAG + locationSetting)
+                    .remove(KEY_LAST_MODIFIED + locationSetting);
+        } else {
+            editor.putString(KEY_VALIDATED_URL + locationSetting, url)
+                    .putString(KEY_ETAG + locationSetting, eTag)
+                    .putLong(KEY_LAST_MODIFIED + locationSetting, lastModified);
+        }
+        editor.commit();
+    }
+
+    /**
+     * Forgets the validators and the freshness for a location, e.g. because the stored
+     * forecast is gone and a 304 would leave us with nothing to show.
+     */
+    static void clearValidators(Context context, String locationSetting) {
+        setValidators(context, locationSetting, null, null, 0);
+        setFreshUntil(context, locationSetting, 0);
+    }
+
+    /**
+     * Returns until when, in milliseconds since the epoch, the upstream said the forecast we
+     * have stored for this location stays fresh.  0 if it didn't say.
+     */
+    static long getFreshUntil(Context context, String locationSetting) {
+        return getPrefs(context).getLong(KEY_FRESH_UNTIL + locationSetting, 0);
+    }
+
+    /**
+     * Returns when, in milliseconds since the epoch, the upstream last confirmed the forecast we
+     * have stored for this location, with a new one or a 304.  0 if it never did.
+     */
+    static long getSyncedAt(Context context, String locationSetting) {
+        return getPrefs(context).getLong(KEY_SYNCED_AT + locationSetting, 0);
+    }
+
+    static void setSyncedAt(Context context, String locationSetting, long timeMillis) {
+        getPrefs(context).edit()
+                .putLong(KEY_SYNCED_AT + locationSetting, timeMillis)
+                .commit();
+    }
+
+    static void setFreshUntil(Context context, String locationSetting, long freshUntil) {
+        SharedPreferences.Editor editor = getPrefs(context).edit();
+        if (freshUntil == 0) {
+            editor.remove(KEY_FRESH_UNTIL + locationSetting);
+        } else {
+            editor.putLong(KEY_FRESH_UNTIL + locationSetting, freshUntil);
+        }
+        editor.commit();
+    }
+
+    /**
+     * Returns the {@link ForecastDigest} of the forecast rows last written for this location,
+     * or null if we haven't written any.
+     */
+    static String getForecastDigest(Context context, String locationSetting) {
+        return getPrefs(context).getString(KEY_FORECAST_DIGEST + locationSetting, null);
+    }
+
+    static void setForecastDigest(Context context, String locationSetting, String digest) {
+        getPrefs(context).edit()
+                .putString(KEY_FORECAST_DIGEST + locationSetting, digest)
+                .commit();
+    }
+
+    /**
+     * @return how many syncs ended with the server answering 304 Not Modified.
+     */
+    public static int getNotModifiedCount(Context context) {
+        return getPrefs(context).getInt(KEY_NOT_MODIFIED_COUNT, 0);
+    }
+
+    static synchronized void incrementNotModifiedCount(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        prefs.edit()
+                .putInt(KEY_NOT_MODIFIED_COUNT, prefs.getInt(KEY_NOT_MODIFIED_COUNT, 0) + 1)
+                .commit();
+    }
+
+    /**
+     * @return how many forecast requests the last sync decided to send together, see
+     * {@link ForecastBatcher}.
+     */
+    static int getBatchSize(Context context, int defaultSize) {
+        return getPrefs(context).getInt(KEY_BATCH_SIZE, defaultSize);
+    }
+
+    static void setBatchSize(Context context, int batchSize) {
+        getPrefs(context).edit().putInt(KEY_BATCH_SIZE, batchSize).commit();
+    }
+
+    /**
+     * Remembers whether the latest sync of the preferred location brought a forecast that
+     * differed from the one we had, see {@link #getForecastChangeRate}.
+     */
+    static synchronized void recordForecastChange(Context context, boolean changed) {
+        SharedPreferences prefs = getPrefs(context);
+        int history = (prefs.getInt(KEY_CHANGE_HISTORY, 0) << 1) | (changed ? 1 : 0);
+        int length = Math.min(CHANGE_HISTORY_SIZE, prefs.getInt(KEY_CHANGE_HISTORY_LENGTH, 0) + 1);
+        prefs.edit()
+                .putInt(KEY_CHANGE_HISTORY, history)
+                .putInt(KEY_CHANGE_HISTORY_LENGTH, length)
+                .commit();
+    }
+
+    /**
+     * @return the fraction of recent syncs that changed the preferred location's forecast, or
+     * -1 if we haven't synced yet.
+     */
+    static float getForecastChangeRate(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        int length = prefs.getInt(KEY_CHANGE_HISTORY_LENGTH, 0);
+        if (length == 0) {
+            return -1;
+        }
+        return (float) Integer.bitCount(prefs.getInt(KEY_CHANGE_HISTORY, 0)) / length;
+    }
+
+    /**
+     * @return the periodic sync interval last registered by {@link SyncScheduler}, in seconds.
+     */
+    static int getSyncInterval(Context context, int defaultInterval) {
+        return getPrefs(context).getInt(KEY_SYNC_INTERVAL, defaultInterval);
+    }
+
+    static void setSyncInterval(Context context, int intervalSeconds) {
+        getPrefs(context).edit().putInt(KEY_SYNC_INTERVAL, intervalSeconds).commit();
+    }
+
+    /**
+     * @return when the hourly forecast for the location was last stored, or 0 if never.
+     */
+    static long getHourlySyncedAt(Context context, String locationSetting) {
+        return getPrefs(context).getLong(KEY_HOURLY_SYNCED_AT + locationSetting, 0);
+    }
+
+    static void setHourlySyncedAt(Context context, String locationSetting, long timeMillis) {
+        getPrefs(context).edit()
+                .putLong(KEY_HOURLY_SYNCED_AT + locationSetting, timeMillis)
+                .commit();
+    }
+}
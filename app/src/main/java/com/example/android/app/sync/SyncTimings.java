@@ -0,0 +1,162 @@
+package com.example.android.app.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.android.app.data.WeatherContract.SyncMetricsEntry;
+
+/**
+ * How long each stage of syncing one upstream request took.
+ *
+ * A sync goes through fetch (sending the request until the response headers are back), parse
+ * (reading the body off the connection into rows), persist (writing the rows for every location
+ * that shares the request) and fan-out.  Fan-out runs on its own thread after the write and is
+ * timed by {@link SyncFanOut}.
+ *
+ * Fetch is further split into the phases the transport reports, and parse into the time spent
+ * waiting on the wire and the rest.  Each request's timings end up as a row of
+ * {@link SyncMetricsEntry}.  Whichever of {@link #record} and {@link #onFanOutFinished} comes
+ * last fills in the fan-out time, so the sync never waits on the consumers to write its row.
+ *
+ * Each stage runs against its share of a {@link SyncDeadline}; the one that ran out, if any, is
+ * recorded too.
+ */
+final class SyncTimings {
+    private static final String LOG_TAG = SyncTimings.class.getSimpleName();
+
+    long fetchMillis;
+    long parseMillis;
+    long persistMillis;
+    long bytesRead;
+    int rowsWritten;
+
+    // Filled in from the transport's response.
+    long connectMillis;
+    long firstByteMillis;
+    long downloadMillis;
+    int httpCode;
+    boolean prewarmed;
+
+    // The SyncDeadline stage that went over budget, or null.
+    String timedOutStage;
+
+    private Uri mRecordedUri;
+    private ContentResolver mResolver;
+    private long mFanOutMillis = -1;
+
+    void add(SyncTimings other) {
+        fetchMillis += other.fetchMillis;
+        parseMillis += other.parseMillis;
+        persistMillis += other.persistMillis;
+        bytesRead += other.bytesRead;
+        rowsWritten += other.rowsWritten;
+        connectMillis += other.connectMillis;
+        firstByteMillis += other.firstByteMillis;
+        downloadMillis += other.downloadMillis;
+        if (timedOutStage == null) {
+            timedOutStage = other.timedOutStage;
+        }
+    }
+
+    /**
+     * Takes the phase timings out of a response whose body has been read.
+     */
+    void setResponse(ForecastTransport.Response response) {
+        httpCode = response.getCode();
+        connectMillis = response.getConnectMillis();
+        firstByteMillis = response.getFirstByteMillis();
+        downloadMillis = response.getDownloadMillis();
+        bytesRead = response.getBytesRead();
+        prewarmed = response.isPrewarmed();
+    }
+
+    /**
+     * Notes that a stage ran out of its budget.  Only the first one counts; the later stages
+     * were short changed by it.
+     */
+    synchronized void onTimedOut(String stage) {
+        if (timedOutStage == null) {
+            timedOutStage = stage;
+        }
+    }
+
+    /**
+     * Writes these timings to the metrics table.
+     *
+     * @param syncTimeMillis when the sync started, shared by all its requests.
+     * @param totalMillis    how long the whole request took, from the breaker check to the write.
+     */
+    void record(ContentResolver resolver, long syncTimeMillis, String locationSetting,
+                @SunshineSyncAdapter.LocationStatus int status,
+                @CircuitBreaker.State int breakerState, long totalMillis) {
+        ContentValues values = new ContentValues();
+        values.put(SyncMetricsEntry.COLUMN_SYNC_TIME, syncTimeMillis);
+        values.put(SyncMetricsEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        values.put(SyncMetricsEntry.COLUMN_STATUS, status);
+        values.put(SyncMetricsEntry.COLUMN_HTTP_CODE, httpCode);
+        values.put(SyncMetricsEntry.COLUMN_BREAKER_STATE, breakerState);
+        values.put(SyncMetricsEntry.COLUMN_CONNECT, connectMillis);
+        values.put(SyncMetricsEntry.COLUMN_FIRST_BYTE, firstByteMillis);
+        values.put(SyncMetricsEntry.COLUMN_DOWNLOAD, downloadMillis);
+        // The download happens while the parser pulls on the stream, so take it out of parse.
+        values.put(SyncMetricsEntry.COLUMN_PARSE, Math.max(0, parseMillis - downloadMillis));
+        values.put(SyncMetricsEntry.COLUMN_DB_WRITE, persistMillis);
+        values.put(SyncMetricsEntry.COLUMN_TOTAL, totalMillis);
+        values.put(SyncMetricsEntry.COLUMN_BYTES, bytesRead);
+        values.put(SyncMetricsEntry.COLUMN_ROWS, rowsWritten);
+        values.put(SyncMetricsEntry.COLUMN_PREWARMED, prewarmed ? 1 : 0);
+
+        synchronized (this) {
+            if (mFanOutMillis >= 0) {
+                values.put(SyncMetricsEntry.COLUMN_FAN_OUT, mFanOutMillis);
+            }
+            if (timedOutStage != null) {
+                values.put(SyncMetricsEntry.COLUMN_TIMED_OUT_STAGE, timedOutStage);
+            }
+            try {
+                mRecordedUri = resolver.insert(SyncMetricsEntry.CONTENT_URI, values);
+                mResolver = resolver;
+            } catch (android.database.SQLException e) {
+                // Metrics are nice to have; losing a row mustn't fail the sync.
+                Log.w(LOG_TAG, "Couldn't record sync metrics", e);
+            }
+        }
+    }
+
+    /**
+     * Called by {@link SyncFanOut} once the consumers of this request's forecast have run.
+     *
+     * @param timedOut whether the fan-out ran out of time and skipped or cut short a consumer.
+     */
+    void onFanOutFinished(long fanOutMillis, boolean timedOut) {
+        Uri uri;
+        ContentResolver resolver;
+        ContentValues values = new ContentValues();
+        synchronized (this) {
+            mFanOutMillis = fanOutMillis;
+            values.put(SyncMetricsEntry.COLUMN_FAN_OUT, fanOutMillis);
+            // If one of the sync's own stages ran out too, that's the one on record.
+            if (timedOut && timedOutStage == null) {
+                timedOutStage = SyncDeadline.STAGE_FAN_OUT;
+                values.put(SyncMetricsEntry.COLUMN_TIMED_OUT_STAGE, timedOutStage);
+            }
+            uri = mRecordedUri;
+            resolver = mResolver;
+        }
+        if (uri != null) {
+            resolver.update(uri, values, null, null);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "fetch " + fetchMillis + " ms (connect " + connectMillis +
+                ", first byte " + firstByteMillis + (prewarmed ? ", prewarmed" : "") +
+                "), parse " + parseMillis + " ms (download " +
+                downloadMillis + " ms, " + bytesRead + " bytes), persist " + persistMillis +
+                " ms (" + rowsWritten + " rows)" +
+                (timedOutStage != null ? ", " + timedOutStage + " over budget" : "");
+    }
+}
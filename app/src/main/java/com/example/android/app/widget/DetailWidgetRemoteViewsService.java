@@ -17,6 +17,7 @@ import com.bumptech.glide.request.target.Target;
 import com.example.android.app.R;
 import com.example.android.app.Utility;
 import com.example.android.app.data.WeatherContract;
+import com.example.android.app.sync.ForecastRepository;
 
 import java.util.concurrent.ExecutionException;
 
@@ -63,12 +64,10 @@ public class DetailWidgetRemoteViewsService extends RemoteViewsService {
                 // that calls use our process and permission
                 final long identityToken = Binder.clearCallingIdentity();
                 String location = Utility.getPreferredLocation(DetailWidgetRemoteViewsService.this);
-                Uri weatherForLocationUri = WeatherContract.WeatherEntry
-                        .buildWeatherLocationWithStartDate(location, System.currentTimeMillis());
-                data = getContentResolver().query(weatherForLocationUri,
+                Uri weatherForLocationUri = ForecastRepository.getForecastUri(location);
+                data = ForecastRepository.getInstance(DetailWidgetRemoteViewsService.this).query(
+                        weatherForLocationUri,
                         FORECAST_COLUMNS,
-                        null,
-                        null,
                         WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
                 Binder.restoreCallingIdentity(identityToken);
             }
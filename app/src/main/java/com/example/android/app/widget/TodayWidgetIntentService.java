@@ -33,6 +33,7 @@ import com.example.android.app.MainActivity;
 import com.example.android.app.R;
 import com.example.android.app.Utility;
 import com.example.android.app.data.WeatherContract;
+import com.example.android.app.sync.ForecastRepository;
 
 /**
  * IntentService which handles updating all Today widgets with the latest data
@@ -63,10 +64,9 @@ public class TodayWidgetIntentService extends IntentService {
 
         // Get today's data from the ContentProvider
         String location = Utility.getPreferredLocation(this);
-        Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
-                location, System.currentTimeMillis());
-        Cursor data = getContentResolver().query(weatherForLocationUri, FORECAST_COLUMNS, null,
-                null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        Uri weatherForLocationUri = ForecastRepository.getForecastUri(location);
+        Cursor data = ForecastRepository.getInstance(this).query(weatherForLocationUri,
+                FORECAST_COLUMNS, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
         if (data == null) {
             return;
         }